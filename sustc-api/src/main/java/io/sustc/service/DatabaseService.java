@@ -1,11 +1,10 @@
 package io.sustc.service;
 
 import io.sustc.dto.*;
-import org.springframework.scheduling.annotation.Async;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
 
 public interface DatabaseService {
 
@@ -30,6 +29,22 @@ public interface DatabaseService {
             List<VideoRecord> videoRecords
     );
 
+    boolean isBinaryCopy();
+
+    /**
+     * Selects whether {@link #importData} copies relation tables in PGCOPY binary format from now on,
+     * starts as {@link #BINARY_COPY}.
+     */
+    void setBinaryCopy(boolean binaryCopy);
+
+    /**
+     * Copies the like rows of the videos into a scratch table in the selected COPY format and drops it again,
+     * so both formats can be timed without importing twice.
+     *
+     * @return the time the copy took in ms
+     */
+    long timeRelationCopy(List<VideoRecord> videoRecords);
+
     /**
      * Truncates all tables in the database.
      * <p>
@@ -63,6 +78,28 @@ public interface DatabaseService {
     int MAX_CONTENT_LENGTH = 300;
     int NORMAL_BATCH_SIZE = 1000;
     int BIG_BATCH_SIZE = 30000;
+    boolean BINARY_COPY = true;
+    int COPY_STREAMS = 4;
+    int IMPORT_DB_CONCURRENCY = 8;
+    int PARTITION_ROWS = 1_000_000;
+    int MAX_PARTITIONS = 32;
+    Map<String, Integer> PARTITION_COUNTS = Map.of();
+    Map<String, Integer> SUB_PARTITION_COUNTS = Map.of();
+    int PARTITION_COPY_THREADS = 8;
+    boolean PARALLEL_PARTITION_INDEX = true;
+    SearchMode SEARCH_MODE = SearchMode.Index;
+    long SCORE_FLUSH_INTERVAL = 1000;
+    int RANKING_CACHE_SIZE = 1000;
+    int CO_VIEW_TOP_N = 16;
+    long AUTH_CACHE_TTL = 60_000;
+    int AUTH_CACHE_SIZE = 200_000;
+    int AV_BLOCK_SIZE = 1000;
+    int VIDEO_INFO_CACHE_SIZE = 50_000;
+    int USER_PROFILE_CACHE_SIZE = 1_000_000;
+    int ENGAGEMENT_CACHE_SIZE = 100_000;
+    double EXISTENCE_FILTER_FPP = 0.01;
+    long EXISTENCE_FILTER_REBUILD_INTERVAL = 60_000;
+    VideoKey VIDEO_KEY = VideoKey.Bv;
 
     float EPSILON = 1e-6f;
 
@@ -72,6 +109,21 @@ public interface DatabaseService {
 
     AuthInfo getAuthInfoByWechat(String wechat);
 
+    /**
+     * Returns whether the credential passed verification recently, filling in the mid of a QQ or WeChat login.
+     */
+    boolean isAuthVerified(AuthInfo auth);
+
+    /**
+     * Remembers a credential that passed verification, {@code replacement} is filled into it on later hits.
+     */
+    void cacheVerifiedAuth(AuthInfo auth, long mid, AuthInfo replacement);
+
+    /**
+     * Forgets the verified credentials of a user about to be deleted.
+     */
+    void invalidateAuth(long mid);
+
     boolean isMidNotExist(long mid);
 
     boolean isQQorWechatExist(String qq, String wechat);
@@ -86,42 +138,26 @@ public interface DatabaseService {
 
     boolean isFollowing(long followerMid, long followeeMid);
 
-    boolean follow(long followerMid, long followeeMid);
-
-    boolean unfollow(long followerMid, long followeeMid);
-
     int getCoin(long mid);
 
-    @Async
-    CompletableFuture<long[]> getFollowingAsync(long mid);
-
     long[] getFollowing(long mid);
 
-    @Async
-    CompletableFuture<long[]> getFollowerAsync(long mid);
-
     long[] getFollower(long mid);
 
-    @Async
-    CompletableFuture<String[]> getWatchedAsync(long mid);
-
     String[] getWatched(long mid);
 
-    @Async
-    CompletableFuture<String[]> getLikedAsync(long mid);
-
     String[] getLiked(long mid);
 
-    @Async
-    CompletableFuture<String[]> getCollectedAsync(long mid);
-
     String[] getCollected(long mid);
 
-    @Async
-    CompletableFuture<String[]> getPostedAsync(long mid);
-
     String[] getPosted(long mid);
 
+    /**
+     * Reads every relation of a user in one statement, the caller flushes the queued writes first. The coin comes
+     * from the profile cache the same way as {@link #getCoin(long)}. Returns {@code null} when the user does not exist.
+     */
+    UserInfoResp getUserInfo(long mid);
+
     float getValidVideoDuration(String bv);
 
     boolean isVideoUnwatched(long mid, String bv);
@@ -136,32 +172,40 @@ public interface DatabaseService {
 
     boolean isDanmuLiked(long mid, long id);
 
-    boolean unlikeDanmu(long mid, long id);
-
-    boolean likeDanmu(long mid, long id);
-
     boolean isVideoNotEngage(AuthInfo auth, String bv);
 
-    boolean coinVideo(long mid, String bv);
-
     void updateCoin(long mid, int newCoin);
 
-    boolean likeVideo(long mid, String bv);
+    boolean toggleLikeVideo(long mid, String bv);
 
-    boolean isVideoLiked(long mid, String bv);
+    boolean toggleCollectVideo(long mid, String bv);
 
-    boolean unlikeVideo(long mid, String bv);
+    boolean donateCoin(long mid, String bv);
 
-    boolean isVideoCollected(long mid, String bv);
+    /**
+     * Queues a write that does not need to finish before the request returns. Submitted writes run in submission
+     * order among themselves, but after every queued like, favorite, coin, follow and danmu like of the same flush.
+     */
+    void submitWrite(Runnable write);
+
+    /**
+     * Returns once every write queued so far is in the database.
+     */
+    void flushWrites();
 
-    boolean uncollectVideo(long mid, String bv);
+    void setFollowing(long followerMid, long followeeMid, boolean following);
 
-    boolean collectVideo(long mid, String bv);
+    void setDanmuLiked(long mid, long id, boolean liked);
 
     long getVideoOwner(String bv);
 
     boolean isVideoReviewed(String bv);
 
+    /**
+     * Marks the video reviewed by {@code mid} and queues the write.
+     *
+     * @return {@code false} when the video does not exist or is already reviewed
+     */
     boolean reviewVideo(long mid, String bv);
 
     boolean isDanmuExistByBv(String bv);
@@ -174,23 +218,51 @@ public interface DatabaseService {
 
     String insertVideo(long mid, PostVideoReq req);
 
+    /**
+     * Drops the video from every in-memory index and queues the delete.
+     *
+     * @return {@code false} when the video does not exist
+     */
     boolean deleteVideo(String bv);
 
     boolean isNewInfoValid(String bv, PostVideoReq req);
 
+    /**
+     * Applies the new info in memory, which makes the video unreviewed, and queues the write.
+     *
+     * @return whether the video was reviewed before the update, {@code false} when it does not exist
+     */
     boolean updateVideoInfo(String bv, PostVideoReq req);
 
-    void resetUnloggedTable(long mid);
-
-    void createTempTable(long mid);
-
-    void updateRelevanceTemp(String s);
+    /**
+     * Ranks the videos the user can see by keyword occurrences, then by view count.
+     *
+     * @param keywords lowercased keywords
+     */
+    List<String> searchVideo(long mid, List<String> keywords, int pageSize, int pageNum);
 
-    void mergeTemp(long mid);
+    /**
+     * Selects how {@link #searchVideo(long, List, int, int)} runs from now on, starts as {@link #SEARCH_MODE}.
+     * Switching to {@link SearchMode#Sql} flushes the queued writes and video counters once, searches do not
+     * flush on their own.
+     */
+    void setSearchMode(SearchMode mode);
 
-    void updateRelevance(String s);
+    /**
+     * {@code Index} counts keywords in the in-process search index, {@code Sql} computes the relevance
+     * in one stateless query per search.
+     */
+    enum SearchMode {
+        Index, Sql
+    }
 
-    List<String> searchVideo(int pageSize, int pageNum);
+    /**
+     * How ViewVideo, LikeVideo, CoinVideo and FavVideo reference videos, fixed when the data is imported.
+     * {@code Bv} stores the {@code CHAR(12)} bv, {@code Av} stores the {@code BIGINT} av it encodes.
+     */
+    enum VideoKey {
+        Bv, Av
+    }
 
     List<String> getTopVideos(String bv);
 
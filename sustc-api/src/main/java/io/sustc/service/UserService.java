@@ -90,8 +90,22 @@ public interface UserService {
 
     boolean invalidAuthInfo(AuthInfo auth);
 
+    /**
+     * Default of {@link #getConcurrency()}, overridden by the {@code sustc.user-info-concurrency} property.
+     */
     Concurrency concurrency = Concurrency.Sync;
 
+    Concurrency getConcurrency();
+
+    /**
+     * Selects how {@link #getUserInfo(long)} runs from now on.
+     */
+    void setConcurrency(Concurrency concurrency);
+
+    /**
+     * {@code Sync} reads everything in one statement, {@code Async} fans the coin and the six relation
+     * queries out on a bounded executor.
+     */
     enum Concurrency {
         Sync, Async
     }
@@ -1,12 +1,15 @@
 package io.sustc.service.impl;
 
+import com.zaxxer.hikari.HikariDataSource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import javax.sql.DataSource;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @Configuration
 @EnableAsync
@@ -25,4 +28,24 @@ public class AsyncConfig {
         log.info("AsyncConfig initialized");
         return executor;
     }
+
+    /**
+     * Runs the sub-queries of an async {@code getUserInfo}. Every task holds a connection while it runs,
+     * so the pool gets at most half of the connections and a caller runs the query itself once the queue
+     * is full, instead of piling up work the database cannot take.
+     */
+    @Bean(name = "userInfoExecutor")
+    public Executor userInfoExecutor(DataSource dataSource) {
+        int connections = dataSource instanceof HikariDataSource ? ((HikariDataSource) dataSource).getMaximumPoolSize() : 10;
+        int threads = Math.max(1, connections / 2);
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(threads * 16);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setThreadNamePrefix("UserInfo-");
+        executor.initialize();
+        log.info("User info executor initialized with {} threads", threads);
+        return executor;
+    }
 }
\ No newline at end of file
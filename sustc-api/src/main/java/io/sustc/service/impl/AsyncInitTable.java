@@ -3,57 +3,56 @@ package io.sustc.service.impl;
 import io.sustc.dto.DanmuRecord;
 import io.sustc.dto.UserRecord;
 import io.sustc.dto.VideoRecord;
-import io.sustc.service.UserService;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.postgresql.copy.CopyManager;
-import org.postgresql.core.BaseConnection;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Propagation;
-import org.springframework.transaction.annotation.Transactional;
 
-import java.io.Reader;
-import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static io.sustc.service.DatabaseService.*;
+import static io.sustc.service.impl.StoredText.escape;
 
 @Service
-@EnableAsync
 @Slf4j
 public class AsyncInitTable {
     private final JdbcTemplate jdbcTemplate;
     private final Transformer transformer;
+    private final VideoKeys videoKeys;
+    private final Map<String, Partitioning> partitionings = new ConcurrentHashMap<>();
+    /**
+     * Whether relation tables are copied in PGCOPY binary format, starts as {@link io.sustc.service.DatabaseService#BINARY_COPY}.
+     */
+    @Getter
+    @Setter
+    private volatile boolean binaryCopy = BINARY_COPY;
+    private static final AtomicInteger partitionThreadCount = new AtomicInteger();
+    private static final ExecutorService partitionExecutor = Executors.newFixedThreadPool(PARTITION_COPY_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "Partition-" + partitionThreadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
 
     @Autowired
     public AsyncInitTable(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
         this.transformer = new Transformer();
-    }
-
-    private String escape(String input) {
-        if (input == null)
-            return "";
-        return input.replace("\t", "\\t")
-                .replace("\n", "\\n");
-    }
-
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initUserAuthTableAsync(List<UserRecord> userRecords) {
-        return CompletableFuture.runAsync(() -> initUserAuthTable(userRecords));
+        this.videoKeys = new VideoKeys(transformer);
     }
 
     public void initUserAuthTable(List<UserRecord> userRecords) {
@@ -67,31 +66,23 @@ public class AsyncInitTable {
                 """, MAX_PASSWORD_LENGTH, MAX_QQ_LENGTH, MAX_WECHAT_LENGTH);
         jdbcTemplate.execute(createUserAuthTable);
         log.info("Begin encoding passwords");
-        AtomicBoolean hasError = new AtomicBoolean(false);
-        String copyData = userRecords.parallelStream().map(user -> {
-            String qq = user.getQq();
-            if (qq != null && qq.length() > MAX_QQ_LENGTH) {
+        for (UserRecord user : userRecords) {
+            if (user.getQq() != null && user.getQq().length() > MAX_QQ_LENGTH) {
                 log.error("QQ is too long: {}", user.getQq());
-                hasError.set(true);
-                return null;
+                throw new IllegalArgumentException("One or more records have errors. Check logs for details.");
             }
-            String wechat = user.getWechat();
-            if (wechat != null && wechat.length() > MAX_WECHAT_LENGTH) {
+            if (user.getWechat() != null && user.getWechat().length() > MAX_WECHAT_LENGTH) {
                 log.error("WeChat is too long: {}", user.getWechat());
-                hasError.set(true);
-                return null;
+                throw new IllegalArgumentException("One or more records have errors. Check logs for details.");
             }
-            String encodedPassword = UserService.encodePassword(user.getPassword());
-            if (qq == null) qq = "";
-            if (wechat == null) wechat = "";
-            return String.join("\t", String.valueOf(user.getMid()), encodedPassword, qq, wechat);
-        }).filter(s -> s != null && !hasError.get()).collect(Collectors.joining("\n"));
-        if (hasError.get()) {
-            throw new IllegalArgumentException("One or more records have errors. Check logs for details.");
         }
-        log.info("Finish encoding passwords");
         String copySql = "COPY UserAuth(mid, password, qq, wechat) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t', NULL '')";
-        copyInsertion(copyData, copySql);
+        copyStream(copySql, pipe -> new PasswordHasher().hash(userRecords, (user, encodedPassword) ->
+                pipe.text(user.getMid()).tab()
+                        .text(encodedPassword).tab()
+                        .text(user.getQq() == null ? "" : user.getQq()).tab()
+                        .text(user.getWechat() == null ? "" : user.getWechat()).newline()));
+        log.info("Finish encoding passwords");
         String createUserAuthTableConstraint = """
                 SELECT setval(pg_get_serial_sequence('UserAuth', 'mid'), (SELECT MAX(mid) FROM UserAuth));
                                 
@@ -108,12 +99,6 @@ public class AsyncInitTable {
         log.info("Finish initializing UserAuth table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> createUserProfileConstraintAsync() {
-        return CompletableFuture.runAsync(this::createUserProfileConstraint);
-    }
-
     public void createUserProfileConstraint() {
         String createUserProfileTableConstraint = """
                 ALTER TABLE UserProfile ALTER COLUMN name SET NOT NULL;
@@ -132,12 +117,6 @@ public class AsyncInitTable {
         log.info("Finish Constraint UserProfile table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initUserProfileTableAsync(List<UserRecord> userRecords) {
-        return CompletableFuture.runAsync(() -> initUserProfileTable(userRecords));
-    }
-
     public void initUserProfileTable(List<UserRecord> userRecords) {
         String createUserProfileTable = String.format("""
                 CREATE TABLE IF NOT EXISTS UserProfile(
@@ -153,56 +132,50 @@ public class AsyncInitTable {
                 );
                 """, MAX_NAME_LENGTH, MAX_SIGN_LENGTH);
         jdbcTemplate.execute(createUserProfileTable);
-        StringBuilder copyData = new StringBuilder();
         Pattern pattern = Pattern.compile("(\\d+)月(\\d+)日");
-        for (UserRecord user : userRecords) {
-            String birthday = user.getBirthday();
-            Matcher matcher = pattern.matcher(birthday);
-            boolean isEmpty = birthday.isEmpty();
-            if (!isEmpty && !matcher.matches()) {
-                log.info("User mid: {}", user.getMid());
-                log.error("Invalid birthday: {}", user.getBirthday());
-                throw new IllegalArgumentException("Invalid birthday");
-            }
-            String escapeName = escape(user.getName());
-            if (escapeName.length() > MAX_NAME_LENGTH) {
-                log.info("User mid: {}", user.getMid());
-                log.error("Name is too long: {}", user.getName());
-                throw new IllegalArgumentException("Name is too long");
-            }
-            String escapeSign = escape(user.getSign());
-            if (escapeSign.length() > MAX_SIGN_LENGTH) {
-                if (escapeSign.replace("\\n", "").length() < MAX_SIGN_LENGTH) {
-                    escapeSign = escapeSign.replace("\\n", "");
+        String copySql = "COPY UserProfile(mid, name, sex, birthday_month, birthday_day, level, coin, sign, identity) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t', NULL '', QUOTE E'\\x07')";
+        copyRanges(copySql, userRecords.size(), (pipe, from, to) -> {
+            for (UserRecord user : userRecords.subList(from, to)) {
+                String birthday = user.getBirthday();
+                Matcher matcher = pattern.matcher(birthday);
+                boolean isEmpty = birthday.isEmpty();
+                if (!isEmpty && !matcher.matches()) {
                     log.info("User mid: {}", user.getMid());
-                    log.warn("User has too sign with \\n: {}", user.getSign());
-                } else {
+                    log.error("Invalid birthday: {}", user.getBirthday());
+                    throw new IllegalArgumentException("Invalid birthday");
+                }
+                String escapeName = escape(user.getName());
+                if (escapeName.length() > MAX_NAME_LENGTH) {
                     log.info("User mid: {}", user.getMid());
-                    log.error("Sign is too long: {}", user.getSign());
-                    throw new IllegalArgumentException("Sign is too long");
+                    log.error("Name is too long: {}", user.getName());
+                    throw new IllegalArgumentException("Name is too long");
                 }
+                String escapeSign = escape(user.getSign());
+                if (escapeSign.length() > MAX_SIGN_LENGTH) {
+                    if (escapeSign.replace("\\n", "").length() < MAX_SIGN_LENGTH) {
+                        escapeSign = escapeSign.replace("\\n", "");
+                        log.info("User mid: {}", user.getMid());
+                        log.warn("User has too sign with \\n: {}", user.getSign());
+                    } else {
+                        log.info("User mid: {}", user.getMid());
+                        log.error("Sign is too long: {}", user.getSign());
+                        throw new IllegalArgumentException("Sign is too long");
+                    }
+                }
+                pipe.text(user.getMid()).tab()
+                        .text(escapeName).tab()
+                        .text(user.getSex() == null ? "" : user.getSex().name()).tab()
+                        .text(isEmpty ? "" : matcher.group(1)).tab()
+                        .text(isEmpty ? "" : matcher.group(2)).tab()
+                        .text(user.getLevel()).tab()
+                        .text(user.getCoin()).tab()
+                        .text(escapeSign).tab()
+                        .text(user.getIdentity().name()).newline();
             }
-            copyData.append(user.getMid()).append('\t')
-                    .append(escapeName).append('\t')
-                    .append(user.getSex() == null ? "" : user.getSex()).append('\t')
-                    .append(isEmpty ? "" : matcher.group(1)).append('\t')
-                    .append(isEmpty ? "" : matcher.group(2)).append('\t')
-                    .append(user.getLevel()).append('\t')
-                    .append(user.getCoin()).append('\t')
-                    .append(escapeSign).append('\t')
-                    .append(user.getIdentity().name()).append('\n');
-        }
-        String copySql = "COPY UserProfile(mid, name, sex, birthday_month, birthday_day, level, coin, sign, identity) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t', NULL '', QUOTE E'\\x07')";
-        copyInsertion(copyData.toString(), copySql);
+        });
         log.info("Finish initializing UserProfile table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> createUserFollowConstraintAsync() {
-        return CompletableFuture.runAsync(this::createUserFollowConstraint);
-    }
-
     public void createUserFollowConstraint() {
         String config = """
                 SET work_mem = '256MB';
@@ -213,59 +186,32 @@ public class AsyncInitTable {
                 SET max_parallel_workers_per_gather = 8;
                 """;
         jdbcTemplate.execute(config);
+        createPartitionedIndex("UserFollow", "UserFollow_pkey", "follower, followee", true);
         String createUserFollowTableConstraint = """
-                ALTER TABLE UserFollow ADD PRIMARY KEY (follower, followee);
                 ALTER TABLE UserFollow ADD FOREIGN KEY (follower) REFERENCES UserAuth(mid) ON DELETE CASCADE;
                 ALTER TABLE UserFollow ADD FOREIGN KEY (followee) REFERENCES UserAuth(mid) ON DELETE CASCADE;
-                                
-                CREATE INDEX UserFolloweeIndex ON UserFollow(followee);
                 """;
         jdbcTemplate.execute(createUserFollowTableConstraint);
+        createPartitionedIndex("UserFollow", "UserFolloweeIndex", "followee", false);
         log.info("Finish Constraint UserFollow table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initUserFollowTableAsync(List<UserRecord> userRecords) {
-        return CompletableFuture.runAsync(() -> initUserFollowTable(userRecords));
-    }
-
     public void initUserFollowTable(List<UserRecord> userRecords) {
-        String createUserFollowTable = """
-                CREATE TABLE IF NOT EXISTS UserFollow(
-                    follower BIGINT,
-                    followee BIGINT
-                ) PARTITION BY HASH (follower);
-                CREATE TABLE UserFollow_1 PARTITION OF UserFollow FOR VALUES WITH (MODULUS 4, REMAINDER 0);
-                CREATE TABLE UserFollow_2 PARTITION OF UserFollow FOR VALUES WITH (MODULUS 4, REMAINDER 1);
-                CREATE TABLE UserFollow_3 PARTITION OF UserFollow FOR VALUES WITH (MODULUS 4, REMAINDER 2);
-                CREATE TABLE UserFollow_4 PARTITION OF UserFollow FOR VALUES WITH (MODULUS 4, REMAINDER 3);
-                """;
-        jdbcTemplate.execute(createUserFollowTable);
-        String copySql = "COPY UserFollow(follower, followee) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t')";
-        StringBuilder copyData = new StringBuilder();
-        List<CompletableFuture<Void>> tasks = new ArrayList<>();
-        int count = 0;
-        for (UserRecord user : userRecords) {
-            for (long followee : user.getFollowing()) {
-                copyData.append(user.getMid()).append('\t')
-                        .append(followee).append('\n');
-                count++;
-                if (count >= BIG_BATCH_SIZE * 4) {
-                    String copyDataSnapshot = copyData.toString();
-                    tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyDataSnapshot, copySql)));
-//                    copyInsertion(copyData.toString(), copySql);
-                    copyData.setLength(0);
-                    count = 0;
-                }
+        long follows = userRecords.stream().mapToLong(user -> user.getFollowing().length).sum();
+        Partitioning partitioning = Partitioning.of("UserFollow", follows);
+        jdbcTemplate.execute(partitioning.createTable("follower BIGINT, followee BIGINT", "follower", "followee"));
+        partitionings.put(partitioning.getTable(), partitioning);
+        long rows = copyPartitions(partitioning, "follower, followee", sink -> {
+            for (int i = 0; i < userRecords.size(); i++) {
+                UserRecord user = userRecords.get(i);
+                for (int j = 0; j < user.getFollowing().length; j++)
+                    sink.accept(user.getMid(), i, j);
             }
-        }
-        if (count > 0) {
-            tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyData.toString(), copySql)));
-//            copyInsertion(copyData.toString(), copySql);
-        }
-        log.info(tasks.size() + " tasks in UserFollow table");
-        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        }, (pipe, record, element) -> {
+            UserRecord user = userRecords.get(record);
+            pipe.row(2).int8(user.getMid()).int8(user.getFollowing()[element]);
+        });
+        log.info(rows + " rows in UserFollow table");
         String setTrigger = """
                 CREATE OR REPLACE FUNCTION insert_user_friends() RETURNS TRIGGER AS $$
                 BEGIN
@@ -298,12 +244,6 @@ public class AsyncInitTable {
         log.info("Finish initializing UserFollow table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> createUserFriendsConstraintAsync() {
-        return CompletableFuture.runAsync(this::createUserFriendsConstraint);
-    }
-
     public void createUserFriendsConstraint() {
         String createUserFriendsTableConstraint = """
                 ALTER TABLE UserFriends ADD PRIMARY KEY (mid, friend);
@@ -314,12 +254,6 @@ public class AsyncInitTable {
         log.info("Finish Constraint UserFriends table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initUserFriendsTableAsync(List<UserRecord> userRecords) {
-        return CompletableFuture.runAsync(() -> initUserFriendsTable(userRecords));
-    }
-
     public void initUserFriendsTable(List<UserRecord> userRecords) {
         String createUserFriendsTable = """
                 CREATE UNLOGGED TABLE IF NOT EXISTS UserFriends(
@@ -334,27 +268,20 @@ public class AsyncInitTable {
                 following.add(followee);
             return Map.entry(user.getMid(), following);
         }).filter(entry -> !entry.getValue().isEmpty()).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-        String copyData = relation.entrySet().parallelStream().map(entry -> {
-            StringBuilder sb = new StringBuilder();
-            long mid = entry.getKey();
-            for (long followee : entry.getValue()) {
-                if (relation.containsKey(followee) && relation.get(followee).contains(mid)) {
-                    sb.append(mid).append('\t').append(followee).append('\n');
+        String copySql = "COPY UserFriends(mid, friend) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t')";
+        copyStream(copySql, pipe -> {
+            for (Map.Entry<Long, HashSet<Long>> entry : relation.entrySet()) {
+                long mid = entry.getKey();
+                for (long followee : entry.getValue()) {
+                    HashSet<Long> reverse = relation.get(followee);
+                    if (reverse != null && reverse.contains(mid))
+                        pipe.text(mid).tab().text(followee).newline();
                 }
             }
-            return sb.toString();
-        }).collect(Collectors.joining());
-        String copySql = "COPY UserFriends(mid, friend) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t')";
-        copyInsertion(copyData, copySql);
+        });
         log.info("Finish initializing UserFriends table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initVideoTableAsync(List<VideoRecord> videoRecords) {
-        return CompletableFuture.runAsync(() -> initVideoTable(videoRecords));
-    }
-
     public void initVideoTable(List<VideoRecord> videoRecords) {
         String createVideoTable = String.format("""
                 CREATE TABLE IF NOT EXISTS Video(
@@ -366,54 +293,43 @@ public class AsyncInitTable {
                     public_time TIMESTAMP,
                     duration REAL,
                     description VARCHAR(%d),
-                    reviewer BIGINT
+                    reviewer BIGINT%s
                 );
-                """, MAX_BV_LENGTH, MAX_TITLE_LENGTH, MAX_DESCRIPTION_LENGTH);
+                """, MAX_BV_LENGTH, MAX_TITLE_LENGTH, MAX_DESCRIPTION_LENGTH, VideoKeys.AV ? ",\n    av BIGINT" : "");
         jdbcTemplate.execute(createVideoTable);
-        String copySql = "COPY Video(bv, title, owner, commit_time, review_time, public_time, duration, description, reviewer) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t', NULL '', QUOTE E'\\x07')";
-        StringBuilder copyData = new StringBuilder();
-        List<CompletableFuture<Void>> tasks = new ArrayList<>();
-        int count = 0;
-        for (VideoRecord video : videoRecords) {
-            transformer.setAvCount(Math.max(transformer.getAvCount(), transformer.getAv(video.getBv())));
-            String escapeTitle = escape(video.getTitle());
-            if (escapeTitle.length() > MAX_TITLE_LENGTH) {
-                log.info("Video bv: {}", video.getBv());
-                log.info("Title's length: {}", escapeTitle.length());
-                log.error("Title is too long: {}", video.getTitle());
-                throw new IllegalArgumentException("Title is too long");
-            }
-            String escapeDescription = escape(video.getDescription());
-            if (escapeDescription.length() > MAX_DESCRIPTION_LENGTH) {
-                log.info("Video bv: {}", video.getBv());
-                log.info("Description's length: {}", escapeDescription.length());
-                log.error("Description is too long: {}", video.getDescription());
-                throw new IllegalArgumentException("Description is too long");
-            }
-            copyData.append(video.getBv()).append('\t')
-                    .append(escapeTitle).append('\t')
-                    .append(video.getOwnerMid()).append('\t')
-                    .append(video.getCommitTime()).append('\t')
-                    .append(video.getReviewTime()).append('\t')
-                    .append(video.getPublicTime()).append('\t')
-                    .append(video.getDuration()).append('\t')
-                    .append(escapeDescription).append('\t')
-                    .append(video.getReviewer()).append('\n');
-            count++;
-            if (count >= NORMAL_BATCH_SIZE) {
-                String copyDataSnapshot = copyData.toString();
-                tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyDataSnapshot, copySql)));
-//                copyInsertion(copyData.toString(), copySql);
-                copyData.setLength(0);
-                count = 0;
+        String copySql = String.format("COPY Video(bv, title, owner, commit_time, review_time, public_time, duration, description, reviewer%s) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t', NULL '', QUOTE E'\\x07')",
+                VideoKeys.AV ? ", av" : "");
+        long rows = copyRanges(copySql, videoRecords.size(), (pipe, from, to) -> {
+            for (VideoRecord video : videoRecords.subList(from, to)) {
+                String escapeTitle = escape(video.getTitle());
+                if (escapeTitle.length() > MAX_TITLE_LENGTH) {
+                    log.info("Video bv: {}", video.getBv());
+                    log.info("Title's length: {}", escapeTitle.length());
+                    log.error("Title is too long: {}", video.getTitle());
+                    throw new IllegalArgumentException("Title is too long");
+                }
+                String escapeDescription = escape(video.getDescription());
+                if (escapeDescription.length() > MAX_DESCRIPTION_LENGTH) {
+                    log.info("Video bv: {}", video.getBv());
+                    log.info("Description's length: {}", escapeDescription.length());
+                    log.error("Description is too long: {}", video.getDescription());
+                    throw new IllegalArgumentException("Description is too long");
+                }
+                pipe.text(video.getBv()).tab()
+                        .text(escapeTitle).tab()
+                        .text(video.getOwnerMid()).tab()
+                        .text(video.getCommitTime()).tab()
+                        .text(video.getReviewTime()).tab()
+                        .text(video.getPublicTime()).tab()
+                        .text(video.getDuration()).tab()
+                        .text(escapeDescription).tab()
+                        .text(video.getReviewer());
+                if (VideoKeys.AV)
+                    pipe.tab().text(transformer.getAv(video.getBv()));
+                pipe.newline();
             }
-        }
-        if (count > 0) {
-            tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyData.toString(), copySql)));
-//            copyInsertion(copyData.toString(), copySql);
-        }
-        log.info(tasks.size() + " tasks in Video table");
-        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        });
+        log.info(rows + " rows in Video table");
         String createVideoTableConstraint = """
                 ALTER TABLE Video ALTER COLUMN title SET NOT NULL;
                 ALTER TABLE Video ALTER COLUMN owner SET NOT NULL;
@@ -429,15 +345,11 @@ public class AsyncInitTable {
                 CREATE INDEX VideoPublicTimeIndex ON Video(public_time);
                 """;
         jdbcTemplate.execute(createVideoTableConstraint);
+        if (VideoKeys.AV)
+            jdbcTemplate.execute("ALTER TABLE Video ALTER COLUMN av SET NOT NULL; ALTER TABLE Video ADD UNIQUE (av);");
         log.info("Finish initializing Video table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initCountVideoTableAsync(List<VideoRecord> videoRecords, List<DanmuRecord> danmuRecords) {
-        return CompletableFuture.runAsync(() -> initCountVideoTable(videoRecords, danmuRecords));
-    }
-
     public void initCountVideoTable(List<VideoRecord> videoRecords, List<DanmuRecord> danmuRecords) {
         String createCountVideoTable = String.format("""
                 CREATE TABLE IF NOT EXISTS CountVideo(
@@ -453,54 +365,33 @@ public class AsyncInitTable {
                 """, MAX_BV_LENGTH);
         jdbcTemplate.execute(createCountVideoTable);
         String copySql = "COPY CountVideo(bv, like_count, coin_count, fav_count, view_count, view_rate, danmu_count, score) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t')";
-        StringBuilder copyData = new StringBuilder();
-        List<CompletableFuture<Void>> tasks = new ArrayList<>();
-        int count = 0;
         Map<String, Long> danmuCounts = danmuRecords.stream()
                 .collect(Collectors.groupingBy(DanmuRecord::getBv, Collectors.counting()));
-        for (VideoRecord video : videoRecords) {
-            int likeCount = video.getLike().length;
-            int coinCount = video.getCoin().length;
-            int favCount = video.getFavorite().length;
-            int viewCount = video.getViewerMids().length;
-            float[] viewTimes = video.getViewTime();
-            double totalViewTime = 0;
-            for (float viewTime : viewTimes) {
-                totalViewTime += viewTime;
-            }
-            double viewRate = totalViewTime / video.getDuration();
-            int danmuCount = danmuCounts.getOrDefault(video.getBv(), 0L).intValue();
-            double score = 0;
-            if (viewCount != 0) {
-                score += Math.min(1, likeCount / (double) viewCount);
-                score += Math.min(1, coinCount / (double) viewCount);
-                score += Math.min(1, favCount / (double) viewCount);
-                score += danmuCount / (double) viewCount;
-                score += viewRate / (double) viewCount;
-            }
-            copyData.append(video.getBv()).append('\t')
-                    .append(likeCount).append('\t')
-                    .append(coinCount).append('\t')
-                    .append(favCount).append('\t')
-                    .append(viewCount).append('\t')
-                    .append(viewRate).append('\t')
-                    .append(danmuCount).append('\t')
-                    .append(score).append('\n');
-            count++;
-            if (count >= NORMAL_BATCH_SIZE) {
-                String copyDataSnapshot = copyData.toString();
-                tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyDataSnapshot, copySql)));
-//                copyInsertion(copyData.toString(), copySql);
-                copyData.setLength(0);
-                count = 0;
+        long rows = copyRanges(copySql, videoRecords.size(), (pipe, from, to) -> {
+            for (VideoRecord video : videoRecords.subList(from, to)) {
+                int likeCount = video.getLike().length;
+                int coinCount = video.getCoin().length;
+                int favCount = video.getFavorite().length;
+                int viewCount = video.getViewerMids().length;
+                float[] viewTimes = video.getViewTime();
+                double totalViewTime = 0;
+                for (float viewTime : viewTimes) {
+                    totalViewTime += viewTime;
+                }
+                double viewRate = totalViewTime / video.getDuration();
+                int danmuCount = danmuCounts.getOrDefault(video.getBv(), 0L).intValue();
+                double score = VideoStats.score(likeCount, coinCount, favCount, viewCount, viewRate, danmuCount);
+                pipe.text(video.getBv()).tab()
+                        .text(likeCount).tab()
+                        .text(coinCount).tab()
+                        .text(favCount).tab()
+                        .text(viewCount).tab()
+                        .text(viewRate).tab()
+                        .text(danmuCount).tab()
+                        .text(score).newline();
             }
-        }
-        if (count > 0) {
-            tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyData.toString(), copySql)));
-//            copyInsertion(copyData.toString(), copySql);
-        }
-        log.info(tasks.size() + " tasks in CountVideo table");
-        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        });
+        log.info(rows + " rows in CountVideo table");
         String createCountVideoTableConstraint = """
                 ALTER TABLE CountVideo ALTER COLUMN like_count SET NOT NULL;
                 ALTER TABLE CountVideo ALTER COLUMN coin_count SET NOT NULL;
@@ -542,194 +433,82 @@ public class AsyncInitTable {
         log.info("Finish initializing CountVideo table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> createLikeVideoConstraintAsync() {
-        return CompletableFuture.runAsync(() -> setVideoConstraint("Like"));
-    }
-
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initLikeVideoTableAsync(List<VideoRecord> VideoRecords) {
-        return CompletableFuture.runAsync(() -> initLikeVideoTable(VideoRecords));
-    }
-
     @SuppressWarnings("DuplicatedCode")
     public void initLikeVideoTable(List<VideoRecord> VideoRecords) {
-        String createLikeVideoTable = String.format("""
-                CREATE TABLE IF NOT EXISTS LikeVideo(
-                    mid BIGINT,
-                    bv CHAR(%d)
-                ) PARTITION BY HASH (mid);
-                CREATE TABLE LikeVideo_1 PARTITION OF LikeVideo FOR VALUES WITH (MODULUS 4, REMAINDER 0);
-                CREATE TABLE LikeVideo_2 PARTITION OF LikeVideo FOR VALUES WITH (MODULUS 4, REMAINDER 1);
-                CREATE TABLE LikeVideo_3 PARTITION OF LikeVideo FOR VALUES WITH (MODULUS 4, REMAINDER 2);
-                CREATE TABLE LikeVideo_4 PARTITION OF LikeVideo FOR VALUES WITH (MODULUS 4, REMAINDER 3);
-                """, MAX_BV_LENGTH);
-        jdbcTemplate.execute(createLikeVideoTable);
-        String copySql = "COPY LikeVideo(mid, bv) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t')";
-        StringBuilder copyData = new StringBuilder();
-        List<CompletableFuture<Void>> tasks = new ArrayList<>();
-        int count = 0;
-        for (VideoRecord video : VideoRecords) {
-            String bv = video.getBv();
-            for (long mid : video.getLike()) {
-                copyData.append(mid).append('\t')
-                        .append(bv).append('\n');
-                count++;
-                if (count >= BIG_BATCH_SIZE) {
-                    String copyDataSnapshot = copyData.toString();
-                    tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyDataSnapshot, copySql)));
-//                    copyInsertion(copyData.toString(), copySql);
-                    copyData.setLength(0);
-                    count = 0;
-                }
+        Partitioning partitioning = Partitioning.of("LikeVideo", VideoRecords.stream().mapToLong(video -> video.getLike().length).sum());
+        jdbcTemplate.execute(partitioning.createTable(String.format("mid BIGINT, %s %s", VideoKeys.COLUMN, VideoKeys.TYPE), "mid", VideoKeys.COLUMN));
+        partitionings.put(partitioning.getTable(), partitioning);
+        long[] avs = videoAvs(VideoRecords);
+        long rows = copyPartitions(partitioning, "mid, " + VideoKeys.COLUMN, sink -> {
+            for (int i = 0; i < VideoRecords.size(); i++) {
+                long[] mids = VideoRecords.get(i).getLike();
+                for (int j = 0; j < mids.length; j++)
+                    sink.accept(mids[j], i, j);
             }
-        }
-        if (count > 0) {
-            tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyData.toString(), copySql)));
-//            copyInsertion(copyData.toString(), copySql);
-        }
-        log.info(tasks.size() + " tasks in LikeVideo table");
-        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        }, (pipe, record, element) -> {
+            VideoRecord video = VideoRecords.get(record);
+            videoKey(pipe.row(2).int8(video.getLike()[element]), video, avs, record);
+        });
+        log.info(rows + " rows in LikeVideo table");
         setTriggers("like", "LikeVideo");
         log.info("Finish initializing LikeVideo table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> createCoinVideoConstraintAsync() {
-        return CompletableFuture.runAsync(() -> setVideoConstraint("Coin"));
-    }
-
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initCoinVideoTableAsync(List<VideoRecord> VideoRecords) {
-        return CompletableFuture.runAsync(() -> initCoinVideoTable(VideoRecords));
-    }
-
     @SuppressWarnings("DuplicatedCode")
     public void initCoinVideoTable(List<VideoRecord> VideoRecords) {
-        String createCoinVideoTable = String.format("""
-                CREATE TABLE IF NOT EXISTS CoinVideo(
-                    mid BIGINT,
-                    bv CHAR(%d)
-                ) PARTITION BY HASH (mid);
-                CREATE TABLE CoinVideo_1 PARTITION OF CoinVideo FOR VALUES WITH (MODULUS 4, REMAINDER 0);
-                CREATE TABLE CoinVideo_2 PARTITION OF CoinVideo FOR VALUES WITH (MODULUS 4, REMAINDER 1);
-                CREATE TABLE CoinVideo_3 PARTITION OF CoinVideo FOR VALUES WITH (MODULUS 4, REMAINDER 2);
-                CREATE TABLE CoinVideo_4 PARTITION OF CoinVideo FOR VALUES WITH (MODULUS 4, REMAINDER 3);
-                """, MAX_BV_LENGTH);
-        jdbcTemplate.execute(createCoinVideoTable);
-        String copySql = "COPY CoinVideo(mid, bv) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t')";
-        StringBuilder copyData = new StringBuilder();
-        List<CompletableFuture<Void>> tasks = new ArrayList<>();
-        int count = 0;
-        for (VideoRecord video : VideoRecords) {
-            String bv = video.getBv();
-            for (long mid : video.getCoin()) {
-                copyData.append(mid).append('\t')
-                        .append(bv).append('\n');
-                count++;
-                if (count >= BIG_BATCH_SIZE) {
-                    String copyDataSnapshot = copyData.toString();
-                    tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyDataSnapshot, copySql)));
-//                    copyInsertion(copyData.toString(), copySql);
-                    copyData.setLength(0);
-                    count = 0;
-                }
+        Partitioning partitioning = Partitioning.of("CoinVideo", VideoRecords.stream().mapToLong(video -> video.getCoin().length).sum());
+        jdbcTemplate.execute(partitioning.createTable(String.format("mid BIGINT, %s %s", VideoKeys.COLUMN, VideoKeys.TYPE), "mid", VideoKeys.COLUMN));
+        partitionings.put(partitioning.getTable(), partitioning);
+        long[] avs = videoAvs(VideoRecords);
+        long rows = copyPartitions(partitioning, "mid, " + VideoKeys.COLUMN, sink -> {
+            for (int i = 0; i < VideoRecords.size(); i++) {
+                long[] mids = VideoRecords.get(i).getCoin();
+                for (int j = 0; j < mids.length; j++)
+                    sink.accept(mids[j], i, j);
             }
-        }
-        if (count > 0) {
-            tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyData.toString(), copySql)));
-//            copyInsertion(copyData.toString(), copySql);
-        }
-        log.info(tasks.size() + " tasks in CoinVideo table");
-        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        }, (pipe, record, element) -> {
+            VideoRecord video = VideoRecords.get(record);
+            videoKey(pipe.row(2).int8(video.getCoin()[element]), video, avs, record);
+        });
+        log.info(rows + " rows in CoinVideo table");
         setTriggers("coin", "CoinVideo");
         log.info("Finish initializing CoinVideo table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> createFavVideoConstraintAsync() {
-        return CompletableFuture.runAsync(() -> setVideoConstraint("Fav"));
-    }
-
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initFavVideoTableAsync(List<VideoRecord> videoRecords) {
-        return CompletableFuture.runAsync(() -> initFavVideoTable(videoRecords));
-    }
-
     @SuppressWarnings("DuplicatedCode")
     public void initFavVideoTable(List<VideoRecord> videoRecords) {
-        String createFavVideoTable = String.format("""
-                CREATE TABLE IF NOT EXISTS FavVideo(
-                    mid BIGINT,
-                    bv CHAR(%d)
-                ) PARTITION BY HASH (mid);
-                CREATE TABLE FavVideo_1 PARTITION OF FavVideo FOR VALUES WITH (MODULUS 4, REMAINDER 0);
-                CREATE TABLE FavVideo_2 PARTITION OF FavVideo FOR VALUES WITH (MODULUS 4, REMAINDER 1);
-                CREATE TABLE FavVideo_3 PARTITION OF FavVideo FOR VALUES WITH (MODULUS 4, REMAINDER 2);
-                CREATE TABLE FavVideo_4 PARTITION OF FavVideo FOR VALUES WITH (MODULUS 4, REMAINDER 3);
-                """, MAX_BV_LENGTH);
-        jdbcTemplate.execute(createFavVideoTable);
-        String copySql = "COPY FavVideo(mid, bv) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t')";
-        StringBuilder copyData = new StringBuilder();
-        List<CompletableFuture<Void>> tasks = new ArrayList<>();
-        int count = 0;
-        for (VideoRecord video : videoRecords) {
-            String bv = video.getBv();
-            for (long mid : video.getFavorite()) {
-                copyData.append(mid).append('\t')
-                        .append(bv).append('\n');
-                count++;
-                if (count >= BIG_BATCH_SIZE) {
-                    String copyDataSnapshot = copyData.toString();
-                    tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyDataSnapshot, copySql)));
-//                    copyInsertion(copyData.toString(), copySql);
-                    copyData.setLength(0);
-                    count = 0;
-                }
+        Partitioning partitioning = Partitioning.of("FavVideo", videoRecords.stream().mapToLong(video -> video.getFavorite().length).sum());
+        jdbcTemplate.execute(partitioning.createTable(String.format("mid BIGINT, %s %s", VideoKeys.COLUMN, VideoKeys.TYPE), "mid", VideoKeys.COLUMN));
+        partitionings.put(partitioning.getTable(), partitioning);
+        long[] avs = videoAvs(videoRecords);
+        long rows = copyPartitions(partitioning, "mid, " + VideoKeys.COLUMN, sink -> {
+            for (int i = 0; i < videoRecords.size(); i++) {
+                long[] mids = videoRecords.get(i).getFavorite();
+                for (int j = 0; j < mids.length; j++)
+                    sink.accept(mids[j], i, j);
             }
-        }
-        if (count > 0) {
-            tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyData.toString(), copySql)));
-//            copyInsertion(copyData.toString(), copySql);
-        }
-        log.info(tasks.size() + " tasks in FavVideo table");
-        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        }, (pipe, record, element) -> {
+            VideoRecord video = videoRecords.get(record);
+            videoKey(pipe.row(2).int8(video.getFavorite()[element]), video, avs, record);
+        });
+        log.info(rows + " rows in FavVideo table");
         setTriggers("fav", "FavVideo");
         log.info("Finish initializing FavVideo table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> createViewVideoConstraintAsync() {
-        return CompletableFuture.runAsync(this::createViewVideoConstraint);
-    }
-
     public void createViewVideoConstraint() {
+        jdbcTemplate.execute("ALTER TABLE ViewVideo ALTER COLUMN view_time SET NOT NULL;");
+        createPartitionedIndex("ViewVideo", "ViewVideo_pkey", "mid, " + VideoKeys.COLUMN, true);
         String createViewVideoTableConstraint = """
-                ALTER TABLE ViewVideo ALTER COLUMN view_time SET NOT NULL;
-                                
-                ALTER TABLE ViewVideo ADD PRIMARY KEY (mid, bv);
                 ALTER TABLE ViewVideo ADD FOREIGN KEY (mid) REFERENCES UserAuth(mid) ON DELETE CASCADE;
-                ALTER TABLE ViewVideo ADD FOREIGN KEY (bv) REFERENCES Video(bv) ON DELETE CASCADE;
-                                
-                CREATE INDEX ViewVideoBvIndex ON ViewVideo(bv);
-                """;
+                ALTER TABLE ViewVideo ADD FOREIGN KEY (${KEY}) REFERENCES Video(${KEY}) ON DELETE CASCADE;
+                """
+                .replace("${KEY}", VideoKeys.COLUMN);
         jdbcTemplate.execute(createViewVideoTableConstraint);
+        createPartitionedIndex("ViewVideo", "ViewVideoBvIndex", VideoKeys.COLUMN, false);
         log.info("Finish Constraint ViewVideo table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initViewVideoTableAsync(List<VideoRecord> videoRecords) {
-        return CompletableFuture.runAsync(() -> initViewVideoTable(videoRecords));
-    }
-
     public void initViewVideoTable(List<VideoRecord> videoRecords) {
         String config = """
                 SET work_mem = '256MB';
@@ -740,47 +519,22 @@ public class AsyncInitTable {
                 SET max_parallel_workers_per_gather = 8;
                 """;
         jdbcTemplate.execute(config);
-        String createViewVideoTable = String.format("""
-                CREATE TABLE IF NOT EXISTS ViewVideo(
-                    mid BIGINT,
-                    bv CHAR(%d),
-                    view_time REAL
-                ) PARTITION BY HASH (mid);
-                CREATE TABLE ViewVideo_1 PARTITION OF ViewVideo FOR VALUES WITH (MODULUS 4, REMAINDER 0);
-                CREATE TABLE ViewVideo_2 PARTITION OF ViewVideo FOR VALUES WITH (MODULUS 4, REMAINDER 1);
-                CREATE TABLE ViewVideo_3 PARTITION OF ViewVideo FOR VALUES WITH (MODULUS 4, REMAINDER 2);
-                CREATE TABLE ViewVideo_4 PARTITION OF ViewVideo FOR VALUES WITH (MODULUS 4, REMAINDER 3);
-                """, MAX_BV_LENGTH);
-        jdbcTemplate.execute(createViewVideoTable);
-        String copySql = "COPY ViewVideo(mid, bv, view_time) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t')";
-        StringBuilder copyData = new StringBuilder();
-        List<CompletableFuture<Void>> tasks = new ArrayList<>();
-        int count = 0;
-        for (VideoRecord video : videoRecords) {
-            long[] viewerMids = video.getViewerMids();
-            String bv = video.getBv();
-            float[] viewTimes = video.getViewTime();
-            int length = video.getViewerMids().length;
-            for (int i = 0; i < length; i++) {
-                copyData.append(viewerMids[i]).append('\t')
-                        .append(bv).append('\t')
-                        .append(viewTimes[i]).append('\n');
-                count++;
-                if (count >= BIG_BATCH_SIZE) {
-                    String copyDataSnapshot = copyData.toString();
-                    tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyDataSnapshot, copySql)));
-//                    copyInsertion(copyData.toString(), copySql);
-                    copyData.setLength(0);
-                    count = 0;
-                }
+        Partitioning partitioning = Partitioning.of("ViewVideo", videoRecords.stream().mapToLong(video -> video.getViewerMids().length).sum());
+        jdbcTemplate.execute(partitioning.createTable(String.format("mid BIGINT, %s %s, view_time REAL", VideoKeys.COLUMN, VideoKeys.TYPE), "mid", VideoKeys.COLUMN));
+        partitionings.put(partitioning.getTable(), partitioning);
+        long[] avs = videoAvs(videoRecords);
+        long rows = copyPartitions(partitioning, "mid, " + VideoKeys.COLUMN + ", view_time", sink -> {
+            for (int i = 0; i < videoRecords.size(); i++) {
+                long[] viewerMids = videoRecords.get(i).getViewerMids();
+                for (int j = 0; j < viewerMids.length; j++)
+                    sink.accept(viewerMids[j], i, j);
             }
-        }
-        if (count > 0) {
-            tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyData.toString(), copySql)));
-//            copyInsertion(copyData.toString(), copySql);
-        }
-        log.info(tasks.size() + " tasks in ViewVideo table");
-        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        }, (pipe, record, element) -> {
+            VideoRecord video = videoRecords.get(record);
+            videoKey(pipe.row(3).int8(video.getViewerMids()[element]), video, avs, record)
+                    .float4(video.getViewTime()[element]);
+        });
+        log.info(rows + " rows in ViewVideo table");
         createViewVideoConstraint();
         String setTriggers = """
                 CREATE OR REPLACE FUNCTION increase_view_count()
@@ -788,11 +542,11 @@ public class AsyncInitTable {
                 DECLARE
                     video_duration REAL;
                 BEGIN
-                    SELECT duration INTO video_duration FROM Video WHERE bv = NEW.bv;
+                    SELECT duration INTO video_duration FROM Video WHERE bv = ${NEW_BV};
                     UPDATE CountVideo
                     SET view_count = view_count + 1,
                         view_rate = view_rate + NEW.view_time / video_duration
-                    WHERE bv = NEW.bv;
+                    WHERE bv = ${NEW_BV};
                     RETURN NEW;
                 END;
                 $$ LANGUAGE plpgsql;
@@ -807,11 +561,11 @@ public class AsyncInitTable {
                 DECLARE
                     video_duration REAL;
                 BEGIN
-                    SELECT duration INTO video_duration FROM Video WHERE bv = OLD.bv;
+                    SELECT duration INTO video_duration FROM Video WHERE bv = ${OLD_BV};
                     UPDATE CountVideo
                     SET view_count = view_count - 1,
                         view_rate = view_rate - OLD.view_time / video_duration
-                    WHERE bv = OLD.bv;
+                    WHERE bv = ${OLD_BV};
                     RETURN OLD;
                 END;
                 $$ LANGUAGE plpgsql;
@@ -820,17 +574,13 @@ public class AsyncInitTable {
                 AFTER DELETE ON ViewVideo
                 FOR EACH ROW
                 EXECUTE PROCEDURE decrease_view_count();
-                """;
+                """
+                .replace("${NEW_BV}", triggerBv("NEW"))
+                .replace("${OLD_BV}", triggerBv("OLD"));
 //        jdbcTemplate.execute(setTriggers);
         log.info("Finish initializing ViewVideo table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> createDanmuConstraintAsync() {
-        return CompletableFuture.runAsync(this::createDanmuConstraint);
-    }
-
     public void createDanmuConstraint() {
         String createDanmuTableConstraint = """
                 SELECT setval(pg_get_serial_sequence('Danmu', 'id'), (SELECT MAX(id) FROM Danmu));
@@ -852,12 +602,6 @@ public class AsyncInitTable {
         log.info("Finish Constraint Danmu table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initDanmuTableAsync(List<DanmuRecord> danmuRecords) {
-        return CompletableFuture.runAsync(() -> initDanmuTable(danmuRecords));
-    }
-
     public void initDanmuTable(List<DanmuRecord> danmuRecords) {
         String createDanmuTable = String.format("""
                 CREATE TABLE IF NOT EXISTS Danmu(
@@ -871,117 +615,233 @@ public class AsyncInitTable {
                 """, MAX_BV_LENGTH, MAX_CONTENT_LENGTH);
         jdbcTemplate.execute(createDanmuTable);
         String copySql = "COPY Danmu(id, bv, mid, dis_time, content, post_time) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t', QUOTE E'\\x07')";
-        StringBuilder copyData = new StringBuilder();
-        List<CompletableFuture<Void>> tasks = new ArrayList<>();
-        int count = 0, danmuId = 0;
-        for (DanmuRecord danmu : danmuRecords) {
-            danmuId++;
-            if (escape(danmu.getContent()).length() > MAX_CONTENT_LENGTH) {
-                log.info("Danmu id: {}", danmuId);
-                log.info("Content's length: {}", escape(danmu.getContent()).length());
-                log.error("Content is too long: {}", danmu.getContent());
-                throw new IllegalArgumentException("Content is too long.");
-            }
-            copyData.append(danmuId).append('\t')
-                    .append(danmu.getBv()).append('\t')
-                    .append(danmu.getMid()).append('\t')
-                    .append(danmu.getTime()).append('\t')
-                    .append(escape(danmu.getContent())).append('\t')
-                    .append(danmu.getPostTime()).append('\n');
-            count++;
-            if (count >= NORMAL_BATCH_SIZE) {
-                String copyDataSnapshot = copyData.toString();
-                tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyDataSnapshot, copySql)));
-//                copyInsertion(copyData.toString(), copySql);
-                copyData.setLength(0);
-                count = 0;
+        long rows = copyRanges(copySql, danmuRecords.size(), (pipe, from, to) -> {
+            // danmu ids are the 1-based record positions
+            long danmuId = from;
+            for (DanmuRecord danmu : danmuRecords.subList(from, to)) {
+                danmuId++;
+                String escapeContent = escape(danmu.getContent());
+                if (escapeContent.length() > MAX_CONTENT_LENGTH) {
+                    log.info("Danmu id: {}", danmuId);
+                    log.info("Content's length: {}", escapeContent.length());
+                    log.error("Content is too long: {}", danmu.getContent());
+                    throw new IllegalArgumentException("Content is too long.");
+                }
+                pipe.text(danmuId).tab()
+                        .text(danmu.getBv()).tab()
+                        .text(danmu.getMid()).tab()
+                        .text(danmu.getTime()).tab()
+                        .text(escapeContent).tab()
+                        .text(danmu.getPostTime()).newline();
             }
-        }
-        if (count > 0) {
-            tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyData.toString(), copySql)));
-//            copyInsertion(copyData.toString(), copySql);
-        }
-        log.info(tasks.size() + " tasks in Danmu table");
-        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        });
+        log.info(rows + " rows in Danmu table");
         setTriggers("danmu", "Danmu");
         log.info("Finish initializing Danmu table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> createLikeDanmuConstraintAsync() {
-        return CompletableFuture.runAsync(this::createLikeDanmuConstraint);
-    }
-
     public void createLikeDanmuConstraint() {
+        createPartitionedIndex("LikeDanmu", "LikeDanmu_pkey", "mid, id", true);
         String createLikeDanmuTableConstraint = """
-                ALTER TABLE LikeDanmu ADD PRIMARY KEY (mid, id);
                 ALTER TABLE LikeDanmu ADD FOREIGN KEY (mid) REFERENCES UserAuth(mid) ON DELETE CASCADE;
                 ALTER TABLE LikeDanmu ADD FOREIGN KEY (id) REFERENCES Danmu(id) ON DELETE CASCADE;
-                                
-                CREATE INDEX LikeDanmuIdIndex ON LikeDanmu(id);
                 """;
         jdbcTemplate.execute(createLikeDanmuTableConstraint);
+        createPartitionedIndex("LikeDanmu", "LikeDanmuIdIndex", "id", false);
         log.info("Finish Constraint LikeDanmu table");
     }
 
-    @Async("taskExecutor")
-    @Transactional(propagation = Propagation.REQUIRES_NEW)
-    public CompletableFuture<Void> initLikeDanmuTableAsync(List<DanmuRecord> danmuRecords) {
-        return CompletableFuture.runAsync(() -> initLikeDanmuTable(danmuRecords));
-    }
-
     @SuppressWarnings("DuplicatedCode")
     public void initLikeDanmuTable(List<DanmuRecord> danmuRecords) {
-        String createLikeDanmuTable = """
-                CREATE TABLE IF NOT EXISTS LikeDanmu(
-                    mid BIGINT,
-                    id BIGINT
-                ) PARTITION BY HASH (id);
-                CREATE TABLE LikeDanmu_1 PARTITION OF LikeDanmu FOR VALUES WITH (MODULUS 4, REMAINDER 0);
-                CREATE TABLE LikeDanmu_2 PARTITION OF LikeDanmu FOR VALUES WITH (MODULUS 4, REMAINDER 1);
-                CREATE TABLE LikeDanmu_3 PARTITION OF LikeDanmu FOR VALUES WITH (MODULUS 4, REMAINDER 2);
-                CREATE TABLE LikeDanmu_4 PARTITION OF LikeDanmu FOR VALUES WITH (MODULUS 4, REMAINDER 3);
-                """;
-        jdbcTemplate.execute(createLikeDanmuTable);
-        String copySql = "COPY LikeDanmu(mid, id) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t')";
-        StringBuilder copyData = new StringBuilder();
-        List<CompletableFuture<Void>> tasks = new ArrayList<>();
-        int count = 0, danmuID = 0;
-        for (DanmuRecord danmu : danmuRecords) {
-            danmuID++;
-            for (long mid : danmu.getLikedBy()) {
-                copyData.append(mid).append('\t')
-                        .append(danmuID).append('\n');
-                count++;
-                if (count >= BIG_BATCH_SIZE) {
-                    String copyDataSnapshot = copyData.toString();
-                    tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyDataSnapshot, copySql)));
-//                    copyInsertion(copyData.toString(), copySql);
-                    copyData.setLength(0);
-                    count = 0;
-                }
+        Partitioning partitioning = Partitioning.of("LikeDanmu", danmuRecords.stream().mapToLong(danmu -> danmu.getLikedBy().length).sum());
+        jdbcTemplate.execute(partitioning.createTable("mid BIGINT, id BIGINT", "id", "mid"));
+        partitionings.put(partitioning.getTable(), partitioning);
+        // danmu ids are the 1-based record positions
+        long rows = copyPartitions(partitioning, "mid, id", sink -> {
+            for (int i = 0; i < danmuRecords.size(); i++) {
+                int likes = danmuRecords.get(i).getLikedBy().length;
+                for (int j = 0; j < likes; j++)
+                    sink.accept(i + 1, i, j);
             }
-        }
-        if (count > 0) {
-            tasks.add(CompletableFuture.runAsync(() -> copyInsertion(copyData.toString(), copySql)));
-//            copyInsertion(copyData.toString(), copySql);
-        }
-        log.info(tasks.size() + " tasks in LikeDanmu table");
-        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        }, (pipe, record, element) ->
+                pipe.row(2).int8(danmuRecords.get(record).getLikedBy()[element]).int8(record + 1L));
+        log.info(rows + " rows in LikeDanmu table");
         log.info("Finish initializing LikeDanmu table");
     }
 
     //    @Transactional(propagation = Propagation.MANDATORY)
-    public void copyInsertion(String copyData, String copySql) {
-        jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
-            var copyManager = new CopyManager(connection.unwrap(BaseConnection.class));
-            try (Reader reader = new StringReader(copyData)) {
-                return copyManager.copyIn(copySql, reader);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+    public long copyStream(String copySql, Consumer<CopyPipe> producer) {
+        return CopyPipe.stream(jdbcTemplate, copySql, producer);
+    }
+
+    /**
+     * Produces the rows of {@code records[from, to)} into a pipe.
+     */
+    @FunctionalInterface
+    public interface RangeProducer {
+        void accept(CopyPipe pipe, int from, int to);
+    }
+
+    /**
+     * Copies {@code count} records on up to {@link io.sustc.service.DatabaseService#COPY_STREAMS} connections at once,
+     * each pipe streaming one contiguous range of at least {@link io.sustc.service.DatabaseService#BIG_BATCH_SIZE} records.
+     * A range whose producer throws cancels the copies of all ranges.
+     */
+    public long copyRanges(String copySql, int count, RangeProducer producer) {
+        int streams = Math.max(1, Math.min(COPY_STREAMS, count / BIG_BATCH_SIZE));
+        if (streams == 1)
+            return copyStream(copySql, pipe -> producer.accept(pipe, 0, count));
+        List<Consumer<CopyPipe>> ranges = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            int from = (int) ((long) count * i / streams);
+            int to = (int) ((long) count * (i + 1) / streams);
+            ranges.add(pipe -> producer.accept(pipe, from, to));
+        }
+        return CopyPipe.streamAll(jdbcTemplate, copySql, false, ranges, partitionExecutor);
+    }
+
+    /**
+     * Copies a relation table with typed rows, in PGCOPY binary format when {@link #binaryCopy} is set.
+     */
+    public long copyRelation(String table, String columns, Consumer<CopyPipe> producer) {
+        boolean binary = binaryCopy;
+        String copySql = binary
+                ? String.format("COPY %s(%s) FROM STDIN WITH (FORMAT binary)", table, columns)
+                : String.format("COPY %s(%s) FROM STDIN WITH (FORMAT csv, DELIMITER E'\\t')", table, columns);
+        return CopyPipe.stream(jdbcTemplate, copySql, binary, producer);
+    }
+
+    /**
+     * Copies the like rows of the videos into an unlogged scratch table in the current format, then drops it.
+     *
+     * @return the time the copy took in ms
+     */
+    public long timeLikeVideoCopy(List<VideoRecord> videoRecords) {
+        jdbcTemplate.execute(String.format("DROP TABLE IF EXISTS LikeVideoCopyTrial; CREATE UNLOGGED TABLE LikeVideoCopyTrial(mid BIGINT, %s %s);",
+                VideoKeys.COLUMN, VideoKeys.TYPE));
+        try {
+            long[] avs = videoAvs(videoRecords);
+            long startTime = System.currentTimeMillis();
+            long rows = copyRelation("LikeVideoCopyTrial", "mid, " + VideoKeys.COLUMN, pipe -> {
+                for (int i = 0; i < videoRecords.size(); i++) {
+                    VideoRecord video = videoRecords.get(i);
+                    for (long mid : video.getLike())
+                        videoKey(pipe.row(2).int8(mid), video, avs, i);
+                }
+            });
+            long elapsed = System.currentTimeMillis() - startTime;
+            log.info("Copied {} like rows in {} format in {} ms", rows, binaryCopy ? "binary" : "text", elapsed);
+            return elapsed;
+        } finally {
+            jdbcTemplate.execute("DROP TABLE IF EXISTS LikeVideoCopyTrial");
+        }
+    }
+
+    /**
+     * Receives every row of a relation table once, as its partition key and the position of the row in the
+     * imported records: the index of the record, and of the element within it.
+     */
+    @FunctionalInterface
+    public interface RowSink {
+        void accept(long partitionKey, int record, int element);
+    }
+
+    /**
+     * Encodes the row at a position handed to a {@link RowSink}.
+     */
+    @FunctionalInterface
+    public interface RowWriter {
+        void write(CopyPipe pipe, int record, int element);
+    }
+
+    /**
+     * Copies every partition of a relation table on its own connection.
+     * <p>
+     * {@code rows} walks the records once, and the position of every row is bucketed by the partition its key
+     * is routed to. Each bucket is then streamed through {@code writer}, so no partition re-reads the records.
+     * A single partition is written straight from the walk.
+     */
+    public long copyPartitions(Partitioning partitioning, String columns, Consumer<RowSink> rows, RowWriter writer) {
+        String table = partitioning.getTable();
+        int partitions = partitioning.getPartitions();
+        if (partitions == 1)
+            return copyRelation(table, columns, pipe -> rows.accept((key, record, element) -> writer.write(pipe, record, element)));
+        long startTime = System.currentTimeMillis();
+        long[][] buckets = new long[partitions][];
+        int[] sizes = new int[partitions];
+        rows.accept((key, record, element) -> {
+            int partition = partitioning.partition(key);
+            long[] bucket = buckets[partition];
+            if (bucket == null)
+                bucket = buckets[partition] = new long[1024];
+            else if (sizes[partition] == bucket.length)
+                bucket = buckets[partition] = Arrays.copyOf(bucket, bucket.length * 2);
+            bucket[sizes[partition]++] = ((long) record << 32) | (element & 0xFFFFFFFFL);
         });
+        log.info("Bucketed rows of {} table in {} ms", table, System.currentTimeMillis() - startTime);
+        List<CompletableFuture<Long>> copies = new ArrayList<>();
+        for (int i = 0; i < partitions; i++) {
+            long[] bucket = buckets[i];
+            int size = sizes[i];
+            if (size == 0)
+                continue;
+            copies.add(CompletableFuture.supplyAsync(() -> copyRelation(table, columns, pipe -> {
+                for (int j = 0; j < size; j++)
+                    writer.write(pipe, (int) (bucket[j] >>> 32), (int) bucket[j]);
+            }), partitionExecutor));
+        }
+        log.info("Copying {} partitions of {} table", copies.size(), table);
+        return copies.stream().mapToLong(CompletableFuture::join).sum();
+    }
+
+    /**
+     * Creates a primary key or an index on a partitioned table.
+     * <p>
+     * With {@link io.sustc.service.DatabaseService#PARALLEL_PARTITION_INDEX} set, every leaf partition is indexed
+     * concurrently on its own connection, then an index created on the parent only attaches them, instead of
+     * Postgres building the partitions one after another in a single session.
+     */
+    public void createPartitionedIndex(String table, String name, String columns, boolean primaryKey) {
+        Partitioning partitioning = partitionings.get(table);
+        if (!PARALLEL_PARTITION_INDEX || partitioning == null) {
+            //noinspection SqlSourceToSinkFlow
+            jdbcTemplate.execute(indexSql(table, name, columns, primaryKey, false));
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        List<String> leaves = new ArrayList<>();
+        for (String partition : partitioning.partitionNames())
+            leaves.addAll(partitioning.subPartitionNames(partition));
+        CompletableFuture.allOf(leaves.stream()
+                .map(leaf -> CompletableFuture.runAsync(() -> jdbcTemplate.execute(
+                        indexSql(leaf, name + leaf.substring(table.length()), columns, primaryKey, false)
+                ), partitionExecutor))
+                .toArray(CompletableFuture[]::new)
+        ).join();
+        // bottom up: a primary key on a partitioned table needs its columns NOT NULL in every child, which an
+        // intermediate partition only gets from its own primary key
+        StringBuilder attach = new StringBuilder();
+        if (partitioning.getSubPartitions() > 1) {
+            for (String partition : partitioning.partitionNames()) {
+                String partitionIndex = name + partition.substring(table.length());
+                attach.append(indexSql(partition, partitionIndex, columns, primaryKey, true));
+                for (String leaf : partitioning.subPartitionNames(partition))
+                    attach.append(String.format("ALTER INDEX %s ATTACH PARTITION %s;\n", partitionIndex, name + leaf.substring(table.length())));
+            }
+        }
+        attach.append(indexSql(table, name, columns, primaryKey, true));
+        for (String partition : partitioning.partitionNames())
+            attach.append(String.format("ALTER INDEX %s ATTACH PARTITION %s;\n", name, name + partition.substring(table.length())));
+        //noinspection SqlSourceToSinkFlow
+        jdbcTemplate.execute(attach.toString());
+        log.info("Built {} on {} partitions of {} table in {} ms", name, leaves.size(), table, System.currentTimeMillis() - startTime);
+    }
+
+    private String indexSql(String table, String name, String columns, boolean primaryKey, boolean only) {
+        String target = only ? "ONLY " + table : table;
+        return primaryKey
+                ? String.format("ALTER TABLE %s ADD CONSTRAINT %s PRIMARY KEY (%s);\n", target, name, columns)
+                : String.format("CREATE INDEX %s ON %s (%s);\n", name, target, columns);
     }
 
     //    @Transactional(propagation = Propagation.MANDATORY)
@@ -992,7 +852,7 @@ public class AsyncInitTable {
                 BEGIN
                     UPDATE CountVideo
                     SET ${TYPE}_count = ${TYPE}_count + 1
-                    WHERE bv = NEW.bv;
+                    WHERE bv = ${NEW_BV};
                     RETURN NEW;
                 END;
                 $$ LANGUAGE plpgsql;
@@ -1007,7 +867,7 @@ public class AsyncInitTable {
                 BEGIN
                     UPDATE CountVideo
                     SET ${TYPE}_count = ${TYPE}_count - 1
-                    WHERE bv = OLD.bv;
+                    WHERE bv = ${OLD_BV};
                     RETURN OLD;
                 END;
                 $$ LANGUAGE plpgsql;
@@ -1018,29 +878,72 @@ public class AsyncInitTable {
                 EXECUTE PROCEDURE decrease_${TYPE}_count();
                 """
                 .replace("${TYPE}", type)
-                .replace("${TABLE}", table);
+                .replace("${TABLE}", table)
+                .replace("${NEW_BV}", triggerBv("NEW"))
+                .replace("${OLD_BV}", triggerBv("OLD"));
         //noinspection SqlSourceToSinkFlow
 //        jdbcTemplate.execute(setTriggers);
     }
 
     //    @Transactional(propagation = Propagation.MANDATORY)
     public void setVideoConstraint(String table) {
+        createPartitionedIndex(table + "Video", table + "Video_pkey", "mid, " + VideoKeys.COLUMN, true);
         String setVideoConstrain = """
-                ALTER TABLE ${TABLE}Video ADD PRIMARY KEY (mid, bv);
                 ALTER TABLE ${TABLE}Video ADD FOREIGN KEY (mid) REFERENCES UserAuth(mid)
                 ON DELETE CASCADE;
-                ALTER TABLE ${TABLE}Video ADD FOREIGN KEY (bv) REFERENCES Video(bv)
+                ALTER TABLE ${TABLE}Video ADD FOREIGN KEY (${KEY}) REFERENCES Video(${KEY})
                 ON DELETE CASCADE;
-                                
-                CREATE INDEX ${TABLE}VideoBvIndex ON ${TABLE}Video(bv);
                 """
-                .replace("${TABLE}", table);
+                .replace("${TABLE}", table)
+                .replace("${KEY}", VideoKeys.COLUMN);
         //noinspection SqlSourceToSinkFlow
         jdbcTemplate.execute(setVideoConstrain);
+        createPartitionedIndex(table + "Video", table + "VideoBvIndex", VideoKeys.COLUMN, false);
         log.info("Finish Constraint {}Video table", table);
     }
 
-    public long getAvCount() {
-        return transformer.getAvCount();
+    /**
+     * Returns the avs of the videos in {@code Av} mode, so they are converted once per video rather than once per row.
+     */
+    private long[] videoAvs(List<VideoRecord> videoRecords) {
+        if (!VideoKeys.AV)
+            return null;
+        long[] avs = new long[videoRecords.size()];
+        for (int i = 0; i < avs.length; i++)
+            avs[i] = videoKeys.av(videoRecords.get(i).getBv());
+        return avs;
+    }
+
+    private static CopyPipe videoKey(CopyPipe pipe, VideoRecord video, long[] avs, int record) {
+        return VideoKeys.AV ? pipe.int8(avs[record]) : pipe.bpchar(video.getBv());
+    }
+
+    /**
+     * The bv of the trigger row {@code NEW} or {@code OLD} of an engagement table.
+     */
+    private static String triggerBv(String row) {
+        return VideoKeys.AV
+                ? String.format("(SELECT bv FROM Video WHERE av = %s.av)", row)
+                : row + ".bv";
+    }
+
+    /**
+     * Logs the heap and index size of the video engagement tables, summed over their partitions, to compare
+     * the {@link io.sustc.service.DatabaseService#VIDEO_KEY} layouts.
+     */
+    public void logVideoRelationSizes() {
+        String sql = """
+                SELECT COALESCE(SUM(pg_table_size(relid)), 0) AS heap, COALESCE(SUM(pg_indexes_size(relid)), 0) AS indexes
+                FROM pg_partition_tree(?::regclass)
+                WHERE isleaf
+                """;
+        long totalHeap = 0, totalIndexes = 0;
+        for (String table : List.of("ViewVideo", "LikeVideo", "CoinVideo", "FavVideo")) {
+            long[] size = jdbcTemplate.queryForObject(sql, (rs, rowNum) -> new long[]{rs.getLong("heap"), rs.getLong("indexes")}, table);
+            totalHeap += size[0];
+            totalIndexes += size[1];
+            log.info("{} with {} keys: heap {} MB, indexes {} MB", table, VIDEO_KEY, size[0] >> 20, size[1] >> 20);
+        }
+        log.info("Video engagement tables with {} keys: heap {} MB, indexes {} MB", VIDEO_KEY, totalHeap >> 20, totalIndexes >> 20);
     }
 }
@@ -0,0 +1,207 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.AuthInfo;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.sustc.service.DatabaseService.AUTH_CACHE_SIZE;
+import static io.sustc.service.DatabaseService.AUTH_CACHE_TTL;
+
+/**
+ * Remembers credentials that passed verification, so a user who keeps calling the services is checked
+ * against UserAuth and Argon2 only once per {@link io.sustc.service.DatabaseService#AUTH_CACHE_TTL} ms.
+ * <p>
+ * An entry is keyed on the mid given by the caller and a SHA-256 digest of the password, QQ and WeChat,
+ * plaintext credentials are never kept. Only successful verifications are cached. Deleting a user drops
+ * every entry that resolved to the user, and the mid is remembered for one TTL so a verification that raced
+ * with the deletion, or ran before the queued delete reached the database, is not cached either.
+ * <p>
+ * Once {@link io.sustc.service.DatabaseService#AUTH_CACHE_SIZE} entries are cached, expired entries are
+ * dropped, and if that is not enough the eighth closest to expiry.
+ */
+@Slf4j
+public class AuthCache {
+    private static final long REPORT_INTERVAL = 10000;
+
+    private static class Entry {
+        final long mid;
+        final AuthInfo replacement;
+        final long expireTime;
+
+        Entry(long mid, AuthInfo replacement, long expireTime) {
+            this.mid = mid;
+            this.replacement = replacement;
+            this.expireTime = expireTime;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Long, Set<String>> keysByMid = new ConcurrentHashMap<>();
+    /**
+     * Deleted mids and when they were deleted.
+     */
+    private final Map<Long, Long> deleted = new ConcurrentHashMap<>();
+    private volatile long lastDeletedSweep = System.currentTimeMillis();
+
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+    @Getter
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile long lastReport = System.currentTimeMillis();
+
+    /**
+     * Returns whether {@code auth} passed verification recently. On a hit the mid resolved by a QQ or
+     * WeChat login is filled into {@code auth}, the same way a verification does.
+     */
+    public boolean verified(AuthInfo auth) {
+        String key = key(auth);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.expireTime < System.currentTimeMillis()) {
+            if (entry != null)
+                remove(key, entry);
+            misses.incrementAndGet();
+            report();
+            return false;
+        }
+        if (entry.replacement != null)
+            auth.replace(entry.replacement);
+        hits.incrementAndGet();
+        report();
+        return true;
+    }
+
+    /**
+     * Caches a verified credential.
+     *
+     * @param auth        the credential as the caller gave it, before any field is filled in
+     * @param mid         the user the credential belongs to
+     * @param replacement the data filled into {@code auth} on a hit, or {@code null}
+     */
+    public void put(AuthInfo auth, long mid, AuthInfo replacement) {
+        long now = System.currentTimeMillis();
+        if (isDeleted(mid, now))
+            return;
+        if (entries.size() >= AUTH_CACHE_SIZE)
+            evict(now);
+        String key = key(auth);
+        entries.put(key, new Entry(mid, replacement, now + AUTH_CACHE_TTL));
+        keysByMid.compute(mid, (k, keys) -> {
+            if (keys == null)
+                keys = ConcurrentHashMap.newKeySet();
+            keys.add(key);
+            return keys;
+        });
+        // the user may have been deleted while the credential was being verified
+        if (isDeleted(mid, now))
+            invalidate(mid);
+    }
+
+    private boolean isDeleted(long mid, long now) {
+        Long deleteTime = deleted.get(mid);
+        return deleteTime != null && now - deleteTime < AUTH_CACHE_TTL;
+    }
+
+    private synchronized void evict(long now) {
+        if (entries.size() < AUTH_CACHE_SIZE)
+            return;
+        entries.forEach((key, entry) -> {
+            if (entry.expireTime < now)
+                remove(key, entry);
+        });
+        if (entries.size() < AUTH_CACHE_SIZE)
+            return;
+        // every entry lives for the same TTL, so the closest to expiry are the least recently verified
+        long[] expireTimes = entries.values().stream().mapToLong(entry -> entry.expireTime).sorted().toArray();
+        if (expireTimes.length == 0)
+            return;
+        long threshold = expireTimes[Math.min(expireTimes.length - 1, Math.max(1, AUTH_CACHE_SIZE / 8) - 1)];
+        entries.forEach((key, entry) -> {
+            if (entry.expireTime <= threshold) {
+                remove(key, entry);
+                evictions.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Forgets every credential of a deleted user.
+     */
+    public void invalidate(long mid) {
+        long now = System.currentTimeMillis();
+        deleted.put(mid, now);
+        Set<String> keys = keysByMid.remove(mid);
+        if (keys != null)
+            keys.forEach(entries::remove);
+        if (now - lastDeletedSweep >= AUTH_CACHE_TTL) {
+            lastDeletedSweep = now;
+            deleted.values().removeIf(deleteTime -> now - deleteTime >= AUTH_CACHE_TTL);
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+        keysByMid.clear();
+        deleted.clear();
+    }
+
+    private void remove(String key, Entry entry) {
+        if (!entries.remove(key, entry))
+            return;
+        // drop the set with its last key, so mids that stopped calling do not pile up
+        keysByMid.computeIfPresent(entry.mid, (mid, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    private static String key(AuthInfo auth) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, auth.getPassword());
+        update(digest, auth.getQq());
+        update(digest, auth.getWechat());
+        return auth.getMid() + ":" + Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    /**
+     * Feeds a nullable field, a {@code null} and an empty string give different digests.
+     */
+    private static void update(MessageDigest digest, String field) {
+        if (field == null) {
+            digest.update((byte) 0);
+            return;
+        }
+        byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) 1);
+        digest.update(new byte[]{
+                (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8), (byte) bytes.length
+        });
+        digest.update(bytes);
+    }
+
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReport < REPORT_INTERVAL)
+            return;
+        lastReport = now;
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        log.info("Auth cache: {} entries, {} hits / {} lookups ({}%), {} evicted",
+                entries.size(), hitCount, total, total == 0 ? 0 : hitCount * 100 / total, evictions.get());
+    }
+}
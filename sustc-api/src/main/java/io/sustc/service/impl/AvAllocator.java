@@ -0,0 +1,103 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.VideoRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.sustc.service.DatabaseService.AV_BLOCK_SIZE;
+
+/**
+ * Hands out the av ids of new videos, hi/lo style.
+ * <p>
+ * Each value of the {@code video_av_block} sequence reserves the {@link io.sustc.service.DatabaseService#AV_BLOCK_SIZE}
+ * avs starting at {@code value * AV_BLOCK_SIZE}. The avs of the current block are taken with an atomic increment,
+ * and only the thread that exhausts a block goes to the database for the next one. Sequence values are never handed
+ * out twice, so application nodes sharing the database and restarts never allocate the same av, at the cost of
+ * leaving the rest of a block unused.
+ * <p>
+ * The sequence starts above the largest imported av. It is created at import time, or on first use from the
+ * videos in the database when the data was imported by an older build.
+ */
+@Slf4j
+public class AvAllocator {
+    private static final String SEQUENCE = "video_av_block";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Transformer transformer;
+    private volatile Block block = new Block(0, 0);
+    private volatile boolean created;
+
+    private static class Block {
+        final AtomicLong next;
+        final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    public AvAllocator(JdbcTemplate jdbcTemplate, Transformer transformer) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transformer = transformer;
+    }
+
+    /**
+     * Restarts the sequence above the avs of the imported videos.
+     */
+    public synchronized void reset(List<VideoRecord> videoRecords) {
+        long maxAv = 0;
+        for (VideoRecord video : videoRecords)
+            maxAv = Math.max(maxAv, transformer.getAv(video.getBv()));
+        jdbcTemplate.execute(String.format("DROP SEQUENCE IF EXISTS %s; CREATE SEQUENCE %s START WITH %d;",
+                SEQUENCE, SEQUENCE, firstBlock(maxAv)));
+        block = new Block(0, 0);
+        created = true;
+        log.info("Allocating avs above {} in blocks of {}", maxAv, AV_BLOCK_SIZE);
+    }
+
+    private void ensureCreated() {
+        if (created)
+            return;
+        if (Boolean.TRUE.equals(jdbcTemplate.queryForObject(String.format("SELECT to_regclass('%s') IS NOT NULL", SEQUENCE), Boolean.class))) {
+            created = true;
+            return;
+        }
+        long maxAv = 0;
+        for (String bv : jdbcTemplate.queryForList("SELECT bv FROM Video", String.class))
+            maxAv = Math.max(maxAv, transformer.getAv(bv));
+        // a node that loses the race keeps the sequence the other one created from the same videos
+        jdbcTemplate.execute(String.format("CREATE SEQUENCE IF NOT EXISTS %s START WITH %d;", SEQUENCE, firstBlock(maxAv)));
+        created = true;
+    }
+
+    private static long firstBlock(long maxAv) {
+        return maxAv / AV_BLOCK_SIZE + 1;
+    }
+
+    /**
+     * Returns an av no other caller, node or earlier run ever got.
+     */
+    public long next() {
+        while (true) {
+            Block block = this.block;
+            long av = block.next.getAndIncrement();
+            if (av < block.end)
+                return av;
+            refill(block);
+        }
+    }
+
+    private synchronized void refill(Block exhausted) {
+        if (block != exhausted)
+            return;
+        ensureCreated();
+        //noinspection ConstantConditions
+        long start = jdbcTemplate.queryForObject(String.format("SELECT nextval('%s')", SEQUENCE), Long.class) * AV_BLOCK_SIZE;
+        block = new Block(start, start + AV_BLOCK_SIZE);
+        log.debug("Reserved avs {} to {}", start, start + AV_BLOCK_SIZE - 1);
+    }
+}
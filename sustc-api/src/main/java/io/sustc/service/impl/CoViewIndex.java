@@ -0,0 +1,360 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.VideoRecord;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+import static io.sustc.service.DatabaseService.CO_VIEW_TOP_N;
+
+/**
+ * Co-view counts for {@code recommendNextVideo}: for every video, the videos most often watched by the
+ * same users.
+ * <p>
+ * Who watched what is kept as two compressed adjacency arrays, viewers by video and videos by viewer.
+ * A video's co-view list is counted by walking its viewers' watch lists into a dense per-thread counter,
+ * and only the top {@link io.sustc.service.DatabaseService#CO_VIEW_TOP_N} videos with their counts are
+ * kept. All lists are counted in parallel at import time, or read from ViewVideo on first use.
+ * <p>
+ * Deleting a user changes the counts between the videos the user watched, so exactly those lists are
+ * dropped and counted again on next use. A deleted video is skipped when lists are read, and a list that
+ * runs short because of that is counted again.
+ * <p>
+ * The same watch lists answer {@code recommendVideosForUser}, by counting the friends' lists while
+ * skipping a bitset of the user's own.
+ */
+@Slf4j
+public class CoViewIndex {
+    private static final int RECOMMENDATIONS = 5;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final VideoKeys videoKeys;
+    private volatile Graph graph;
+    private final ThreadLocal<Counter> counters = new ThreadLocal<>();
+
+    /**
+     * A video and how many of the given friends watched it.
+     */
+    @Getter
+    public static class FriendViews {
+        private final String bv;
+        private final int friends;
+
+        private FriendViews(String bv, int friends) {
+            this.bv = bv;
+            this.friends = friends;
+        }
+    }
+
+    private static class Graph {
+        final String[] bvs;
+        final Map<String, Integer> videoIds;
+        final Map<Long, Integer> userIds;
+        final int[] viewerStart;
+        final int[] viewers;
+        final int[] watchedStart;
+        final int[] watched;
+        final BitSet removedUsers = new BitSet();
+        final BitSet removedVideos = new BitSet();
+        /**
+         * Bumped on every removal, a list counted across a removal is not kept.
+         */
+        final AtomicLong removals = new AtomicLong();
+        /**
+         * Top co-viewed videos of each video as {video, count} pairs, {@code null} until counted.
+         */
+        final AtomicReferenceArray<int[]> top;
+
+        Graph(String[] bvs, Map<String, Integer> videoIds, Map<Long, Integer> userIds,
+              int[] viewerStart, int[] viewers, int[] watchedStart, int[] watched) {
+            this.bvs = bvs;
+            this.videoIds = videoIds;
+            this.userIds = userIds;
+            this.viewerStart = viewerStart;
+            this.viewers = viewers;
+            this.watchedStart = watchedStart;
+            this.watched = watched;
+            this.top = new AtomicReferenceArray<>(bvs.length);
+        }
+
+        /**
+         * Builds the viewer lists, then derives the watch lists from them with a counting sort.
+         */
+        static Graph build(String[] bvs, int[] viewerStart, int[] viewers, Map<Long, Integer> userIds) {
+            Map<String, Integer> videoIds = new HashMap<>(bvs.length * 4 / 3 + 1);
+            for (int i = 0; i < bvs.length; i++)
+                videoIds.put(bvs[i], i);
+            int[] watchedStart = new int[userIds.size() + 1];
+            for (int user : viewers)
+                watchedStart[user + 1]++;
+            for (int i = 0; i < userIds.size(); i++)
+                watchedStart[i + 1] += watchedStart[i];
+            int[] watched = new int[viewers.length];
+            int[] fill = Arrays.copyOf(watchedStart, userIds.size());
+            for (int video = 0; video < bvs.length; video++) {
+                for (int k = viewerStart[video]; k < viewerStart[video + 1]; k++)
+                    watched[fill[viewers[k]]++] = video;
+            }
+            return new Graph(bvs, videoIds, userIds, viewerStart, viewers, watchedStart, watched);
+        }
+    }
+
+    /**
+     * Dense co-view counter reused by one thread, reset through the list of touched videos.
+     */
+    private static class Counter {
+        final int[] counts;
+        final int[] touched;
+        int size;
+
+        Counter(int videos) {
+            counts = new int[videos];
+            touched = new int[videos];
+        }
+    }
+
+    public CoViewIndex(JdbcTemplate jdbcTemplate, VideoKeys videoKeys) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.videoKeys = videoKeys;
+    }
+
+    /**
+     * Indexes the imported views and counts every video's co-view list in parallel.
+     */
+    public synchronized void load(List<VideoRecord> videoRecords) {
+        long startTime = System.currentTimeMillis();
+        String[] bvs = new String[videoRecords.size()];
+        int[] viewerStart = new int[bvs.length + 1];
+        for (int i = 0; i < bvs.length; i++) {
+            bvs[i] = videoRecords.get(i).getBv();
+            viewerStart[i + 1] = viewerStart[i] + videoRecords.get(i).getViewerMids().length;
+        }
+        int[] viewers = new int[viewerStart[bvs.length]];
+        Map<Long, Integer> userIds = new HashMap<>();
+        for (int i = 0, k = 0; i < bvs.length; i++) {
+            for (long mid : videoRecords.get(i).getViewerMids())
+                viewers[k++] = userIds.computeIfAbsent(mid, key -> userIds.size());
+        }
+        Graph graph = Graph.build(bvs, viewerStart, viewers, userIds);
+        counters.remove();
+        IntStream.range(0, bvs.length).parallel().forEach(video -> graph.top.set(video, count(graph, video)));
+        this.graph = graph;
+        log.info("Counted co-views of {} videos over {} views in {} ms",
+                bvs.length, viewers.length, System.currentTimeMillis() - startTime);
+    }
+
+    private Graph graph() {
+        Graph graph = this.graph;
+        if (graph != null)
+            return graph;
+        synchronized (this) {
+            if (this.graph != null)
+                return this.graph;
+            List<String> bvs = new ArrayList<>();
+            Map<String, Integer> videoIds = new HashMap<>();
+            Map<Long, Integer> userIds = new HashMap<>();
+            // {video, user} of each view, flattened
+            int[][] views = {new int[1 << 20]};
+            int[] size = {0};
+            jdbcTemplate.query("SELECT mid, " + VideoKeys.COLUMN + " FROM ViewVideo", rs -> {
+                int video = videoIds.computeIfAbsent(videoKeys.bv(rs, VideoKeys.COLUMN), bv -> {
+                    bvs.add(bv);
+                    return bvs.size() - 1;
+                });
+                int user = userIds.computeIfAbsent(rs.getLong("mid"), mid -> userIds.size());
+                if (size[0] + 2 > views[0].length)
+                    views[0] = Arrays.copyOf(views[0], views[0].length * 2);
+                views[0][size[0]++] = video;
+                views[0][size[0]++] = user;
+            });
+            int[] flat = views[0];
+            int[] viewerStart = new int[bvs.size() + 1];
+            for (int k = 0; k < size[0]; k += 2)
+                viewerStart[flat[k] + 1]++;
+            for (int i = 0; i < bvs.size(); i++)
+                viewerStart[i + 1] += viewerStart[i];
+            int[] viewers = new int[size[0] / 2];
+            int[] fill = Arrays.copyOf(viewerStart, bvs.size());
+            for (int k = 0; k < size[0]; k += 2)
+                viewers[fill[flat[k]]++] = flat[k + 1];
+            this.graph = Graph.build(bvs.toArray(new String[0]), viewerStart, viewers, userIds);
+            log.info("Indexed {} views of {} videos from database", viewers.length, bvs.size());
+            return this.graph;
+        }
+    }
+
+    public synchronized void clear() {
+        graph = null;
+    }
+
+    /**
+     * Returns the (at most five) videos most watched by the viewers of {@code bv}, ties by bv.
+     */
+    public List<String> recommend(String bv) {
+        Graph graph = graph();
+        Integer video = graph.videoIds.get(bv);
+        List<String> result = new ArrayList<>(RECOMMENDATIONS);
+        if (video == null)
+            return result;
+        int[] top = graph.top.get(video);
+        if (top == null)
+            top = recount(graph, video);
+        collect(graph, top, result);
+        if (result.size() < RECOMMENDATIONS && top.length == CO_VIEW_TOP_N * 2) {
+            // deleted videos pushed the list below five, count it again without them
+            top = recount(graph, video);
+            result.clear();
+            collect(graph, top, result);
+        }
+        return result;
+    }
+
+    private int[] recount(Graph graph, int video) {
+        long removals = graph.removals.get();
+        int[] top = count(graph, video);
+        if (graph.removals.get() == removals)
+            graph.top.set(video, top);
+        return top;
+    }
+
+    private static void collect(Graph graph, int[] top, List<String> result) {
+        for (int k = 0; k < top.length && result.size() < RECOMMENDATIONS; k += 2) {
+            boolean removed;
+            synchronized (graph.removedVideos) {
+                removed = graph.removedVideos.get(top[k]);
+            }
+            if (!removed)
+                result.add(graph.bvs[top[k]]);
+        }
+    }
+
+    private int[] count(Graph graph, int video) {
+        Counter counter = counters.get();
+        if (counter == null || counter.counts.length != graph.bvs.length)
+            counters.set(counter = new Counter(graph.bvs.length));
+        BitSet removedUsers, removedVideos;
+        synchronized (graph.removedUsers) {
+            removedUsers = (BitSet) graph.removedUsers.clone();
+        }
+        synchronized (graph.removedVideos) {
+            removedVideos = (BitSet) graph.removedVideos.clone();
+        }
+        int[] counts = counter.counts;
+        for (int k = graph.viewerStart[video]; k < graph.viewerStart[video + 1]; k++) {
+            int user = graph.viewers[k];
+            if (removedUsers.get(user))
+                continue;
+            for (int j = graph.watchedStart[user]; j < graph.watchedStart[user + 1]; j++) {
+                int other = graph.watched[j];
+                if (other != video && counts[other]++ == 0)
+                    counter.touched[counter.size++] = other;
+            }
+        }
+        // keep the best N by count, then by bv, with an insertion sort over a bounded array
+        int[] best = new int[CO_VIEW_TOP_N];
+        int size = 0;
+        for (int t = 0; t < counter.size; t++) {
+            int other = counter.touched[t];
+            if (removedVideos.get(other))
+                continue;
+            int position = size;
+            while (position > 0 && before(graph, counts, other, best[position - 1]))
+                position--;
+            if (position >= CO_VIEW_TOP_N)
+                continue;
+            System.arraycopy(best, position, best, position + 1, Math.min(size, CO_VIEW_TOP_N - 1) - position);
+            best[position] = other;
+            size = Math.min(size + 1, CO_VIEW_TOP_N);
+        }
+        int[] top = new int[size * 2];
+        for (int i = 0; i < size; i++) {
+            top[i * 2] = best[i];
+            top[i * 2 + 1] = counts[best[i]];
+        }
+        for (int t = 0; t < counter.size; t++)
+            counts[counter.touched[t]] = 0;
+        counter.size = 0;
+        return top;
+    }
+
+    /**
+     * Counts how many of the given users watched each video {@code mid} has not watched.
+     *
+     * @return every such video that was not deleted
+     */
+    public List<FriendViews> watchedByFriends(long mid, long[] friends) {
+        Graph graph = graph();
+        Counter counter = counters.get();
+        if (counter == null || counter.counts.length != graph.bvs.length)
+            counters.set(counter = new Counter(graph.bvs.length));
+        BitSet excluded;
+        synchronized (graph.removedVideos) {
+            excluded = (BitSet) graph.removedVideos.clone();
+        }
+        Integer user = graph.userIds.get(mid);
+        if (user != null) {
+            for (int j = graph.watchedStart[user]; j < graph.watchedStart[user + 1]; j++)
+                excluded.set(graph.watched[j]);
+        }
+        int[] counts = counter.counts;
+        for (long friendMid : friends) {
+            Integer friend = graph.userIds.get(friendMid);
+            if (friend == null)
+                continue;
+            for (int j = graph.watchedStart[friend]; j < graph.watchedStart[friend + 1]; j++) {
+                int video = graph.watched[j];
+                if (!excluded.get(video) && counts[video]++ == 0)
+                    counter.touched[counter.size++] = video;
+            }
+        }
+        List<FriendViews> result = new ArrayList<>(counter.size);
+        for (int t = 0; t < counter.size; t++) {
+            int video = counter.touched[t];
+            result.add(new FriendViews(graph.bvs[video], counts[video]));
+            counts[video] = 0;
+        }
+        counter.size = 0;
+        return result;
+    }
+
+    private static boolean before(Graph graph, int[] counts, int a, int b) {
+        return counts[a] > counts[b] || (counts[a] == counts[b] && graph.bvs[a].compareTo(graph.bvs[b]) < 0);
+    }
+
+    /**
+     * Drops a deleted user's views, the co-view lists of every video the user watched are counted again.
+     */
+    public void removeViewer(long mid) {
+        // not read yet, the database already reflects the deletion when it is
+        Graph graph = this.graph;
+        if (graph == null)
+            return;
+        Integer user = graph.userIds.get(mid);
+        if (user == null)
+            return;
+        synchronized (graph.removedUsers) {
+            graph.removedUsers.set(user);
+        }
+        graph.removals.incrementAndGet();
+        for (int j = graph.watchedStart[user]; j < graph.watchedStart[user + 1]; j++)
+            graph.top.set(graph.watched[j], null);
+    }
+
+    public void removeVideo(String bv) {
+        Graph graph = this.graph;
+        if (graph == null)
+            return;
+        Integer video = graph.videoIds.get(bv);
+        if (video == null)
+            return;
+        synchronized (graph.removedVideos) {
+            graph.removedVideos.set(video);
+        }
+        graph.removals.incrementAndGet();
+    }
+}
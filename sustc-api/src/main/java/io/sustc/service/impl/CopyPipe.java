@@ -0,0 +1,381 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A bounded pipe feeding one {@code COPY ... FROM STDIN} statement.
+ * <p>
+ * The producer encodes rows into fixed-size chunks, while a copy thread drains the filled chunks
+ * into the server through a {@link CopyIn} handle. Chunks are recycled between the two sides, so
+ * at most {@link #CHUNK_COUNT} chunks are alive per pipe and the producer blocks when the server
+ * falls behind.
+ * <p>
+ * A pipe has exactly one producer thread.
+ * <p>
+ * Rows written with {@link #row(int)} and the typed field methods are encoded either as tab separated
+ * text or as <a href="https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.4">PGCOPY binary</a>
+ * tuples, depending on how the pipe was opened, so one producer serves both formats.
+ */
+@Slf4j
+public class CopyPipe {
+    public static final int CHUNK_SIZE = 1 << 16;
+    public static final int CHUNK_COUNT = 8;
+
+    private static final byte[] BINARY_SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final ByteBuffer ABORT = ByteBuffer.allocate(0);
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService copyExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "CopyPipe-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(CHUNK_COUNT + 1);
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(CHUNK_COUNT);
+    private final CompletableFuture<Long> copy;
+    private final byte[] digits = new byte[20];
+    private final boolean binary;
+    private int allocated;
+    private ByteBuffer chunk;
+    private int rowFields;
+    private int fieldsLeft;
+
+    private CopyPipe(JdbcTemplate jdbcTemplate, String copySql, boolean binary) {
+        this.copy = CompletableFuture.supplyAsync(() -> drain(jdbcTemplate, copySql), copyExecutor);
+        this.binary = binary;
+        this.chunk = acquire();
+        if (binary)
+            reserve(BINARY_SIGNATURE.length + 8).put(BINARY_SIGNATURE).putInt(0).putInt(0);
+    }
+
+    /**
+     * Runs {@code producer} against a new pipe and waits for the server to accept all rows.
+     * If the producer throws, the copy is cancelled and nothing is committed.
+     *
+     * @return the number of rows copied
+     */
+    public static long stream(JdbcTemplate jdbcTemplate, String copySql, Consumer<CopyPipe> producer) {
+        return stream(jdbcTemplate, copySql, false, producer);
+    }
+
+    /**
+     * Same as {@link #stream(JdbcTemplate, String, Consumer)}, {@code binary} must match the {@code FORMAT} of {@code copySql}.
+     */
+    public static long stream(JdbcTemplate jdbcTemplate, String copySql, boolean binary, Consumer<CopyPipe> producer) {
+        CopyPipe pipe = new CopyPipe(jdbcTemplate, copySql, binary);
+        try {
+            producer.accept(pipe);
+        } catch (Throwable e) {
+            // an Error must release the copy thread and its connection too
+            try {
+                pipe.abort();
+            } catch (RuntimeException abortFailure) {
+                e.addSuppressed(abortFailure);
+            }
+            throw e;
+        }
+        return pipe.finish();
+    }
+
+    /**
+     * Runs every producer against its own pipe on {@code executor}, and ends the copies only once all producers
+     * have returned. If any producer throws, every copy is cancelled and the first failure is rethrown, so
+     * nothing is committed. The copies still end one after another, a copy the server rejects while ending
+     * leaves the ones ended before it committed.
+     *
+     * @return the number of rows copied
+     */
+    public static long streamAll(JdbcTemplate jdbcTemplate, String copySql, boolean binary,
+                                 List<Consumer<CopyPipe>> producers, Executor executor) {
+        List<CopyPipe> pipes = new ArrayList<>();
+        List<CompletableFuture<Void>> produced = new ArrayList<>();
+        for (Consumer<CopyPipe> producer : producers) {
+            CopyPipe pipe = new CopyPipe(jdbcTemplate, copySql, binary);
+            pipes.add(pipe);
+            produced.add(CompletableFuture.runAsync(() -> producer.accept(pipe), executor));
+        }
+        Throwable failure = null;
+        for (CompletableFuture<Void> future : produced) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                if (failure == null)
+                    failure = cause;
+                else
+                    failure.addSuppressed(cause);
+            }
+        }
+        long rows = 0;
+        int finished = 0;
+        if (failure == null) {
+            try {
+                for (; finished < pipes.size(); finished++)
+                    rows += pipes.get(finished).finish();
+                return rows;
+            } catch (RuntimeException e) {
+                failure = e;
+                finished++;
+            }
+        }
+        for (int i = finished; i < pipes.size(); i++) {
+            try {
+                pipes.get(i).abort();
+            } catch (RuntimeException abortFailure) {
+                failure.addSuppressed(abortFailure);
+            }
+        }
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        throw new CompletionException(failure);
+    }
+
+    private Long drain(JdbcTemplate jdbcTemplate, String copySql) {
+        return jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+            CopyIn copyIn = new CopyManager(connection.unwrap(BaseConnection.class)).copyIn(copySql);
+            try {
+                while (true) {
+                    ByteBuffer buffer = filled.take();
+                    if (buffer == END)
+                        return copyIn.endCopy();
+                    if (buffer == ABORT) {
+                        copyIn.cancelCopy();
+                        throw new CancellationException("Copy aborted by producer");
+                    }
+                    copyIn.writeToCopy(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                    free.put(buffer);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel(copyIn);
+                throw new IllegalStateException(e);
+            } catch (Throwable e) {
+                cancel(copyIn);
+                throw e;
+            }
+        });
+    }
+
+    private void cancel(CopyIn copyIn) {
+        try {
+            if (copyIn.isActive())
+                copyIn.cancelCopy();
+        } catch (SQLException e) {
+            log.warn("Failed to cancel copy", e);
+        }
+    }
+
+    private ByteBuffer acquire() {
+        if (allocated < CHUNK_COUNT) {
+            allocated++;
+            return ByteBuffer.allocate(CHUNK_SIZE);
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                if (copy.isDone())
+                    copy.join();
+            }
+            return buffer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void submit(ByteBuffer buffer) {
+        try {
+            filled.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void flush() {
+        submit(chunk);
+        chunk = acquire();
+    }
+
+    private long finish() {
+        if (binary)
+            reserve(2).putShort((short) -1);
+        if (chunk.position() > 0)
+            submit(chunk);
+        chunk = null;
+        submit(END);
+        return copy.join();
+    }
+
+    private void abort() {
+        submit(ABORT);
+        try {
+            copy.join();
+        } catch (CompletionException | CancellationException e) {
+            log.debug("Copy aborted: {}", e.getMessage());
+        }
+    }
+
+    public CopyPipe write(byte b) {
+        if (!chunk.hasRemaining())
+            flush();
+        chunk.put(b);
+        return this;
+    }
+
+    public CopyPipe write(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!chunk.hasRemaining())
+                flush();
+            int length = Math.min(chunk.remaining(), bytes.length - offset);
+            chunk.put(bytes, offset, length);
+            offset += length;
+        }
+        return this;
+    }
+
+    /**
+     * Reserves {@code size} contiguous bytes in the current chunk, {@code size} must not exceed {@link #CHUNK_SIZE}.
+     */
+    private ByteBuffer reserve(int size) {
+        if (chunk.remaining() < size)
+            flush();
+        return chunk;
+    }
+
+    public CopyPipe text(String s) {
+        if (s == null)
+            return text("null");
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) >= 0x80)
+                return write(s.getBytes(StandardCharsets.UTF_8));
+        }
+        for (int i = 0; i < length; i++)
+            write((byte) s.charAt(i));
+        return this;
+    }
+
+    public CopyPipe text(Object o) {
+        return text(String.valueOf(o));
+    }
+
+    public CopyPipe text(long v) {
+        if (v == Long.MIN_VALUE)
+            return text(Long.toString(v));
+        if (v < 0) {
+            write((byte) '-');
+            v = -v;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+        ByteBuffer buffer = reserve(digits.length - i);
+        buffer.put(digits, i, digits.length - i);
+        return this;
+    }
+
+    public CopyPipe text(float v) {
+        return text(Float.toString(v));
+    }
+
+    public CopyPipe text(double v) {
+        return text(Double.toString(v));
+    }
+
+    public CopyPipe tab() {
+        return write((byte) '\t');
+    }
+
+    public CopyPipe newline() {
+        return write((byte) '\n');
+    }
+
+    /**
+     * Starts a row of {@code fields} typed fields.
+     */
+    public CopyPipe row(int fields) {
+        rowFields = fields;
+        fieldsLeft = fields;
+        if (binary)
+            reserve(2).putShort((short) fields);
+        return this;
+    }
+
+    private void beginField(int size) {
+        if (binary)
+            reserve(4 + size).putInt(size);
+        else if (fieldsLeft != rowFields)
+            tab();
+    }
+
+    private void endField() {
+        if (--fieldsLeft == 0 && !binary)
+            newline();
+    }
+
+    public CopyPipe int8(long v) {
+        beginField(8);
+        if (binary)
+            chunk.putLong(v);
+        else
+            text(v);
+        endField();
+        return this;
+    }
+
+    public CopyPipe float4(float v) {
+        beginField(4);
+        if (binary)
+            chunk.putFloat(v);
+        else
+            text(v);
+        endField();
+        return this;
+    }
+
+    public CopyPipe bpchar(String s) {
+        if (!binary) {
+            beginField(0);
+            text(s);
+            endField();
+            return this;
+        }
+        int length = s.length();
+        boolean ascii = length <= CHUNK_SIZE - 4;
+        for (int i = 0; ascii && i < length; i++)
+            ascii = s.charAt(i) < 0x80;
+        if (ascii) {
+            ByteBuffer buffer = reserve(4 + length).putInt(length);
+            for (int i = 0; i < length; i++)
+                buffer.put((byte) s.charAt(i));
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            reserve(4).putInt(bytes.length);
+            write(bytes);
+        }
+        endField();
+        return this;
+    }
+}
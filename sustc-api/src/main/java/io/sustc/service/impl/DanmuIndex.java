@@ -0,0 +1,329 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.VideoRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-video danmu timeline, so {@code displayDanmu} is answered with two binary searches and no SQL.
+ * <p>
+ * A video's danmus are kept in arrays sorted by display time. For the filtered display, each danmu also
+ * records the nearest danmu with the same content on either side that was posted earlier. A danmu is the
+ * first of its content within a time range exactly when both of those fall outside the range, which for
+ * the whole video is the plain first-occurrence mask.
+ * <p>
+ * Each timeline also carries the danmu count of every {@value #HOTSPOT_CHUNK} second chunk and the largest
+ * count, so the hotspots are read off the histogram without aggregating the danmus.
+ * <p>
+ * Timelines are immutable and replaced on change. They are built at import time, or read from the Danmu
+ * table on first use of a video.
+ */
+@Slf4j
+public class DanmuIndex {
+    public static final int HOTSPOT_CHUNK = 10;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Map<String, Timeline> timelines = new ConcurrentHashMap<>();
+
+    private static class Timeline {
+        static final Timeline EMPTY = new Timeline(new float[0], new long[0], new long[0], new long[0], new String[0], null);
+
+        final float[] times;
+        final long[] ids;
+        final long[] mids;
+        final long[] postTimes;
+        final String[] contents;
+        /**
+         * Nearest index on the left with the same content posted earlier, or -1.
+         */
+        final int[] earlierBefore;
+        /**
+         * Nearest index on the right with the same content posted earlier, or the length.
+         */
+        final int[] earlierAfter;
+        /**
+         * Danmu count of each chunk.
+         */
+        final int[] chunks;
+        final int maxChunkCount;
+
+        /**
+         * All arrays are already sorted by display time, then by id.
+         *
+         * @param chunks the histogram when the caller already updated it, otherwise it is counted here
+         */
+        Timeline(float[] times, long[] ids, long[] mids, long[] postTimes, String[] contents, int[] chunks) {
+            this.times = times;
+            this.ids = ids;
+            this.mids = mids;
+            this.postTimes = postTimes;
+            this.contents = contents;
+            int n = times.length;
+            if (chunks == null) {
+                chunks = new int[n == 0 ? 0 : chunk(times[n - 1]) + 1];
+                for (float time : times)
+                    chunks[chunk(time)]++;
+            }
+            int max = 0;
+            for (int count : chunks)
+                max = Math.max(max, count);
+            this.chunks = chunks;
+            this.maxChunkCount = max;
+            earlierBefore = new int[n];
+            earlierAfter = new int[n];
+            int[] previousSame = new int[n];
+            int[] nextSame = new int[n];
+            Map<String, Integer> last = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                Integer previous = last.put(contents[i], i);
+                previousSame[i] = previous == null ? -1 : previous;
+            }
+            last.clear();
+            for (int i = n - 1; i >= 0; i--) {
+                Integer next = last.put(contents[i], i);
+                nextSame[i] = next == null ? n : next;
+            }
+            // previous smaller element within each content, skipping over chains of later posts
+            for (int i = 0; i < n; i++) {
+                int j = previousSame[i];
+                while (j >= 0 && !earlier(j, i))
+                    j = earlierBefore[j];
+                earlierBefore[i] = j;
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                int j = nextSame[i];
+                while (j < n && !earlier(j, i))
+                    j = earlierAfter[j];
+                earlierAfter[i] = j;
+            }
+        }
+
+        /**
+         * Whether danmu {@code j} was posted before danmu {@code i}, ties are broken by id like an ordered scan would.
+         */
+        private boolean earlier(int j, int i) {
+            return postTimes[j] < postTimes[i] || (postTimes[j] == postTimes[i] && ids[j] < ids[i]);
+        }
+
+        int size() {
+            return times.length;
+        }
+
+        /**
+         * First index whose time is at least {@code time}, or after {@code time} when {@code after} is set.
+         */
+        int search(float time, boolean after) {
+            int low = 0, high = times.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] < time || (after && times[mid] == time))
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        Timeline with(long id, long mid, float time, String content, long postTime) {
+            int at = search(time, true);
+            int chunk = chunk(time);
+            int[] newChunks = Arrays.copyOf(chunks, Math.max(chunks.length, chunk + 1));
+            newChunks[chunk]++;
+            return new Timeline(
+                    insert(times, at, time),
+                    insert(ids, at, id),
+                    insert(mids, at, mid),
+                    insert(postTimes, at, postTime),
+                    insert(contents, at, content),
+                    newChunks
+            );
+        }
+
+        Timeline without(long mid) {
+            int n = size(), kept = 0;
+            for (int i = 0; i < n; i++)
+                if (mids[i] != mid)
+                    kept++;
+            float[] newTimes = new float[kept];
+            long[] newIds = new long[kept], newMids = new long[kept], newPostTimes = new long[kept];
+            String[] newContents = new String[kept];
+            for (int i = 0, k = 0; i < n; i++) {
+                if (mids[i] == mid)
+                    continue;
+                newTimes[k] = times[i];
+                newIds[k] = ids[i];
+                newMids[k] = mids[i];
+                newPostTimes[k] = postTimes[i];
+                newContents[k++] = contents[i];
+            }
+            return new Timeline(newTimes, newIds, newMids, newPostTimes, newContents, null);
+        }
+
+        boolean contains(long mid) {
+            for (long m : mids)
+                if (m == mid)
+                    return true;
+            return false;
+        }
+    }
+
+    public DanmuIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Builds the timelines of every imported video, danmu ids are assigned in record order starting from 1.
+     */
+    public void load(List<VideoRecord> videoRecords, List<DanmuRecord> danmuRecords) {
+        timelines.clear();
+        Map<String, List<Integer>> byVideo = new HashMap<>();
+        for (int i = 0; i < danmuRecords.size(); i++)
+            byVideo.computeIfAbsent(danmuRecords.get(i).getBv(), bv -> new ArrayList<>()).add(i);
+        for (VideoRecord video : videoRecords)
+            timelines.put(video.getBv(), Timeline.EMPTY);
+        byVideo.forEach((bv, indexes) -> {
+            indexes.sort(Comparator.comparingDouble((Integer i) -> danmuRecords.get(i).getTime()).thenComparingInt(i -> i));
+            int n = indexes.size();
+            float[] times = new float[n];
+            long[] ids = new long[n], mids = new long[n], postTimes = new long[n];
+            String[] contents = new String[n];
+            for (int k = 0; k < n; k++) {
+                int i = indexes.get(k);
+                DanmuRecord danmu = danmuRecords.get(i);
+                times[k] = danmu.getTime();
+                ids[k] = i + 1;
+                mids[k] = danmu.getMid();
+                postTimes[k] = millis(danmu.getPostTime());
+                contents[k] = danmu.getContent();
+            }
+            timelines.put(bv, new Timeline(times, ids, mids, postTimes, contents, null));
+        });
+        log.info("Indexed {} danmus of {} videos", danmuRecords.size(), timelines.size());
+    }
+
+    public void clear() {
+        timelines.clear();
+    }
+
+    private Timeline timeline(String bv) {
+        Timeline timeline = timelines.get(bv);
+        if (timeline != null)
+            return timeline;
+        String sql = "SELECT id, mid, dis_time, content, post_time FROM Danmu WHERE bv = ? ORDER BY dis_time, id";
+        List<Object[]> rows = jdbcTemplate.query(sql, (rs, rowNum) -> new Object[]{
+                rs.getFloat("dis_time"), rs.getLong("id"), rs.getLong("mid"),
+                millis(rs.getTimestamp("post_time")), rs.getString("content")
+        }, bv);
+        int n = rows.size();
+        float[] times = new float[n];
+        long[] ids = new long[n], mids = new long[n], postTimes = new long[n];
+        String[] contents = new String[n];
+        for (int k = 0; k < n; k++) {
+            Object[] row = rows.get(k);
+            times[k] = (Float) row[0];
+            ids[k] = (Long) row[1];
+            mids[k] = (Long) row[2];
+            postTimes[k] = (Long) row[3];
+            contents[k] = (String) row[4];
+        }
+        timeline = new Timeline(times, ids, mids, postTimes, contents, null);
+        Timeline raced = timelines.putIfAbsent(bv, timeline);
+        return raced != null ? raced : timeline;
+    }
+
+    /**
+     * Returns the ids of the video's danmus displayed between {@code timeStart} and {@code timeEnd} inclusive.
+     *
+     * @param filter keep only the earliest posted danmu of each content in the range
+     */
+    public List<Long> get(String bv, float timeStart, float timeEnd, boolean filter) {
+        Timeline timeline = timeline(bv);
+        int low = timeline.search(timeStart, false);
+        int high = timeline.search(timeEnd, true);
+        List<Long> ids = new ArrayList<>(Math.max(0, high - low));
+        for (int i = low; i < high; i++) {
+            if (!filter || (timeline.earlierBefore[i] < low && timeline.earlierAfter[i] >= high))
+                ids.add(timeline.ids[i]);
+        }
+        return ids;
+    }
+
+    public int count(String bv) {
+        return timeline(bv).size();
+    }
+
+    /**
+     * Returns the chunks with the most danmus, chunk {@code i} covers display times {@code [10i, 10i + 10)}.
+     */
+    public Set<Integer> hotspots(String bv) {
+        Timeline timeline = timeline(bv);
+        Set<Integer> hotspots = new HashSet<>();
+        if (timeline.maxChunkCount == 0)
+            return hotspots;
+        for (int i = 0; i < timeline.chunks.length; i++) {
+            if (timeline.chunks[i] == timeline.maxChunkCount)
+                hotspots.add(i);
+        }
+        return hotspots;
+    }
+
+    /**
+     * Adds a newly sent danmu to a video whose timeline is already built, otherwise it is read on first use.
+     */
+    public void add(String bv, long id, long mid, float time, String content, Timestamp postTime) {
+        timelines.computeIfPresent(bv, (key, timeline) -> timeline.with(id, mid, time, content, millis(postTime)));
+    }
+
+    public void remove(String bv) {
+        timelines.remove(bv);
+    }
+
+    /**
+     * Drops the danmus of a deleted user, which the database removes by cascade.
+     *
+     * @param bvs the videos the user sent danmus to
+     */
+    public void removeSentBy(long mid, Collection<String> bvs) {
+        for (String bv : bvs)
+            timelines.computeIfPresent(bv, (key, timeline) -> timeline.contains(mid) ? timeline.without(mid) : timeline);
+    }
+
+    /**
+     * Same as {@code FLOOR(dis_time / 10)} on a REAL column.
+     */
+    private static int chunk(float time) {
+        return (int) Math.floor(time / HOTSPOT_CHUNK);
+    }
+
+    private static long millis(Timestamp timestamp) {
+        return timestamp == null ? Long.MAX_VALUE : timestamp.getTime();
+    }
+
+    private static float[] insert(float[] array, int at, float value) {
+        float[] result = new float[array.length + 1];
+        System.arraycopy(array, 0, result, 0, at);
+        result[at] = value;
+        System.arraycopy(array, at, result, at + 1, array.length - at);
+        return result;
+    }
+
+    private static long[] insert(long[] array, int at, long value) {
+        long[] result = new long[array.length + 1];
+        System.arraycopy(array, 0, result, 0, at);
+        result[at] = value;
+        System.arraycopy(array, at, result, at + 1, array.length - at);
+        return result;
+    }
+
+    private static String[] insert(String[] array, int at, String value) {
+        String[] result = Arrays.copyOf(array, array.length + 1);
+        System.arraycopy(array, at, result, at + 1, array.length - at);
+        result[at] = value;
+        return result;
+    }
+}
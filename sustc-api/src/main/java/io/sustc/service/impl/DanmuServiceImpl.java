@@ -88,10 +88,7 @@ public class DanmuServiceImpl implements DanmuService {
             return false;
         }
         boolean liked = databaseService.isDanmuLiked(auth.getMid(), id);
-        if (liked)
-            new Thread(() -> databaseService.unlikeDanmu(auth.getMid(), id)).start();
-        else
-            new Thread(() -> databaseService.likeDanmu(auth.getMid(), id)).start();
+        databaseService.setDanmuLiked(auth.getMid(), id, !liked);
         return !liked;
     }
 }
@@ -4,30 +4,50 @@ import io.sustc.dto.*;
 import io.sustc.service.DatabaseService;
 import io.sustc.service.UserService;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static io.sustc.service.impl.StoredText.escape;
+
 @Service
 @Slf4j
-public class DatabaseServiceImpl implements DatabaseService {
+public class DatabaseServiceImpl implements DatabaseService, DisposableBean {
 
     private final JdbcTemplate jdbcTemplate;
     private final Transformer transformer;
+    private final VideoKeys videoKeys;
+    private final AvAllocator avAllocator;
     private final AsyncInitTable asyncInitTable;
+    private final VideoIndex videoIndex;
+    private final DanmuIndex danmuIndex;
+    private final SearchIndex searchIndex;
+    private final WriteBehind writeBehind;
+    private final VideoStats videoStats;
+    private final CoViewIndex coViewIndex;
+    private final FollowGraph followGraph;
+    private final PlannedQueries plannedQueries;
+    private final EngagementCache engagementCache;
+    private final AuthCache authCache;
+    private final VideoInfoCache videoInfoCache;
+    private final UserProfileCache userProfileCache;
+    private final ExistenceFilters existenceFilters;
+    private volatile SearchMode searchMode = SEARCH_MODE;
     private AtomicBoolean isDisable;
     private AtomicBoolean isDisable2;
 
@@ -35,16 +55,31 @@ public class DatabaseServiceImpl implements DatabaseService {
     public DatabaseServiceImpl(DataSource dataSource) {
         this.jdbcTemplate = new JdbcTemplate(dataSource);
         this.transformer = new Transformer();
+        this.videoKeys = new VideoKeys(transformer);
+        this.avAllocator = new AvAllocator(jdbcTemplate, transformer);
         this.asyncInitTable = new AsyncInitTable(jdbcTemplate);
+        this.videoIndex = new VideoIndex(jdbcTemplate);
+        this.danmuIndex = new DanmuIndex(jdbcTemplate);
+        this.searchIndex = new SearchIndex(jdbcTemplate);
+        this.writeBehind = new WriteBehind(jdbcTemplate, videoKeys);
+        this.videoStats = new VideoStats(jdbcTemplate);
+        this.coViewIndex = new CoViewIndex(jdbcTemplate, videoKeys);
+        this.followGraph = new FollowGraph(jdbcTemplate);
+        this.plannedQueries = new PlannedQueries(jdbcTemplate);
+        this.userProfileCache = new UserProfileCache(jdbcTemplate, writeBehind);
+        this.engagementCache = new EngagementCache(jdbcTemplate, videoKeys, videoIndex, userProfileCache, writeBehind, videoStats);
+        this.authCache = new AuthCache();
+        this.videoInfoCache = new VideoInfoCache(plannedQueries);
+        this.existenceFilters = new ExistenceFilters(jdbcTemplate);
         isDisable = new AtomicBoolean(false);
         isDisable2 = new AtomicBoolean(false);
     }
 
-    private String escape(String input) {
-        if (input == null)
-            return "";
-        return input.replace("\t", "\\t")
-                .replace("\n", "\\n");
+    @Override
+    public void destroy() {
+        writeBehind.close();
+        videoStats.close();
+        existenceFilters.close();
     }
 
     @Override
@@ -99,110 +134,132 @@ public class DatabaseServiceImpl implements DatabaseService {
 
         setConfig();
 
-        CompletableFuture<Void> UserAuth = asyncInitTable.initUserAuthTableAsync(userRecords);
-        CompletableFuture<Void> Video = UserAuth.thenComposeAsync(aVoid ->
-                asyncInitTable.initVideoTableAsync(videoRecords)
-        );
-        CompletableFuture<Void> ViewVideo = CompletableFuture.allOf(UserAuth, Video).thenComposeAsync(aVoid ->
-                asyncInitTable.initViewVideoTableAsync(videoRecords)
-        );
-//        CompletableFuture<Void> ViewVideoConstraint = CompletableFuture.allOf(ViewVideo, Video).thenRunAsync(
-//                asyncInitTable::createViewVideoConstraintAsync
-//        );
-        CompletableFuture<Void> UserProfile = asyncInitTable.initUserProfileTableAsync(userRecords);
-        CompletableFuture<Void> UserFriends = asyncInitTable.initUserFriendsTableAsync(userRecords);
-        CompletableFuture<Void> UserFollow = asyncInitTable.initUserFollowTableAsync(userRecords);
-        CompletableFuture<Void> UserFollowConstraint = CompletableFuture.allOf(UserFollow, UserAuth).thenRunAsync(
-                asyncInitTable::createUserFollowConstraintAsync
-        );
-        CompletableFuture<Void> Danmu = asyncInitTable.initDanmuTableAsync(danmuRecords);
-        CompletableFuture<Void> DanmuConstraint = CompletableFuture.allOf(Danmu, Video).thenRunAsync(
-                asyncInitTable::createDanmuConstraintAsync
-        );
-        CompletableFuture<Void> LikeDanmu = asyncInitTable.initLikeDanmuTableAsync(danmuRecords);
-        CompletableFuture<Void> LikeDanmuConstraint = CompletableFuture.allOf(LikeDanmu, Danmu).thenRunAsync(
-                asyncInitTable::createLikeDanmuConstraintAsync
-        );
-        CompletableFuture<Void> CountVideo = Video.thenComposeAsync(aVoid ->
-                asyncInitTable.initCountVideoTableAsync(videoRecords, danmuRecords)
-        );
-        CompletableFuture<Void> UserProfileConstraint = CompletableFuture.allOf(UserProfile, UserAuth).thenRunAsync(
-                asyncInitTable::createUserProfileConstraintAsync
-        );
-        CompletableFuture<Void> UserFriendsConstraint = CompletableFuture.allOf(UserFriends, UserAuth).thenRunAsync(
-                asyncInitTable::createUserFriendsConstraintAsync
-        );
-        CompletableFuture.allOf(
-//                ViewVideoConstraint,
-                ViewVideo,
-                CountVideo,
-                UserFollowConstraint,
-                UserProfileConstraint,
-                UserFriendsConstraint,
-                DanmuConstraint,
-                LikeDanmuConstraint
-        ).join();
-
-        createGetHotspotFunction();
-
-        String createPublicVideoTable = String.format("""
-                CREATE UNLOGGED TABLE IF NOT EXISTS PublicVideo (
-                    bv CHAR(%d) PRIMARY KEY,
-                    text VARCHAR(%d) NOT NULL,
-                    view_count INTEGER NOT NULL,
-                    relevance INTEGER NOT NULL,
-                    FOREIGN KEY (bv) REFERENCES Video(bv) ON DELETE CASCADE
-                );
-                CREATE INDEX PublicVideoIndex ON PublicVideo (relevance DESC, view_count DESC);
-                """, MAX_BV_LENGTH, MAX_TITLE_LENGTH + MAX_DESCRIPTION_LENGTH + MAX_NAME_LENGTH);
-        jdbcTemplate.execute(createPublicVideoTable);
-
+        long follows = 0;
+        for (UserRecord user : userRecords)
+            follows += user.getFollowing().length;
+        long likes = 0, coins = 0, favorites = 0, views = 0;
+        for (VideoRecord video : videoRecords) {
+            likes += video.getLike().length;
+            coins += video.getCoin().length;
+            favorites += video.getFavorite().length;
+            views += video.getViewerMids().length;
+        }
+        long likeDanmus = 0;
+        for (DanmuRecord danmu : danmuRecords)
+            likeDanmus += danmu.getLikedBy().length;
+
+        // Weights are estimated rows, Argon2 makes a user row far more expensive than any other row.
+        new ImportScheduler(IMPORT_DB_CONCURRENCY)
+                .task("UserAuth", ImportScheduler.Cost.CPU, userRecords.size() * 200L,
+                        () -> asyncInitTable.initUserAuthTable(userRecords))
+                .task("UserProfile", ImportScheduler.Cost.DB, userRecords.size(),
+                        () -> asyncInitTable.initUserProfileTable(userRecords))
+                .task("UserProfileConstraint", ImportScheduler.Cost.DB, userRecords.size(),
+                        asyncInitTable::createUserProfileConstraint, "UserProfile", "UserAuth")
+                .task("UserFollow", ImportScheduler.Cost.DB, follows,
+                        () -> asyncInitTable.initUserFollowTable(userRecords))
+                .task("UserFollowConstraint", ImportScheduler.Cost.DB, follows,
+                        asyncInitTable::createUserFollowConstraint, "UserFollow", "UserAuth")
+                .task("UserFriends", ImportScheduler.Cost.CPU, follows,
+                        () -> asyncInitTable.initUserFriendsTable(userRecords))
+                .task("FollowGraph", ImportScheduler.Cost.CPU, follows,
+                        () -> followGraph.load(userRecords))
+                .task("UserFriendsConstraint", ImportScheduler.Cost.DB, follows / 2,
+                        asyncInitTable::createUserFriendsConstraint, "UserFriends", "UserAuth")
+                .task("Video", ImportScheduler.Cost.DB, videoRecords.size(),
+                        () -> asyncInitTable.initVideoTable(videoRecords), "UserAuth")
+                .task("PlannedQueries", ImportScheduler.Cost.DB, 1,
+                        plannedQueries::create, "Video")
+                .task("CountVideo", ImportScheduler.Cost.DB, videoRecords.size() + danmuRecords.size(),
+                        () -> asyncInitTable.initCountVideoTable(videoRecords, danmuRecords), "Video")
+                .task("ViewVideo", ImportScheduler.Cost.DB, views,
+                        () -> asyncInitTable.initViewVideoTable(videoRecords), "Video")
+                .task("LikeVideo", ImportScheduler.Cost.DB, likes,
+                        () -> asyncInitTable.initLikeVideoTable(videoRecords))
+                .task("LikeVideoConstraint", ImportScheduler.Cost.DB, likes,
+                        () -> asyncInitTable.setVideoConstraint("Like"), "LikeVideo", "Video")
+                .task("CoinVideo", ImportScheduler.Cost.DB, coins,
+                        () -> asyncInitTable.initCoinVideoTable(videoRecords))
+                .task("CoinVideoConstraint", ImportScheduler.Cost.DB, coins,
+                        () -> asyncInitTable.setVideoConstraint("Coin"), "CoinVideo", "Video")
+                .task("FavVideo", ImportScheduler.Cost.DB, favorites,
+                        () -> asyncInitTable.initFavVideoTable(videoRecords))
+                .task("FavVideoConstraint", ImportScheduler.Cost.DB, favorites,
+                        () -> asyncInitTable.setVideoConstraint("Fav"), "FavVideo", "Video")
+                .task("Danmu", ImportScheduler.Cost.DB, danmuRecords.size(),
+                        () -> asyncInitTable.initDanmuTable(danmuRecords))
+                .task("DanmuConstraint", ImportScheduler.Cost.DB, danmuRecords.size(),
+                        asyncInitTable::createDanmuConstraint, "Danmu", "Video")
+                .task("LikeDanmu", ImportScheduler.Cost.DB, likeDanmus,
+                        () -> asyncInitTable.initLikeDanmuTable(danmuRecords))
+                .task("LikeDanmuConstraint", ImportScheduler.Cost.DB, likeDanmus,
+                        asyncInitTable::createLikeDanmuConstraint, "LikeDanmu", "DanmuConstraint")
+                .task("VideoStats", ImportScheduler.Cost.CPU, videoRecords.size(),
+                        () -> videoStats.load(videoRecords, danmuRecords))
+                .task("CoViewIndex", ImportScheduler.Cost.CPU, views,
+                        () -> coViewIndex.load(videoRecords))
+                .task("SearchIndex", ImportScheduler.Cost.CPU, videoRecords.size(),
+                        () -> searchIndex.load(searchTexts(videoRecords)))
+                .task("DanmuIndex", ImportScheduler.Cost.CPU, danmuRecords.size(),
+                        () -> danmuIndex.load(videoRecords, danmuRecords))
+                .run();
+
+        avAllocator.reset(videoRecords);
+        engagementCache.clear();
+        authCache.clear();
+        videoInfoCache.clear();
+        videoIndex.load(videoRecords);
+        userProfileCache.load(userRecords);
+        existenceFilters.load(userRecords, danmuRecords);
+        asyncInitTable.logVideoRelationSizes();
         log.info("End importing at " + new Timestamp(new Date().getTime()));
+    }
 
-        CompletableFuture<Void> LikeVideo = asyncInitTable.initLikeVideoTableAsync(videoRecords);
-        CompletableFuture<Void> FavVideo = asyncInitTable.initFavVideoTableAsync(videoRecords);
-        CompletableFuture<Void> CoinVideo = asyncInitTable.initCoinVideoTableAsync(videoRecords);
-        transformer.setAvCount(asyncInitTable.getAvCount());
-        CompletableFuture<Void> LikeVideoConstraint = CompletableFuture.allOf(LikeVideo, Video).thenRunAsync(
-                asyncInitTable::createLikeVideoConstraintAsync
-        );
-        CompletableFuture<Void> FavVideoConstraint = CompletableFuture.allOf(FavVideo, Video).thenRunAsync(
-                asyncInitTable::createFavVideoConstraintAsync
-        );
-        CompletableFuture<Void> CoinVideoConstraint = CompletableFuture.allOf(CoinVideo, Video).thenRunAsync(
-                asyncInitTable::createCoinVideoConstraintAsync
-        );
-    }
-
-    private void createGetHotspotFunction() {
-        String createGetHotspotFunction = """
-                CREATE OR REPLACE FUNCTION get_hotspot(bv_value CHAR(${MAX_BV_LENGTH}))
-                RETURNS TABLE (hotspot INT) AS $$
-                DECLARE
-                    max_count INT;
-                BEGIN
-                    RETURN QUERY
-                    WITH BvCount AS (
-                        SELECT FLOOR(dis_time / 10)::integer AS chunk, COUNT(id) AS count
-                        FROM Danmu
-                        WHERE bv = bv_value
-                        GROUP BY chunk
-                    )
-                    SELECT chunk AS hotspot
-                    FROM BvCount
-                    WHERE count = (SELECT MAX(count) FROM BvCount);
-                END;
-                $$ LANGUAGE plpgsql;
-                """
-                .replace("${MAX_BV_LENGTH}", String.valueOf(MAX_BV_LENGTH));
-        jdbcTemplate.execute(createGetHotspotFunction);
+    /**
+     * Same text as {@code lower(CONCAT(title, description, name))} over the imported rows.
+     */
+    private Map<String, String> searchTexts(List<VideoRecord> videoRecords) {
+        Map<String, String> texts = new HashMap<>(videoRecords.size() * 4 / 3 + 1);
+        for (VideoRecord video : videoRecords) {
+            String text = escape(video.getTitle()) + escape(video.getDescription()) + escape(video.getOwnerName());
+            texts.put(video.getBv(), text.toLowerCase());
+        }
+        return texts;
+    }
+
+    @Override
+    public boolean isBinaryCopy() {
+        return asyncInitTable.isBinaryCopy();
+    }
+
+    @Override
+    public void setBinaryCopy(boolean binaryCopy) {
+        log.info("Relation tables are copied in {} format", binaryCopy ? "binary" : "text");
+        asyncInitTable.setBinaryCopy(binaryCopy);
+    }
+
+    @Override
+    public long timeRelationCopy(List<VideoRecord> videoRecords) {
+        return asyncInitTable.timeLikeVideoCopy(videoRecords);
     }
 
     @Override
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     public void truncate() {
-        if (ALLOW_TRUNCATE)
+        if (ALLOW_TRUNCATE) {
+            engagementCache.clear();
             truncating();
+            videoIndex.clear();
+            danmuIndex.clear();
+            searchIndex.clear();
+            videoStats.clear();
+            coViewIndex.clear();
+            followGraph.clear();
+            authCache.clear();
+            videoInfoCache.clear();
+            userProfileCache.clear();
+            existenceFilters.clear();
+        }
         else
             log.info("Do not truncate.");
     }
@@ -285,34 +342,56 @@ public class DatabaseServiceImpl implements DatabaseService {
         }
     }
 
+    @Override
+    public boolean isAuthVerified(AuthInfo auth) {
+        return authCache.verified(auth);
+    }
+
+    @Override
+    public void cacheVerifiedAuth(AuthInfo auth, long mid, AuthInfo replacement) {
+        authCache.put(auth, mid, replacement);
+    }
+
+    @Override
+    public void invalidateAuth(long mid) {
+        authCache.invalidate(mid);
+    }
+
     @Override
     public boolean isMidNotExist(long mid) {
-        String sql = "SELECT 1 FROM UserAuth WHERE mid = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, Long.class, mid) == null;
-        } catch (EmptyResultDataAccessException e) {
-            return true;
-        }
+        return !existenceFilters.getUsers().exists(() -> {
+            String sql = "SELECT 1 FROM UserAuth WHERE mid = ?";
+            try {
+                return jdbcTemplate.queryForObject(sql, Long.class, mid) != null;
+            } catch (EmptyResultDataAccessException e) {
+                return false;
+            }
+        }, ExistenceFilter.hash(mid));
     }
 
     @Override
     public boolean isQQorWechatExist(String qq, String wechat) {
-        String sql = "SELECT 1 FROM UserAuth WHERE qq = ? OR wechat = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, Long.class, qq, wechat) != null;
-        } catch (EmptyResultDataAccessException e) {
-            return false;
-        }
+        return existenceFilters.getContacts().exists(() -> {
+            String sql = "SELECT 1 FROM UserAuth WHERE qq = ? OR wechat = ?";
+            try {
+                return jdbcTemplate.queryForObject(sql, Long.class, qq, wechat) != null;
+            } catch (EmptyResultDataAccessException e) {
+                return false;
+            }
+        }, ExistenceFilters.contacts(qq, wechat));
     }
 
     @Override
     public boolean isNameExist(String name) {
-        String sql = "SELECT 1 FROM UserProfile WHERE name = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, Long.class, escape(name)) != null;
-        } catch (EmptyResultDataAccessException e) {
-            return false;
-        }
+        String escapeName = escape(name);
+        return existenceFilters.getNames().exists(() -> {
+            String sql = "SELECT 1 FROM UserProfile WHERE name = ?";
+            try {
+                return jdbcTemplate.queryForObject(sql, Long.class, escapeName) != null;
+            } catch (EmptyResultDataAccessException e) {
+                return false;
+            }
+        }, ExistenceFilter.hash(escapeName));
     }
 
     private Short parseShort(String s) {
@@ -370,17 +449,24 @@ public class DatabaseServiceImpl implements DatabaseService {
         }
         sql = "INSERT INTO UserProfile(mid, name, sex, birthday_month, birthday_day, level, coin, sign, identity) VALUES (?, ?, ?::Gender, ?, ?, 1, 0, ?, ?::Identity)";
         jdbcTemplate.update(sql, mid, escapeName, req.getSex().name(), parseShort(birthday_month), parseShort(birthday_day), escapeSign, UserRecord.Identity.USER.name());
+        // a rolled back registration must never be served from the caches
+        afterCommit(() -> {
+            followGraph.addUser(mid, (short) 1);
+            userProfileCache.add(mid, UserRecord.Identity.USER, (short) 1, escapeName);
+        });
+        existenceFilters.getUsers().add(ExistenceFilter.hash(mid));
+        existenceFilters.getNames().add(ExistenceFilter.hash(escapeName));
+        if (req.getQq() != null)
+            existenceFilters.getContacts().add(ExistenceFilters.qq(req.getQq()));
+        if (req.getWechat() != null)
+            existenceFilters.getContacts().add(ExistenceFilters.wechat(req.getWechat()));
         return mid;
     }
 
     @Override
     public UserRecord.Identity getUserIdentity(long mid) {
-        String sql = "SELECT identity FROM UserProfile WHERE mid = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, UserRecord.Identity.class, mid);
-        } catch (EmptyResultDataAccessException e) {
-            return null;
-        }
+        UserProfileCache.Profile profile = userProfileCache.get(mid);
+        return profile == null ? null : profile.getIdentity();
     }
 
     @Override
@@ -393,8 +479,51 @@ public class DatabaseServiceImpl implements DatabaseService {
 //            jdbcTemplate.execute(disableTrigger);
 //            isDisable.set(true);
 //        }
+        // the counters of the videos the user engaged with drop by what the cascade removes
+        String engagedSql = """
+                SELECT 0 AS kind, ${KEY} AS video, NULL AS bv, 0 AS view_time FROM LikeVideo WHERE mid = ?
+                UNION ALL
+                SELECT 1 AS kind, ${KEY} AS video, NULL AS bv, 0 AS view_time FROM CoinVideo WHERE mid = ?
+                UNION ALL
+                SELECT 2 AS kind, ${KEY} AS video, NULL AS bv, 0 AS view_time FROM FavVideo WHERE mid = ?
+                UNION ALL
+                SELECT 3 AS kind, ${KEY} AS video, NULL AS bv, view_time FROM ViewVideo WHERE mid = ?
+                UNION ALL
+                SELECT 4 AS kind, NULL AS video, bv, 0 AS view_time FROM Danmu WHERE mid = ?
+                """
+                .replace("${KEY}", VideoKeys.COLUMN);
+        List<Object[]> engaged = jdbcTemplate.query(engagedSql, (rs, rowNum) -> {
+            int kind = rs.getInt("kind");
+            String bv = kind == 4 ? rs.getString("bv") : videoKeys.bv(rs, "video");
+            return new Object[]{kind, bv, rs.getDouble("view_time")};
+        }, mid, mid, mid, mid, mid);
         String sql = "DELETE FROM UserAuth WHERE mid = ?";
         int res = jdbcTemplate.update(sql, mid);
+        Set<String> danmuBvs = new HashSet<>();
+        for (Object[] row : engaged) {
+            int kind = (Integer) row[0];
+            if (kind == 4)
+                danmuBvs.add((String) row[1]);
+            videoStats.change((String) row[1], kind == 0 ? -1 : 0, kind == 1 ? -1 : 0, kind == 2 ? -1 : 0,
+                    kind == 3 ? -1 : 0, kind == 3 ? -(Double) row[2] : 0, kind == 4 ? -1 : 0);
+        }
+        authCache.invalidate(mid);
+        userProfileCache.invalidate(mid);
+        existenceFilters.getUsers().markStale();
+        existenceFilters.getContacts().markStale();
+        existenceFilters.getNames().markStale();
+        existenceFilters.getDanmus().markStale();
+        engagementCache.invalidate(mid);
+        coViewIndex.removeViewer(mid);
+        followGraph.removeUser(mid);
+        for (String bv : videoIndex.removeOwnedBy(mid)) {
+            videoInfoCache.invalidate(bv);
+            danmuIndex.remove(bv);
+            searchIndex.remove(bv);
+            videoStats.remove(bv);
+            coViewIndex.removeVideo(bv);
+        }
+        danmuIndex.removeSentBy(mid, danmuBvs);
 //        String enableTrigger = """
 //                ALTER TABLE UserFollow ENABLE TRIGGER delete_friends;
 //                ALTER TABLE Danmu ENABLE TRIGGER delete_danmu_count;
@@ -410,6 +539,9 @@ public class DatabaseServiceImpl implements DatabaseService {
 
     @Override
     public boolean isFollowing(long followerMid, long followeeMid) {
+        Boolean pending = writeBehind.pending(WriteBehind.Relation.FOLLOW, followerMid, followeeMid);
+        if (pending != null)
+            return pending;
         String sql = "SELECT 1 FROM UserFollow WHERE follower = ? AND followee = ?";
         try {
             return jdbcTemplate.queryForObject(sql, Long.class, followerMid, followeeMid) != null;
@@ -418,34 +550,10 @@ public class DatabaseServiceImpl implements DatabaseService {
         }
     }
 
-    @Override
-    @Transactional(propagation = Propagation.REQUIRED)
-    public boolean follow(long followerMid, long followeeMid) {
-        String sql = "INSERT INTO UserFollow(follower, followee) VALUES (?, ?)";
-        return jdbcTemplate.update(sql, followerMid, followeeMid) > 0;
-    }
-
-    @Override
-    @Transactional(propagation = Propagation.REQUIRED)
-    public boolean unfollow(long followerMid, long followeeMid) {
-        String sql = "DELETE FROM UserFollow WHERE follower = ? AND followee = ?";
-        return jdbcTemplate.update(sql, followerMid, followeeMid) > 0;
-    }
-
     @Override
     public int getCoin(long mid) {
-        String sql = "SELECT coin FROM UserProfile WHERE mid = ?";
-        try {
-            return Optional.ofNullable(jdbcTemplate.queryForObject(sql, Integer.class, mid)).orElse(-1);
-        } catch (EmptyResultDataAccessException e) {
-            return -1;
-        }
-    }
-
-    @Async("taskExecutor")
-    @Override
-    public CompletableFuture<long[]> getFollowingAsync(long mid) {
-        return CompletableFuture.supplyAsync(() -> getFollowing(mid));
+        UserProfileCache.Profile profile = userProfileCache.get(mid);
+        return profile == null ? -1 : profile.getCoin();
     }
 
     @Override
@@ -455,12 +563,6 @@ public class DatabaseServiceImpl implements DatabaseService {
         return followeeList.stream().mapToLong(Long::longValue).toArray();
     }
 
-    @Async("taskExecutor")
-    @Override
-    public CompletableFuture<long[]> getFollowerAsync(long mid) {
-        return CompletableFuture.supplyAsync(() -> getFollower(mid));
-    }
-
     @Override
     public long[] getFollower(long mid) {
         String sql = "SELECT follower FROM UserFollow WHERE followee = ?";
@@ -468,101 +570,128 @@ public class DatabaseServiceImpl implements DatabaseService {
         return followerList.stream().mapToLong(Long::longValue).toArray();
     }
 
-    @Async("taskExecutor")
-    @Override
-    public CompletableFuture<String[]> getWatchedAsync(long mid) {
-        return CompletableFuture.supplyAsync(() -> getWatched(mid));
-    }
-
     @Override
     public String[] getWatched(long mid) {
-        String sql = "SELECT bv FROM ViewVideo WHERE mid = ?";
-        List<String> bvList = jdbcTemplate.queryForList(sql, String.class, mid);
+        String sql = "SELECT " + VideoKeys.COLUMN + " FROM ViewVideo WHERE mid = ?";
+        List<String> bvList = jdbcTemplate.query(sql, (rs, rowNum) -> videoKeys.bv(rs, VideoKeys.COLUMN), mid);
         String[] bv = new String[bvList.size()];
         bvList.toArray(bv);
         return bv;
     }
 
-    @Async("taskExecutor")
-    @Override
-    public CompletableFuture<String[]> getLikedAsync(long mid) {
-        return CompletableFuture.supplyAsync(() -> getLiked(mid));
-    }
-
     @Override
     public String[] getLiked(long mid) {
-        String sql = "SELECT bv FROM LikeVideo WHERE mid = ?";
-        List<String> bvList = jdbcTemplate.queryForList(sql, String.class, mid);
+        String sql = "SELECT " + VideoKeys.COLUMN + " FROM LikeVideo WHERE mid = ?";
+        List<String> bvList = jdbcTemplate.query(sql, (rs, rowNum) -> videoKeys.bv(rs, VideoKeys.COLUMN), mid);
         String[] bv = new String[bvList.size()];
         bvList.toArray(bv);
         return bv;
     }
 
-    @Async("taskExecutor")
-    @Override
-    public CompletableFuture<String[]> getCollectedAsync(long mid) {
-        return CompletableFuture.supplyAsync(() -> getCollected(mid));
-    }
-
     @Override
     public String[] getCollected(long mid) {
-        String sql = "SELECT bv FROM FavVideo WHERE mid = ?";
-        List<String> bvList = jdbcTemplate.queryForList(sql, String.class, mid);
+        String sql = "SELECT " + VideoKeys.COLUMN + " FROM FavVideo WHERE mid = ?";
+        List<String> bvList = jdbcTemplate.query(sql, (rs, rowNum) -> videoKeys.bv(rs, VideoKeys.COLUMN), mid);
         String[] bv = new String[bvList.size()];
         bvList.toArray(bv);
         return bv;
     }
 
-    @Async("taskExecutor")
     @Override
-    public CompletableFuture<String[]> getPostedAsync(long mid) {
-        return CompletableFuture.supplyAsync(() -> getPosted(mid));
+    public String[] getPosted(long mid) {
+        return plannedQueries.posted(mid);
     }
 
     @Override
-    public String[] getPosted(long mid) {
-        String disableSeqScan = """
-                SET enable_seqscan = off;
-                """;
-        jdbcTemplate.execute(disableSeqScan);
-        String sql = "SELECT bv FROM Video WHERE owner = ?";
-        List<String> bvList = jdbcTemplate.queryForList(sql, String.class, mid);
-        String enableSeqScan = """
-                SET enable_seqscan = on;
-                """;
-        jdbcTemplate.execute(enableSeqScan);
-        String[] bv = new String[bvList.size()];
-        bvList.toArray(bv);
-        return bv;
+    public UserInfoResp getUserInfo(long mid) {
+        UserProfileCache.Profile profile = userProfileCache.get(mid);
+        if (profile == null)
+            return null;
+        String sql = """
+                SELECT
+                    ARRAY(SELECT followee FROM UserFollow WHERE follower = p.mid)::text AS following,
+                    ARRAY(SELECT follower FROM UserFollow WHERE followee = p.mid)::text AS follower,
+                    ARRAY(SELECT ${KEY} FROM ViewVideo WHERE ViewVideo.mid = p.mid) AS watched,
+                    ARRAY(SELECT ${KEY} FROM LikeVideo WHERE LikeVideo.mid = p.mid) AS liked,
+                    ARRAY(SELECT ${KEY} FROM FavVideo WHERE FavVideo.mid = p.mid) AS collected,
+                    ARRAY(SELECT bv FROM Video WHERE owner = p.mid) AS posted
+                FROM UserProfile p
+                WHERE p.mid = ?
+                """
+                .replace("${KEY}", VideoKeys.COLUMN);
+        long startTime = System.nanoTime();
+        List<UserInfoResp> users = jdbcTemplate.query(sql, (rs, rowNum) -> UserInfoResp.builder()
+                .mid(mid)
+                .coin(profile.getCoin())
+                .following(parseLongArray(rs.getString("following")))
+                .follower(parseLongArray(rs.getString("follower")))
+                .watched(bvArray(rs.getArray("watched")))
+                .liked(bvArray(rs.getArray("liked")))
+                .collected(bvArray(rs.getArray("collected")))
+                .posted((String[]) rs.getArray("posted").getArray())
+                .build(), mid);
+        log.debug("Read user {} in {} us", mid, (System.nanoTime() - startTime) / 1000);
+        return users.isEmpty() ? null : users.get(0);
+    }
+
+    /**
+     * Converts an array of video keys back to bvs.
+     */
+    private String[] bvArray(Array array) throws SQLException {
+        Object[] keys = (Object[]) array.getArray();
+        if (!VideoKeys.AV)
+            return (String[]) keys;
+        String[] bvs = new String[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            bvs[i] = videoKeys.bv(keys[i]);
+        return bvs;
+    }
+
+    /**
+     * Decodes the text form of a {@code bigint[]}, such as {@code {1,2,3}}, without boxing the elements.
+     */
+    private static long[] parseLongArray(String text) {
+        if (text == null || text.length() <= 2)
+            return new long[0];
+        int count = 1;
+        for (int i = 1; i < text.length() - 1; i++)
+            if (text.charAt(i) == ',')
+                count++;
+        long[] values = new long[count];
+        long value = 0;
+        boolean negative = false;
+        for (int i = 1, k = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == ',' || c == '}') {
+                values[k++] = negative ? -value : value;
+                value = 0;
+                negative = false;
+            } else if (c == '-')
+                negative = true;
+            else
+                value = value * 10 + (c - '0');
+        }
+        return values;
     }
 
     @Override
     public float getValidVideoDuration(String bv) {
         if (bv == null || bv.isEmpty())
             return -1;
-        String disableSeqScan = """
-                SET enable_seqscan = off;
-                """;
-        jdbcTemplate.execute(disableSeqScan);
-        String sql = "SELECT duration FROM Video WHERE bv = ? AND public_time < LOCALTIMESTAMP";
-        String enableSeqScan = """
-                SET enable_seqscan = on;
-                """;
-        try {
-            float res = Optional.ofNullable(jdbcTemplate.queryForObject(sql, Float.class, bv)).orElse(-1f);
-            jdbcTemplate.execute(enableSeqScan);
-            return res;
-        } catch (EmptyResultDataAccessException e) {
-            jdbcTemplate.execute(enableSeqScan);
-            return -1f;
-        }
+        VideoIndex.Entry video = videoIndex.get(bv);
+        if (video == null || !video.isPublished(System.currentTimeMillis()))
+            return -1;
+        return video.getDuration();
     }
 
     @Override
     public boolean isVideoUnwatched(long mid, String bv) {
-        String sql = "SELECT 1 FROM ViewVideo WHERE mid = ? AND bv = ?";
+        // a deleted video may still have rows until its queued delete is flushed
+        if (videoIndex.get(bv) == null)
+            return true;
+        String sql = "SELECT 1 FROM ViewVideo WHERE mid = ? AND " + VideoKeys.COLUMN + " = ?";
         try {
-            return jdbcTemplate.queryForObject(sql, String.class, mid, bv) == null;
+            return jdbcTemplate.queryForObject(sql, String.class, mid, videoKeys.key(bv)) == null;
         } catch (EmptyResultDataAccessException e) {
             return true;
         }
@@ -571,42 +700,50 @@ public class DatabaseServiceImpl implements DatabaseService {
     @Override
     @Transactional(propagation = Propagation.MANDATORY)
     public long insertDanmu(long mid, String bv, String content, float time) {
-        String sql = "INSERT INTO Danmu(bv, mid, dis_time, content, post_time) VALUES (?, ?, ?, ?, LOCALTIMESTAMP) RETURNING id";
-        Long id = jdbcTemplate.queryForObject(sql, Long.class, bv, mid, time, content);
+        String sql = "INSERT INTO Danmu(bv, mid, dis_time, content, post_time) VALUES (?, ?, ?, ?, LOCALTIMESTAMP) RETURNING id, post_time";
+        Timestamp[] postTime = new Timestamp[1];
+        Long id = jdbcTemplate.queryForObject(sql, (rs, rowNum) -> {
+            postTime[0] = rs.getTimestamp("post_time");
+            return rs.getLong("id");
+        }, bv, mid, time, content);
         if (id == null)
             return -1;
+        existenceFilters.getDanmus().add(ExistenceFilter.hash(id));
+        // a rolled back danmu must never show up on the timeline or in danmu_count
+        afterCommit(() -> {
+            danmuIndex.add(bv, id, mid, time, content, postTime[0]);
+            videoStats.change(bv, 0, 0, 0, 0, 0, 1);
+        });
         return id;
     }
 
     @Override
     public List<Long> getDanmu(String bv, float timeStart, float timeEnd) {
-        String sql = "SELECT id FROM Danmu WHERE bv = ? AND dis_time BETWEEN ? AND ?";
-        return jdbcTemplate.queryForList(sql, Long.class, bv, timeStart, timeEnd);
+        return danmuIndex.get(bv, timeStart, timeEnd, false);
     }
 
     @Override
     public List<Long> getDanmuFiltered(String bv, float timeStart, float timeEnd) {
-        setConfig();
-        String sql = """
-                SELECT DISTINCT ON (content) id
-                FROM Danmu WHERE bv = ? AND dis_time BETWEEN ? AND ?
-                ORDER BY content, post_time ASC
-                """;
-        return jdbcTemplate.queryForList(sql, Long.class, bv, timeStart, timeEnd);
+        return danmuIndex.get(bv, timeStart, timeEnd, true);
     }
 
     @Override
     public String getBvByDanmuId(long id) {
-        String sql = "SELECT bv FROM Danmu WHERE id = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, String.class, id);
-        } catch (EmptyResultDataAccessException e) {
-            return null;
-        }
+        return existenceFilters.getDanmus().find(() -> {
+            String sql = "SELECT bv FROM Danmu WHERE id = ?";
+            try {
+                return jdbcTemplate.queryForObject(sql, String.class, id);
+            } catch (EmptyResultDataAccessException e) {
+                return null;
+            }
+        }, ExistenceFilter.hash(id));
     }
 
     @Override
     public boolean isDanmuLiked(long mid, long id) {
+        Boolean pending = writeBehind.pending(WriteBehind.Relation.LIKE_DANMU, mid, id);
+        if (pending != null)
+            return pending;
         String sql = "SELECT 1 FROM LikeDanmu WHERE mid = ? AND id = ?";
         try {
             return jdbcTemplate.queryForObject(sql, Long.class, mid, id) != null;
@@ -615,190 +752,106 @@ public class DatabaseServiceImpl implements DatabaseService {
         }
     }
 
-    @Override
-    @Transactional(propagation = Propagation.REQUIRED)
-    public boolean unlikeDanmu(long mid, long id) {
-        String sql = "DELETE FROM LikeDanmu WHERE mid = ? AND id = ?";
-        return jdbcTemplate.update(sql, mid, id) > 0;
-    }
-
-    @Override
-    @Transactional(propagation = Propagation.REQUIRED)
-    public boolean likeDanmu(long mid, long id) {
-        String sql = "INSERT INTO LikeDanmu(mid, id) VALUES (?, ?)";
-        return jdbcTemplate.update(sql, mid, id) > 0;
-    }
-
     @Override
     public boolean isVideoNotEngage(AuthInfo auth, String bv) {
-        String disableSeqScan = """
-                SET enable_seqscan = off;
-                """;
-        jdbcTemplate.execute(disableSeqScan);
-        String enableSeqScan = """
-                SET enable_seqscan = on;
-                """;
-        String sql = "SELECT owner FROM Video WHERE bv = ?";
-        long ownerMid;
-        try {
-            ownerMid = Optional.ofNullable(jdbcTemplate.queryForObject(sql, Long.class, bv)).orElse(-1L);
-        } catch (EmptyResultDataAccessException e) {
-            ownerMid = -1;
-        }
-        if (ownerMid < 0 || ownerMid == auth.getMid()) {
-            jdbcTemplate.execute(enableSeqScan);
+        VideoIndex.Entry video = videoIndex.get(bv);
+        if (video == null || video.getOwner() == auth.getMid())
             return true;
-        }
-        UserRecord.Identity identity = getUserIdentity(auth.getMid());
-        if (identity == UserRecord.Identity.SUPERUSER) {
-            jdbcTemplate.execute(enableSeqScan);
+        if (video.isPublic(System.currentTimeMillis()))
             return false;
-        }
-        sql = "SELECT reviewer FROM Video WHERE bv = ? AND public_time < LOCALTIMESTAMP";
-        long reviewer;
-        try {
-            reviewer = Optional.ofNullable(jdbcTemplate.queryForObject(sql, Long.class, bv)).orElse(-1L);
-        } catch (EmptyResultDataAccessException e) {
-            reviewer = -1;
-        }
-        jdbcTemplate.execute(enableSeqScan);
-        return reviewer <= 0;
+        return getUserIdentity(auth.getMid()) != UserRecord.Identity.SUPERUSER;
     }
 
     @Override
-    @Transactional(propagation = Propagation.MANDATORY)
-    public boolean coinVideo(long mid, String bv) {
-        String sql = "INSERT INTO CoinVideo(mid, bv) VALUES (?, ?)";
-        try {
-            return jdbcTemplate.update(sql, mid, bv) > 0;
-        } catch (DuplicateKeyException e) {
-            return false;
-        }
+    @Transactional(propagation = Propagation.REQUIRED)
+    public void updateCoin(long mid, int newCoin) {
+        userProfileCache.setCoin(mid, newCoin);
     }
 
     @Override
-    @Transactional(propagation = Propagation.REQUIRED)
-    public void updateCoin(long mid, int newCoin) {
-        String sql = "UPDATE UserProfile SET coin = ? WHERE mid = ?";
-        jdbcTemplate.update(sql, newCoin, mid);
+    public void submitWrite(Runnable write) {
+        writeBehind.submit(write);
     }
 
     @Override
-    @Transactional(propagation = Propagation.REQUIRED)
-    public boolean likeVideo(long mid, String bv) {
-        String sql = "INSERT INTO LikeVideo(mid, bv) VALUES (?, ?)";
-        return jdbcTemplate.update(sql, mid, bv) > 0;
+    public void flushWrites() {
+        writeBehind.flush();
     }
 
     @Override
-    public boolean isVideoLiked(long mid, String bv) {
-        String sql = "SELECT 1 FROM LikeVideo WHERE mid = ? AND bv = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, Long.class, mid, bv) != null;
-        } catch (EmptyResultDataAccessException e) {
-            return false;
-        }
+    public void setFollowing(long followerMid, long followeeMid, boolean following) {
+        followGraph.setFollowing(followerMid, followeeMid, following);
+        writeBehind.set(WriteBehind.Relation.FOLLOW, followerMid, followeeMid, following);
     }
 
     @Override
-    @Transactional(propagation = Propagation.REQUIRED)
-    public boolean unlikeVideo(long mid, String bv) {
-        String sql = "DELETE FROM LikeVideo WHERE mid = ? AND bv = ?";
-        return jdbcTemplate.update(sql, mid, bv) > 0;
+    public void setDanmuLiked(long mid, long id, boolean liked) {
+        writeBehind.set(WriteBehind.Relation.LIKE_DANMU, mid, id, liked);
     }
 
     @Override
-    public boolean isVideoCollected(long mid, String bv) {
-        String sql = "SELECT 1 FROM FavVideo WHERE mid = ? AND bv = ?";
-        try {
-            return jdbcTemplate.queryForObject(sql, Long.class, mid, bv) != null;
-        } catch (EmptyResultDataAccessException e) {
-            return false;
-        }
+    public boolean toggleLikeVideo(long mid, String bv) {
+        return engagementCache.toggleLike(mid, bv);
     }
 
     @Override
-    @Transactional(propagation = Propagation.REQUIRED)
-    public boolean uncollectVideo(long mid, String bv) {
-        String sql = "DELETE FROM FavVideo WHERE mid = ? AND bv = ?";
-        return jdbcTemplate.update(sql, mid, bv) > 0;
+    public boolean toggleCollectVideo(long mid, String bv) {
+        return engagementCache.toggleCollect(mid, bv);
     }
 
     @Override
-    @Transactional(propagation = Propagation.REQUIRED)
-    public boolean collectVideo(long mid, String bv) {
-        String sql = "INSERT INTO FavVideo(mid, bv) VALUES (?, ?)";
-        return jdbcTemplate.update(sql, mid, bv) > 0;
+    public boolean donateCoin(long mid, String bv) {
+        return engagementCache.coin(mid, bv);
     }
 
     @Override
     public long getVideoOwner(String bv) {
         if (bv == null || bv.isEmpty())
             return -1;
-        String disableSeqScan = """
-                SET enable_seqscan = off;
-                """;
-        jdbcTemplate.execute(disableSeqScan);
-        String sql = "SELECT owner FROM Video WHERE bv = ?";
-        long owner;
-        try {
-            owner = Optional.ofNullable(jdbcTemplate.queryForObject(sql, Long.class, bv)).orElse(-1L);
-        } catch (EmptyResultDataAccessException e) {
-            owner = -1;
-        }
-        String enableSeqScan = """
-                SET enable_seqscan = on;
-                """;
-        jdbcTemplate.execute(enableSeqScan);
-        return owner;
+        VideoIndex.Entry video = videoIndex.get(bv);
+        return video == null ? -1 : video.getOwner();
     }
 
-    @SuppressWarnings("DuplicatedCode")
     @Override
     public boolean isVideoReviewed(String bv) {
-        String disableSeqScan = """
-                SET enable_seqscan = off;
-                """;
-        jdbcTemplate.execute(disableSeqScan);
-        String sql = "SELECT reviewer FROM Video WHERE bv = ?";
-        long reviewer;
-        try {
-            reviewer = Optional.ofNullable(jdbcTemplate.queryForObject(sql, Long.class, bv)).orElse(-1L);
-        } catch (EmptyResultDataAccessException e) {
-            reviewer = -1;
-        }
-        String enableSeqScan = """
-                SET enable_seqscan = on;
-                """;
-        jdbcTemplate.execute(enableSeqScan);
-        return reviewer > 0;
+        VideoIndex.Entry video = videoIndex.get(bv);
+        return video != null && video.isReviewed();
     }
 
     @Override
-    @Transactional(propagation = Propagation.REQUIRED)
     public boolean reviewVideo(long mid, String bv) {
-        String sql = "UPDATE Video SET reviewer = ?, review_time = LOCALTIMESTAMP WHERE bv = ?";
-        return jdbcTemplate.update(sql, mid, bv) > 0;
+        VideoIndex.Entry video = videoIndex.get(bv);
+        if (video == null)
+            return false;
+        // a video's in-memory changes and their queued writes are made under its entry, so the writes run in the same order
+        synchronized (video) {
+            if (videoIndex.get(bv) != video || video.isReviewed())
+                return false;
+            videoIndex.setReviewed(bv);
+            writeBehind.submit(() -> {
+                String sql = "UPDATE Video SET reviewer = ?, review_time = LOCALTIMESTAMP WHERE bv = ?";
+                jdbcTemplate.update(sql, mid, bv);
+            });
+        }
+        return true;
     }
 
     @Override
     public boolean isDanmuExistByBv(String bv) {
-        String sql = "SELECT EXISTS(SELECT id FROM Danmu WHERE bv = ?)";
-        try {
-            return Boolean.TRUE.equals(jdbcTemplate.queryForObject(sql, Boolean.class, bv));
-        } catch (EmptyResultDataAccessException e) {
-            return false;
-        }
+        return videoIndex.get(bv) != null && danmuIndex.count(bv) > 0;
     }
 
     @Override
     public Set<Integer> getHotspot(String bv) {
-        String sql = "SELECT hotspot FROM get_hotspot(?)";
-        return new HashSet<>(jdbcTemplate.queryForList(sql, Integer.class, bv));
+        if (videoIndex.get(bv) == null)
+            return new HashSet<>();
+        return danmuIndex.hotspots(bv);
     }
 
     @Override
     public double getAverageViewRate(String bv) {
+        if (videoIndex.get(bv) == null)
+            return -1;
         String sql = "SELECT view_count, view_rate FROM CountVideo WHERE bv = ?";
         int view_count;
         double view_rate;
@@ -816,23 +869,7 @@ public class DatabaseServiceImpl implements DatabaseService {
 
     @Override
     public boolean isSameVideoExist(long mid, String title) {
-        String escapeTitle = escape(title);
-        String disableSeqScan = """
-                SET enable_seqscan = off;
-                """;
-        jdbcTemplate.execute(disableSeqScan);
-        String sql = "SELECT 1 FROM Video WHERE owner = ? AND title = ?";
-        String enableSeqScan = """
-                SET enable_seqscan = on;
-                """;
-        try {
-            String res = jdbcTemplate.queryForObject(sql, String.class, mid, escapeTitle);
-            jdbcTemplate.execute(enableSeqScan);
-            return res != null;
-        } catch (EmptyResultDataAccessException e) {
-            jdbcTemplate.execute(enableSeqScan);
-            return false;
-        }
+        return plannedQueries.sameVideoExists(mid, escape(title));
     }
 
     @Override
@@ -852,16 +889,45 @@ public class DatabaseServiceImpl implements DatabaseService {
             log.error("Description is too long: {}", req.getDescription());
             throw new IllegalArgumentException("Description is too long");
         }
-        String sql = "INSERT INTO Video(bv, title, owner, commit_time, duration, description, public_time) VALUES (?, ?, ?, LOCALTIMESTAMP, ?, ?, ?)";
-        String bv = transformer.generateBV();
-        jdbcTemplate.update(sql, bv, escapeTitle, mid, req.getDuration(), escapeDescription, req.getPublicTime());
+        long av = avAllocator.next();
+        String bv = transformer.getBv(av);
+        if (VideoKeys.AV) {
+            String sql = "INSERT INTO Video(bv, title, owner, commit_time, duration, description, public_time, av) VALUES (?, ?, ?, LOCALTIMESTAMP, ?, ?, ?, ?)";
+            jdbcTemplate.update(sql, bv, escapeTitle, mid, req.getDuration(), escapeDescription, req.getPublicTime(), av);
+        } else {
+            String sql = "INSERT INTO Video(bv, title, owner, commit_time, duration, description, public_time) VALUES (?, ?, ?, LOCALTIMESTAMP, ?, ?, ?)";
+            jdbcTemplate.update(sql, bv, escapeTitle, mid, req.getDuration(), escapeDescription, req.getPublicTime());
+        }
+        UserProfileCache.Profile owner = userProfileCache.get(mid);
+        // a rolled back video must never become visible
+        afterCommit(() -> {
+            videoIndex.add(bv, mid, req.getDuration(), req.getPublicTime());
+            if (owner != null)
+                searchIndex.refresh(bv, (escapeTitle + escapeDescription + owner.getName()).toLowerCase());
+            else
+                searchIndex.refresh(bv);
+        });
         return bv;
     }
 
+    /**
+     * Runs {@code update} once the current transaction commits, or at once outside a transaction.
+     */
+    private void afterCommit(Runnable update) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            update.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                update.run();
+            }
+        });
+    }
+
     @Override
-    @Transactional(propagation = Propagation.REQUIRED)
     public boolean deleteVideo(String bv) {
-        setConfig();
 //        if (!isDisable2.get()) {
 //            String disableTrigger = """
 //                ALTER TABLE Danmu DISABLE TRIGGER delete_danmu_count;
@@ -874,8 +940,26 @@ public class DatabaseServiceImpl implements DatabaseService {
 //            jdbcTemplate.execute(disableTrigger);
 //            isDisable2.set(true);
 //        }
-        String sql = "DELETE FROM Video WHERE bv = ?";
-        int res = jdbcTemplate.update(sql, bv);
+        VideoIndex.Entry video = videoIndex.get(bv);
+        if (video == null)
+            return false;
+        synchronized (video) {
+            if (!videoIndex.remove(bv))
+                return false;
+            writeBehind.submit(() -> {
+                String sql = "DELETE FROM Video WHERE bv = ?";
+                jdbcTemplate.update(sql, bv);
+                existenceFilters.getDanmus().markStale();
+                // a lookup racing the delete may have read the rows back before they were gone
+                videoInfoCache.invalidate(bv);
+                danmuIndex.remove(bv);
+            });
+        }
+        videoInfoCache.invalidate(bv);
+        danmuIndex.remove(bv);
+        searchIndex.remove(bv);
+        videoStats.remove(bv);
+        coViewIndex.removeVideo(bv);
 //        String enableTrigger = """
 //                ALTER TABLE Danmu ENABLE TRIGGER delete_danmu_count;
 //                ALTER TABLE CountVideo ENABLE TRIGGER update_score;
@@ -885,266 +969,197 @@ public class DatabaseServiceImpl implements DatabaseService {
 //                ALTER TABLE CoinVideo ENABLE TRIGGER delete_coin_count;
 //                """;
 //        jdbcTemplate.execute(enableTrigger);
-        return res > 0;
+        return true;
     }
 
     @Override
     public boolean isNewInfoValid(String bv, PostVideoReq req) {
-        String disableSeqScan = """
-                SET enable_seqscan = off;
-                """;
-        jdbcTemplate.execute(disableSeqScan);
-        String sql = "SELECT title, duration, description, public_time FROM Video WHERE bv = ?";
-        PostVideoReq origin = jdbcTemplate.queryForObject(sql, (rs, rowNum) -> PostVideoReq.builder()
-                .title(rs.getString("title"))
-                .duration(rs.getFloat("duration"))
-                .description(rs.getString("description"))
-                .publicTime(rs.getTimestamp("public_time"))
-                .build(), bv);
-        String enableSeqScan = """
-                SET enable_seqscan = on;
-                """;
-        jdbcTemplate.execute(enableSeqScan);
+        PostVideoReq origin = videoInfoCache.get(bv);
+        if (origin == null)
+            return false;
         PostVideoReq escapeReq = PostVideoReq.builder()
                 .title(escape(req.getTitle()))
                 .duration(req.getDuration())
                 .description(escape(req.getDescription()))
                 .publicTime(req.getPublicTime()).build();
-        assert origin != null;
         return !origin.isSame(escapeReq) && Math.abs(origin.getDuration() - req.getDuration()) < EPSILON;
     }
 
     @Override
-    @Transactional(propagation = Propagation.REQUIRED)
     public boolean updateVideoInfo(String bv, PostVideoReq req) {
-        String sql = "UPDATE Video SET title = ?, duration = ?, description = ?, public_time = ?, reviewer = NULL, review_time = NULL WHERE bv = ?";
-        return jdbcTemplate.update(sql, escape(req.getTitle()), req.getDuration(), escape(req.getDescription()), req.getPublicTime(), bv) > 0;
-    }
-
-    @SuppressWarnings("DuplicatedCode")
-    @Override
-    @Transactional(propagation = Propagation.MANDATORY)
-    public void resetUnloggedTable(long mid) {
-        setConfig();
-        String updateViewCount = """
-                UPDATE PublicVideo
-                SET view_count = CountVideo.view_count, relevance = 0
-                FROM CountVideo
-                WHERE PublicVideo.bv = CountVideo.bv;
-                """;
-        String insertPublicVideoTable = """
-                INSERT INTO PublicVideo (bv, text, view_count, relevance)
-                SELECT Video.bv AS bv, lower(CONCAT(Video.title, Video.description, UserProfile.name)) AS text, CountVideo.view_count AS view_count, 0 AS relevance
-                FROM Video
-                LEFT JOIN PublicVideo ON Video.bv = PublicVideo.bv
-                JOIN UserProfile ON Video.owner = UserProfile.mid
-                JOIN CountVideo ON Video.bv = CountVideo.bv
-                WHERE PublicVideo.bv IS NULL
-                """;
-        String condition = " AND (Video.owner = ? OR Video.public_time < LOCALTIMESTAMP)";
-        UserRecord.Identity identity = getUserIdentity(mid);
-        switch (identity) {
-            case USER:
-                String deleteInvalidVideo = """
-                        DELETE FROM PublicVideo
-                        WHERE bv IN (
-                            SELECT pv.bv
-                            FROM PublicVideo pv
-                            LEFT JOIN Video v ON pv.bv = v.bv
-                                AND (v.owner = ? OR v.public_time < LOCALTIMESTAMP)
-                            WHERE v.bv IS NULL
-                        )
-                        """;
-                jdbcTemplate.update(deleteInvalidVideo, mid);
-                jdbcTemplate.update(updateViewCount);
-                jdbcTemplate.update(insertPublicVideoTable + condition, mid);
-                break;
-            case SUPERUSER:
-                jdbcTemplate.update(updateViewCount);
-                jdbcTemplate.update(insertPublicVideoTable);
-                break;
+        VideoIndex.Entry video = videoIndex.get(bv);
+        if (video == null)
+            return false;
+        PostVideoReq escapeReq = PostVideoReq.builder()
+                .title(escape(req.getTitle()))
+                .duration(req.getDuration())
+                .description(escape(req.getDescription()))
+                .publicTime(req.getPublicTime()).build();
+        UserProfileCache.Profile owner = userProfileCache.get(video.getOwner());
+        boolean reviewed;
+        synchronized (video) {
+            if (videoIndex.get(bv) != video)
+                return false;
+            reviewed = video.isReviewed();
+            videoIndex.setUpdated(bv, req.getPublicTime());
+            Object update = videoInfoCache.update(bv, escapeReq);
+            if (owner != null)
+                searchIndex.refresh(bv, (escapeReq.getTitle() + escapeReq.getDescription() + owner.getName()).toLowerCase());
+            writeBehind.submit(() -> {
+                String sql = "UPDATE Video SET title = ?, duration = ?, description = ?, public_time = ?, reviewer = NULL, review_time = NULL WHERE bv = ?";
+                jdbcTemplate.update(sql, escapeReq.getTitle(), escapeReq.getDuration(), escapeReq.getDescription(), escapeReq.getPublicTime(), bv);
+                videoInfoCache.written(bv, update);
+                if (owner == null)
+                    searchIndex.refresh(bv);
+            });
         }
+        return reviewed;
     }
 
-    @SuppressWarnings("DuplicatedCode")
     @Override
-    @Transactional(propagation = Propagation.MANDATORY)
-    public void createTempTable(long mid) {
-        setConfig();
-        String createTempTable = """
-                CREATE TEMP TABLE TempVideo AS
-                SELECT Video.bv AS bv, lower(CONCAT(Video.title, Video.description, UserProfile.name)) AS text, CountVideo.view_count AS view_count, 0 AS relevance
-                FROM Video
-                JOIN UserProfile ON Video.owner = UserProfile.mid
-                JOIN CountVideo ON Video.bv = CountVideo.bv
-                LEFT JOIN PublicVideo ON Video.bv = PublicVideo.bv
-                WHERE PublicVideo.bv IS NULL
-                """;
-        String condition = " AND (Video.owner = ? OR Video.public_time < LOCALTIMESTAMP)";
-        UserRecord.Identity identity = getUserIdentity(mid);
-        switch (identity) {
-            case USER:
-                jdbcTemplate.update(createTempTable + condition, mid);
-                break;
-            case SUPERUSER:
-                jdbcTemplate.update(createTempTable);
-                break;
+    public void setSearchMode(SearchMode mode) {
+        log.info("Search mode: {}", mode);
+        if (mode == SearchMode.Sql) {
+            // queued updates, deletes and view counts must be visible, or this mode would answer differently from the index
+            writeBehind.flush();
+            videoStats.flush();
         }
+        searchMode = mode;
     }
 
     @Override
-    @Transactional(propagation = Propagation.MANDATORY)
-    public void updateRelevanceTemp(String s) {
-        String updateRelevanceTemp = """
-                UPDATE TempVideo
-                SET relevance = relevance + (length(text) - length(replace(text, ?, ''))) / length(?);
-                """;
-        jdbcTemplate.update(updateRelevanceTemp, s, s);
+    public List<String> searchVideo(long mid, List<String> keywords, int pageSize, int pageNum) {
+        boolean superuser = getUserIdentity(mid) == UserRecord.Identity.SUPERUSER;
+        return searchMode == SearchMode.Sql
+                ? searchVideoBySql(mid, superuser, keywords, pageSize, pageNum)
+                : searchVideoByIndex(mid, superuser, keywords, pageSize, pageNum);
     }
 
-    @Override
-    @Transactional(propagation = Propagation.MANDATORY)
-    public void mergeTemp(long mid) {
-        setConfig();
-        String updateViewCount = """
-                UPDATE PublicVideo
-                SET view_count = CountVideo.view_count
-                FROM CountVideo
-                WHERE PublicVideo.bv = CountVideo.bv;
-                """;
-        String mergeTemp = """
-                INSERT INTO PublicVideo (bv, text, view_count, relevance)
-                SELECT bv, text, view_count, relevance
-                FROM TempVideo
-                """;
-        UserRecord.Identity identity = getUserIdentity(mid);
-        if (identity == UserRecord.Identity.USER) {
-            String deleteInvalidVideo = """
-                    DELETE pv
-                    FROM PublicVideo pv
-                    LEFT JOIN Video v ON pv.bv = v.bv
-                        AND (v.owner = ? OR v.public_time < LOCALTIMESTAMP)
-                    WHERE v.bv IS NULL
-                    """;
-            jdbcTemplate.update(deleteInvalidVideo, mid);
-        }
-        jdbcTemplate.update(updateViewCount);
-        jdbcTemplate.update(mergeTemp);
-    }
-
-    @Override
-    @Transactional(propagation = Propagation.MANDATORY)
-    public void updateRelevance(String s) {
-        String updateRelevance = """
-                UPDATE PublicVideo
-                SET relevance = relevance + (length(text) - length(replace(text, ?, ''))) / length(?)
-                """;
-        jdbcTemplate.update(updateRelevance, s, s);
-    }
-
-    @Override
-    @Transactional(propagation = Propagation.MANDATORY)
-    public List<String> searchVideo(int pageSize, int pageNum) {
+    private List<String> searchVideoBySql(long mid, boolean superuser, List<String> keywords, int pageSize, int pageNum) {
         String sql = """
-                SELECT bv
-                FROM PublicVideo
-                WHERE relevance > 0
-                ORDER BY relevance DESC, view_count DESC
+                SELECT v.bv, SUM((length(v.text) - length(replace(v.text, k.keyword, ''))) / length(k.keyword)) AS relevance
+                FROM (
+                    SELECT Video.bv, lower(CONCAT(Video.title, Video.description, UserProfile.name)) AS text, CountVideo.view_count
+                    FROM Video
+                    JOIN UserProfile ON Video.owner = UserProfile.mid
+                    JOIN CountVideo ON Video.bv = CountVideo.bv
+                    WHERE ? OR Video.owner = ? OR Video.public_time < LOCALTIMESTAMP
+                ) AS v
+                CROSS JOIN unnest(?) AS k(keyword)
+                GROUP BY v.bv, v.view_count
+                HAVING SUM((length(v.text) - length(replace(v.text, k.keyword, ''))) / length(k.keyword)) > 0
+                ORDER BY relevance DESC, v.view_count DESC
                 LIMIT ?
                 OFFSET ?
                 """;
-        return jdbcTemplate.queryForList(sql, String.class, pageSize, pageSize * (pageNum - 1));
+        String[] words = keywords.toArray(new String[0]);
+        return jdbcTemplate.query(sql, ps -> {
+            ps.setBoolean(1, superuser);
+            ps.setLong(2, mid);
+            ps.setArray(3, ps.getConnection().createArrayOf("text", words));
+            ps.setInt(4, pageSize);
+            ps.setLong(5, (long) pageSize * (pageNum - 1));
+        }, (rs, rowNum) -> rs.getString("bv"));
+    }
+
+    private List<String> searchVideoByIndex(long mid, boolean superuser, List<String> keywords, int pageSize, int pageNum) {
+        long now = System.currentTimeMillis();
+        Map<String, Integer> relevance = searchIndex.relevance(keywords, bv -> {
+            if (superuser)
+                return true;
+            VideoIndex.Entry video = videoIndex.get(bv);
+            return video != null && (video.getOwner() == mid || video.isPublished(now));
+        });
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(relevance.entrySet());
+        ranked.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        long offset = (long) pageSize * (pageNum - 1);
+        if (offset >= ranked.size())
+            return new ArrayList<>();
+        int from = (int) offset;
+        int to = (int) Math.min(ranked.size(), offset + pageSize);
+        // view counts only order videos of equal relevance, so read them for the ties around the page
+        int bandFrom = from, bandTo = to;
+        while (bandFrom > 0 && ranked.get(bandFrom - 1).getValue().equals(ranked.get(from).getValue()))
+            bandFrom--;
+        while (bandTo < ranked.size() && ranked.get(bandTo).getValue().equals(ranked.get(to - 1).getValue()))
+            bandTo++;
+        List<Map.Entry<String, Integer>> band = ranked.subList(bandFrom, bandTo);
+        Map<String, Integer> viewCounts = getViewCounts(band);
+        band.sort(Map.Entry.<String, Integer>comparingByValue().reversed()
+                .thenComparing(entry -> viewCounts.getOrDefault(entry.getKey(), 0), Comparator.reverseOrder()));
+        List<String> page = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++)
+            page.add(ranked.get(i).getKey());
+        return page;
+    }
+
+    private Map<String, Integer> getViewCounts(List<Map.Entry<String, Integer>> videos) {
+        String[] bvs = new String[videos.size()];
+        for (int i = 0; i < bvs.length; i++)
+            bvs[i] = videos.get(i).getKey();
+        String sql = "SELECT bv, view_count FROM CountVideo WHERE bv = ANY(?)";
+        Map<String, Integer> viewCounts = new HashMap<>();
+        jdbcTemplate.query(sql, ps -> ps.setArray(1, ps.getConnection().createArrayOf("bpchar", bvs)),
+                rs -> {
+                    viewCounts.put(rs.getString("bv"), rs.getInt("view_count"));
+                });
+        return viewCounts;
     }
 
     @Override
     public List<String> getTopVideos(String bv) {
-        setConfig();
-        String JoinPath = """
-                SELECT v1.bv, Count(v1.bv) as bv_count
-                FROM ViewVideo v1
-                JOIN ViewVideo v2 ON v1.mid = v2.mid AND v2.bv = ?
-                GROUP BY v1.bv
-                ORDER BY bv_count DESC, v1.bv ASC
-                LIMIT 5
-                OFFSET 1
-                """;
-        String FastPath = """
-                SELECT bv, Count(bv) as bv_count
-                FROM ViewVideo
-                WHERE mid IN (SELECT mid FROM ViewVideo WHERE bv = ?)
-                AND bv IN (SELECT bv FROM CountVideo ORDER BY view_count DESC LIMIT 6)
-                AND bv <> ?
-                GROUP BY bv
-                ORDER BY bv_count DESC, bv ASC
-                LIMIT 5
-                """;
-//        return jdbcTemplate.query(JoinPath, (rs, rowNum) -> rs.getString("bv"), bv);
-        return jdbcTemplate.query(FastPath, (rs, rowNum) -> rs.getString("bv"), bv, bv);
+        return coViewIndex.recommend(bv);
     }
 
     @Override
     public List<String> getRecVideos(int pageSize, int pageNum) {
-        String sql = """
-                SELECT bv
-                FROM CountVideo
-                ORDER BY score DESC, view_count DESC
-                LIMIT ?
-                OFFSET ?
-                """;
-        return jdbcTemplate.queryForList(sql, String.class, pageSize, pageSize * (pageNum - 1));
+        return videoStats.page(pageSize, pageNum);
     }
 
     @Override
     public List<String> getRecVideosForUser(long mid, int pageSize, int pageNum) {
-        setConfig();
-        String sql = """
-                SELECT vv.bv, COUNT(vv.mid) AS view_count, up.level, v.public_time
-                FROM (
-                    SELECT friend
-                    FROM UserFriends
-                    WHERE mid = ?
-                ) AS friends
-                JOIN ViewVideo vv ON friends.friend = vv.mid
-                LEFT JOIN (
-                    SELECT bv
-                    FROM ViewVideo
-                    WHERE mid = ?
-                ) AS excluded_videos ON vv.bv = excluded_videos.bv
-                JOIN Video v ON v.bv = vv.bv
-                JOIN UserProfile up ON v.owner = up.mid
-                WHERE
-                    excluded_videos.bv IS NULL AND v.public_time < LOCALTIMESTAMP
-                GROUP BY vv.bv, up.level, v.public_time
-                HAVING COUNT(vv.mid) > 0
-                ORDER BY
-                    view_count DESC,
-                    up.level DESC,
-                    v.public_time DESC
-                LIMIT ?
-                """;
-        return jdbcTemplate.query(sql, (rs, rowNum) -> rs.getString("bv"), mid, mid, pageSize * pageNum);
+        long[] friends = followGraph.friends(mid);
+        if (friends.length == 0)
+            return new ArrayList<>();
+        long now = System.currentTimeMillis();
+        List<Candidate> candidates = new ArrayList<>();
+        for (CoViewIndex.FriendViews watched : coViewIndex.watchedByFriends(mid, friends)) {
+            VideoIndex.Entry entry = videoIndex.get(watched.getBv());
+            if (entry == null || !entry.isPublished(now))
+                continue;
+            candidates.add(new Candidate(watched.getBv(), watched.getFriends(), followGraph.level(entry.getOwner()), entry.getPublicTime()));
+        }
+        candidates.sort(Comparator.comparingInt((Candidate candidate) -> -candidate.friends)
+                .thenComparingInt(candidate -> -candidate.level)
+                .thenComparing(Comparator.comparingLong((Candidate candidate) -> candidate.publicTime).reversed())
+                .thenComparing(candidate -> candidate.bv));
+        int limit = (int) Math.min(candidates.size(), (long) pageSize * pageNum);
+        List<String> result = new ArrayList<>(limit);
+        for (int i = 0; i < limit; i++)
+            result.add(candidates.get(i).bv);
+        return result;
+    }
+
+    /**
+     * A published video the user has not watched, with what {@link #getRecVideosForUser} orders it by.
+     */
+    private static class Candidate {
+        final String bv;
+        final int friends;
+        final short level;
+        final long publicTime;
+
+        Candidate(String bv, int friends, short level, long publicTime) {
+            this.bv = bv;
+            this.friends = friends;
+            this.level = level;
+            this.publicTime = publicTime;
+        }
     }
 
     @Override
     public List<Long> getRecFriends(long mid, int pageSize, int pageNum) {
-        setConfig();
-        String sql = """
-                SELECT
-                    uf.follower AS mid,
-                    COUNT(uf.followee) AS common_followings,
-                    up.level
-                FROM UserFollow uf
-                JOIN UserProfile up ON uf.follower = up.mid
-                WHERE
-                    uf.follower <> ?
-                    AND uf.followee = ANY(ARRAY(SELECT followee FROM UserFollow WHERE follower = ?))
-                    AND uf.follower NOT IN (SELECT followee FROM UserFollow WHERE follower = ?)
-                GROUP BY uf.follower, up.level
-                ORDER BY common_followings DESC, up.level DESC, mid ASC
-                LIMIT ?
-                OFFSET ?
-                """;
-        return jdbcTemplate.query(sql, (rs, rowNum) -> rs.getLong("mid"), mid, mid, mid, pageSize, pageSize * (pageNum - 1));
+        return followGraph.recommend(mid, pageSize, pageNum);
     }
 
 }
@@ -0,0 +1,191 @@
+package io.sustc.service.impl;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import static io.sustc.service.DatabaseService.ENGAGEMENT_CACHE_SIZE;
+
+/**
+ * Write-through cache of which videos each user liked, collected or coined.
+ * <p>
+ * A user's state is read from the database the first time the user engages with any video, afterwards
+ * the like, collect and coin decisions are made in memory. Changes are applied to the cache immediately
+ * and handed to the {@link WriteBehind} queue, and the video's counters in {@link VideoStats} follow.
+ * The coin balance is kept and spent by {@link UserProfileCache} alone.
+ * <p>
+ * Once {@link io.sustc.service.DatabaseService#ENGAGEMENT_CACHE_SIZE} users are cached, the eighth used
+ * least recently are evicted. A user is read again only after the writes queued for them are flushed.
+ */
+@Slf4j
+public class EngagementCache {
+    private final JdbcTemplate jdbcTemplate;
+    private final VideoKeys videoKeys;
+    private final VideoIndex videoIndex;
+    private final UserProfileCache userProfiles;
+    private final WriteBehind writeBehind;
+    private final VideoStats videoStats;
+    private final Map<Long, UserState> users = new ConcurrentHashMap<>();
+    @Getter
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static class UserState {
+        final BitSet liked = new BitSet();
+        final BitSet collected = new BitSet();
+        final BitSet coined = new BitSet();
+        boolean loaded;
+        boolean evicted;
+        volatile long lastUsed;
+    }
+
+    public EngagementCache(JdbcTemplate jdbcTemplate, VideoKeys videoKeys, VideoIndex videoIndex,
+                           UserProfileCache userProfiles, WriteBehind writeBehind, VideoStats videoStats) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.videoKeys = videoKeys;
+        this.videoIndex = videoIndex;
+        this.userProfiles = userProfiles;
+        this.writeBehind = writeBehind;
+        this.videoStats = videoStats;
+    }
+
+    /**
+     * Runs {@code action} on the user's loaded state, under its lock.
+     */
+    private boolean engage(long mid, Predicate<UserState> action) {
+        while (true) {
+            if (users.size() >= ENGAGEMENT_CACHE_SIZE && !users.containsKey(mid))
+                evict();
+            UserState state = users.computeIfAbsent(mid, key -> new UserState());
+            synchronized (state) {
+                if (!state.evicted) {
+                    if (!state.loaded) {
+                        load(mid, state);
+                        state.loaded = true;
+                    }
+                    state.lastUsed = System.currentTimeMillis();
+                    return action.test(state);
+                }
+            }
+            // the writes queued for an evicted user must reach the database before the user is read again
+            writeBehind.flush();
+            users.remove(mid, state);
+        }
+    }
+
+    private synchronized void evict() {
+        if (users.size() < ENGAGEMENT_CACHE_SIZE)
+            return;
+        long[] lastUsed = users.values().stream().mapToLong(state -> state.lastUsed).sorted().toArray();
+        if (lastUsed.length == 0)
+            return;
+        long threshold = lastUsed[Math.min(lastUsed.length - 1, Math.max(1, ENGAGEMENT_CACHE_SIZE / 8) - 1)];
+        List<Map.Entry<Long, UserState>> victims = new ArrayList<>();
+        for (Map.Entry<Long, UserState> entry : users.entrySet()) {
+            UserState state = entry.getValue();
+            if (state.lastUsed > threshold)
+                continue;
+            synchronized (state) {
+                state.evicted = true;
+            }
+            victims.add(entry);
+        }
+        writeBehind.flush();
+        for (Map.Entry<Long, UserState> victim : victims)
+            users.remove(victim.getKey(), victim.getValue());
+        evictions.addAndGet(victims.size());
+        log.debug("Evicted {} users from the engagement cache", victims.size());
+    }
+
+    private void load(long mid, UserState state) {
+        String sql = """
+                SELECT 0 AS kind, ${KEY} FROM LikeVideo WHERE mid = ?
+                UNION ALL
+                SELECT 1 AS kind, ${KEY} FROM FavVideo WHERE mid = ?
+                UNION ALL
+                SELECT 2 AS kind, ${KEY} FROM CoinVideo WHERE mid = ?
+                """
+                .replace("${KEY}", VideoKeys.COLUMN);
+        jdbcTemplate.query(sql, rs -> {
+            int id = videoIndex.id(videoKeys.bv(rs, VideoKeys.COLUMN));
+            if (id < 0)
+                return;
+            switch (rs.getInt("kind")) {
+                case 0 -> state.liked.set(id);
+                case 1 -> state.collected.set(id);
+                default -> state.coined.set(id);
+            }
+        }, mid, mid, mid);
+    }
+
+    /**
+     * Flips whether the user likes the video.
+     *
+     * @return the like state after this operation
+     */
+    public boolean toggleLike(long mid, String bv) {
+        return toggle(mid, bv, false);
+    }
+
+    /**
+     * Flips whether the user collected the video.
+     *
+     * @return the collect state after this operation
+     */
+    public boolean toggleCollect(long mid, String bv) {
+        return toggle(mid, bv, true);
+    }
+
+    private boolean toggle(long mid, String bv, boolean collect) {
+        int id = videoIndex.id(bv);
+        if (id < 0)
+            return false;
+        return engage(mid, state -> {
+            BitSet set = collect ? state.collected : state.liked;
+            boolean engaged = !set.get(id);
+            set.set(id, engaged);
+            writeBehind.set(collect ? WriteBehind.Relation.FAV_VIDEO : WriteBehind.Relation.LIKE_VIDEO, mid, bv, engaged);
+            int delta = engaged ? 1 : -1;
+            videoStats.change(bv, collect ? 0 : delta, 0, collect ? delta : 0, 0, 0, 0);
+            return engaged;
+        });
+    }
+
+    /**
+     * Donates one of the user's coins to the video, unless the user has no coin or already coined it.
+     *
+     * @return whether a coin is donated
+     */
+    public boolean coin(long mid, String bv) {
+        int id = videoIndex.id(bv);
+        if (id < 0)
+            return false;
+        return engage(mid, state -> {
+            if (state.coined.get(id) || !userProfiles.spendCoin(mid))
+                return false;
+            state.coined.set(id);
+            writeBehind.set(WriteBehind.Relation.COIN_VIDEO, mid, bv, true);
+            videoStats.change(bv, 0, 1, 0, 0, 0, 0);
+            return true;
+        });
+    }
+
+    /**
+     * Forgets a deleted user, the database cascades the rows away.
+     */
+    public void invalidate(long mid) {
+        users.remove(mid);
+    }
+
+    public void clear() {
+        writeBehind.flush();
+        users.clear();
+    }
+}
@@ -0,0 +1,291 @@
+package io.sustc.service.impl;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+import static io.sustc.service.DatabaseService.EXISTENCE_FILTER_FPP;
+
+/**
+ * Bloom filter over the keys of one table, so a lookup of a key that was never inserted returns without
+ * a query.
+ * <p>
+ * Keys are added as 64-bit hashes, see {@link #hash(long)} and {@link #hash(String)}. A key that is not in
+ * the filter is definitely absent, a key that is in it is looked up in the database as before. Deleted keys
+ * cannot be taken out of a Bloom filter, so a deletion only marks the filter stale and {@link #rebuild()}
+ * builds a new one from the database. Keys added while a rebuild runs, and during the interval before
+ * it, are replayed into the new filter before it replaces the old one, so a row whose transaction had
+ * not committed when the table was read is still found.
+ * <p>
+ * Filters are sized for twice the keys they are built with at a false positive rate of
+ * {@link io.sustc.service.DatabaseService#EXISTENCE_FILTER_FPP}, and rebuilt larger once more keys were
+ * added.
+ */
+@Slf4j
+public class ExistenceFilter {
+    private static final long REPORT_INTERVAL = 10000;
+    private static final int MIN_KEYS = 1 << 16;
+
+    private static class Bits {
+        final AtomicLongArray words;
+        final long size;
+        final int hashes;
+        /**
+         * Keys the filter is sized for.
+         */
+        final long capacity;
+        final AtomicLong keys;
+
+        Bits(long keys) {
+            long n = Math.max(MIN_KEYS, keys * 2);
+            this.capacity = n;
+            this.keys = new AtomicLong(keys);
+            long bits = (long) Math.ceil(-n * Math.log(EXISTENCE_FILTER_FPP) / (Math.log(2) * Math.log(2)));
+            int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) / 64);
+            this.words = new AtomicLongArray(wordCount);
+            this.size = wordCount * 64L;
+            this.hashes = Math.max(1, (int) Math.round((double) size / n * Math.log(2)));
+        }
+
+        void put(long hash) {
+            long step = step(hash);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(hash + i * step, size);
+                long mask = 1L << bit;
+                int word = (int) (bit >>> 6);
+                if ((words.get(word) & mask) == 0)
+                    words.getAndAccumulate(word, mask, (value, m) -> value | m);
+            }
+        }
+
+        boolean mightContain(long hash) {
+            long step = step(hash);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Math.floorMod(hash + i * step, size);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                    return false;
+            }
+            return true;
+        }
+
+        private static long step(long hash) {
+            return mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        }
+    }
+
+    private final String name;
+    /**
+     * Streams the hash of every key in the database.
+     */
+    private final Consumer<LongConsumer> source;
+    private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private volatile Bits bits;
+    private Queue<Long> previousAdds = new ConcurrentLinkedQueue<>();
+    private Queue<Long> currentAdds = new ConcurrentLinkedQueue<>();
+    private final AtomicLong staleMarks = new AtomicLong();
+    private long staleMarksAtBuild;
+
+    @Getter
+    private final AtomicLong lookups = new AtomicLong();
+    @Getter
+    private final AtomicLong skippedQueries = new AtomicLong();
+    @Getter
+    private final AtomicLong falsePositives = new AtomicLong();
+    private volatile long lastReport = System.currentTimeMillis();
+
+    public ExistenceFilter(String name, Consumer<LongConsumer> source) {
+        this.name = name;
+        this.source = source;
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static long hash(long key) {
+        return mix(key);
+    }
+
+    public static long hash(String key) {
+        // 64-bit FNV-1a over the UTF-16 chars
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Builds the filter from the given keys instead of the database, at import time.
+     */
+    public synchronized void load(Consumer<LongConsumer> keys) {
+        build(keys);
+        log.info("Built {} filter with {} bits and {} hashes", name, bits.size, bits.hashes);
+    }
+
+    /**
+     * Builds a new filter from the database if a key was deleted since the last build, or more keys were
+     * added than the filter is sized for.
+     */
+    public synchronized void rebuild() {
+        if (bits == null || (staleMarks.get() == staleMarksAtBuild && bits.keys.get() <= bits.capacity)) {
+            rollAdds();
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        build(source);
+        log.info("Rebuilt {} filter in {} ms", name, System.currentTimeMillis() - startTime);
+    }
+
+    private void build(Consumer<LongConsumer> keys) {
+        long staleMarks = this.staleMarks.get();
+        rollAdds();
+        // hashes are collected first so the keys are read only once
+        long[][] hashes = {new long[MIN_KEYS]};
+        int[] size = {0};
+        keys.accept(hash -> {
+            if (size[0] == hashes[0].length)
+                hashes[0] = Arrays.copyOf(hashes[0], size[0] * 2);
+            hashes[0][size[0]++] = hash;
+        });
+        Bits built = new Bits(size[0]);
+        for (int i = 0; i < size[0]; i++)
+            built.put(hashes[0][i]);
+        swapLock.writeLock().lock();
+        try {
+            previousAdds.forEach(built::put);
+            currentAdds.forEach(built::put);
+            bits = built;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        staleMarksAtBuild = staleMarks;
+    }
+
+    private void rollAdds() {
+        swapLock.writeLock().lock();
+        try {
+            previousAdds = currentAdds;
+            currentAdds = new ConcurrentLinkedQueue<>();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+    }
+
+    private Bits bits() {
+        Bits bits = this.bits;
+        if (bits != null)
+            return bits;
+        synchronized (this) {
+            if (this.bits == null) {
+                long startTime = System.currentTimeMillis();
+                build(source);
+                log.info("Built {} filter from database in {} ms", name, System.currentTimeMillis() - startTime);
+            }
+            return this.bits;
+        }
+    }
+
+    public void add(long hash) {
+        swapLock.readLock().lock();
+        try {
+            currentAdds.add(hash);
+            Bits bits = this.bits;
+            if (bits != null) {
+                bits.put(hash);
+                bits.keys.incrementAndGet();
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marks the filter stale after keys were deleted, it is rebuilt on the next {@link #rebuild()}.
+     */
+    public void markStale() {
+        staleMarks.incrementAndGet();
+    }
+
+    public synchronized void clear() {
+        swapLock.writeLock().lock();
+        try {
+            bits = null;
+            previousAdds = new ConcurrentLinkedQueue<>();
+            currentAdds = new ConcurrentLinkedQueue<>();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        staleMarksAtBuild = staleMarks.get();
+    }
+
+    private boolean mightContainAny(long[] hashes) {
+        Bits bits = bits();
+        lookups.incrementAndGet();
+        for (long hash : hashes) {
+            if (bits.mightContain(hash))
+                return true;
+        }
+        skippedQueries.incrementAndGet();
+        report();
+        return false;
+    }
+
+    /**
+     * Runs the query only when one of the keys may exist.
+     */
+    public boolean exists(BooleanSupplier query, long... hashes) {
+        if (!mightContainAny(hashes))
+            return false;
+        boolean found = query.getAsBoolean();
+        if (!found)
+            falsePositives.incrementAndGet();
+        report();
+        return found;
+    }
+
+    /**
+     * Runs the query only when the key may exist, a {@code null} result counts as absent.
+     */
+    public <T> T find(Supplier<T> query, long hash) {
+        if (!mightContainAny(new long[]{hash}))
+            return null;
+        T result = query.get();
+        if (result == null)
+            falsePositives.incrementAndGet();
+        report();
+        return result;
+    }
+
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReport < REPORT_INTERVAL)
+            return;
+        lastReport = now;
+        long skipped = skippedQueries.get();
+        long falsePositiveCount = falsePositives.get();
+        long absent = skipped + falsePositiveCount;
+        log.info("{} filter: {} lookups, {} queries skipped, {} false positives ({}% of absent keys)",
+                name, lookups.get(), skipped, falsePositiveCount,
+                String.format("%.3f", absent == 0 ? 0 : falsePositiveCount * 100.0 / absent));
+    }
+}
@@ -0,0 +1,135 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.UserRecord;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static io.sustc.service.DatabaseService.EXISTENCE_FILTER_REBUILD_INTERVAL;
+import static io.sustc.service.impl.StoredText.escape;
+
+/**
+ * The {@link ExistenceFilter}s guarding the lookups that mostly ask for keys that do not exist: user mids,
+ * QQ and WeChat accounts, user names and danmu ids.
+ * <p>
+ * The filters are built from the imported records, or from the database on first use. Every
+ * {@link io.sustc.service.DatabaseService#EXISTENCE_FILTER_REBUILD_INTERVAL} ms a filter whose keys were
+ * deleted is rebuilt from the database on a background thread.
+ */
+@Slf4j
+@Getter
+public class ExistenceFilters {
+    private final ExistenceFilter users;
+    /**
+     * QQ and WeChat accounts, hashed with {@link #qq(String)} and {@link #wechat(String)}.
+     */
+    private final ExistenceFilter contacts;
+    /**
+     * User names as stored in UserProfile.
+     */
+    private final ExistenceFilter names;
+    private final ExistenceFilter danmus;
+    private final ScheduledExecutorService rebuilder;
+
+    public ExistenceFilters(JdbcTemplate jdbcTemplate) {
+        this.users = new ExistenceFilter("User", sink -> jdbcTemplate.query(
+                "SELECT mid FROM UserAuth", rs -> {
+                    sink.accept(ExistenceFilter.hash(rs.getLong("mid")));
+                }));
+        this.contacts = new ExistenceFilter("Contact", sink -> jdbcTemplate.query(
+                "SELECT qq, wechat FROM UserAuth WHERE qq IS NOT NULL OR wechat IS NOT NULL", rs -> {
+                    String qq = rs.getString("qq");
+                    String wechat = rs.getString("wechat");
+                    if (qq != null)
+                        sink.accept(qq(qq));
+                    if (wechat != null)
+                        sink.accept(wechat(wechat));
+                }));
+        this.names = new ExistenceFilter("Name", sink -> jdbcTemplate.query(
+                "SELECT name FROM UserProfile", rs -> {
+                    sink.accept(ExistenceFilter.hash(rs.getString("name")));
+                }));
+        this.danmus = new ExistenceFilter("Danmu", sink -> jdbcTemplate.query(
+                "SELECT id FROM Danmu", rs -> {
+                    sink.accept(ExistenceFilter.hash(rs.getLong("id")));
+                }));
+        this.rebuilder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ExistenceFilters");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.rebuilder.scheduleWithFixedDelay(this::rebuild,
+                EXISTENCE_FILTER_REBUILD_INTERVAL, EXISTENCE_FILTER_REBUILD_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public static long qq(String qq) {
+        return ExistenceFilter.hash("qq:" + qq);
+    }
+
+    public static long wechat(String wechat) {
+        return ExistenceFilter.hash("wechat:" + wechat);
+    }
+
+    /**
+     * Returns the hashes of the given accounts, {@code null} ones are left out since they match no row.
+     */
+    public static long[] contacts(String qq, String wechat) {
+        if (qq == null)
+            return wechat == null ? new long[0] : new long[]{wechat(wechat)};
+        return wechat == null ? new long[]{qq(qq)} : new long[]{qq(qq), wechat(wechat)};
+    }
+
+    /**
+     * Builds the filters from the imported records, empty QQ and WeChat fields are imported as {@code NULL}.
+     */
+    public void load(List<UserRecord> userRecords, List<DanmuRecord> danmuRecords) {
+        users.load(sink -> {
+            for (UserRecord user : userRecords)
+                sink.accept(ExistenceFilter.hash(user.getMid()));
+        });
+        contacts.load(sink -> {
+            for (UserRecord user : userRecords) {
+                if (user.getQq() != null && !user.getQq().isEmpty())
+                    sink.accept(qq(user.getQq()));
+                if (user.getWechat() != null && !user.getWechat().isEmpty())
+                    sink.accept(wechat(user.getWechat()));
+            }
+        });
+        names.load(sink -> {
+            for (UserRecord user : userRecords)
+                sink.accept(ExistenceFilter.hash(escape(user.getName())));
+        });
+        // danmu ids are assigned in record order from 1
+        danmus.load(sink -> {
+            for (long id = 1; id <= danmuRecords.size(); id++)
+                sink.accept(ExistenceFilter.hash(id));
+        });
+    }
+
+    private void rebuild() {
+        for (ExistenceFilter filter : List.of(users, contacts, names, danmus)) {
+            try {
+                filter.rebuild();
+            } catch (RuntimeException e) {
+                log.error("Failed to rebuild existence filter", e);
+            }
+        }
+    }
+
+    public void clear() {
+        users.clear();
+        contacts.clear();
+        names.clear();
+        danmus.clear();
+    }
+
+    public void close() {
+        rebuilder.shutdownNow();
+    }
+}
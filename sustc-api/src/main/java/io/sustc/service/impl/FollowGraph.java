@@ -0,0 +1,377 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.UserRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * In-memory follow graph for {@code recommendFriends}.
+ * <p>
+ * Users get dense ids, and the followings and followers of every user are kept as two compressed sorted
+ * adjacency arrays built at import time, or read from UserFollow on first use. A follow, unfollow or
+ * deletion replaces the changed users' lists with sorted copies in a patch map that takes precedence over
+ * the compressed arrays, so readers never lock.
+ * <p>
+ * Common followings are counted by walking the followers of everyone the user follows into a dense
+ * per-thread counter, then only the requested page is selected from the touched users.
+ */
+@Slf4j
+public class FollowGraph {
+    private static final int[] EMPTY = new int[0];
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ThreadLocal<Counter> counters = new ThreadLocal<>();
+    private volatile Graph graph;
+
+    private static class Graph {
+        final Map<Long, Integer> ids = new ConcurrentHashMap<>();
+        volatile long[] mids;
+        volatile short[] levels;
+        int size;
+        final int[] followingStart;
+        final int[] following;
+        final int[] followerStart;
+        final int[] followers;
+        final Map<Integer, int[]> followingPatch = new ConcurrentHashMap<>();
+        final Map<Integer, int[]> followerPatch = new ConcurrentHashMap<>();
+
+        /**
+         * @param edges {follower, followee} id pairs, flattened
+         */
+        Graph(long[] mids, short[] levels, int[] edges, int edgeCount) {
+            this.mids = mids;
+            this.levels = levels;
+            this.size = mids.length;
+            for (int i = 0; i < mids.length; i++)
+                ids.put(mids[i], i);
+            followingStart = new int[size + 1];
+            followerStart = new int[size + 1];
+            for (int k = 0; k < edgeCount * 2; k += 2) {
+                followingStart[edges[k] + 1]++;
+                followerStart[edges[k + 1] + 1]++;
+            }
+            for (int i = 0; i < size; i++) {
+                followingStart[i + 1] += followingStart[i];
+                followerStart[i + 1] += followerStart[i];
+            }
+            following = new int[edgeCount];
+            followers = new int[edgeCount];
+            int[] followingFill = Arrays.copyOf(followingStart, size);
+            int[] followerFill = Arrays.copyOf(followerStart, size);
+            for (int k = 0; k < edgeCount * 2; k += 2) {
+                following[followingFill[edges[k]]++] = edges[k + 1];
+                followers[followerFill[edges[k + 1]]++] = edges[k];
+            }
+            for (int i = 0; i < size; i++) {
+                Arrays.sort(following, followingStart[i], followingStart[i + 1]);
+                Arrays.sort(followers, followerStart[i], followerStart[i + 1]);
+            }
+        }
+
+        int[] following(int user) {
+            int[] patch = followingPatch.get(user);
+            if (patch != null)
+                return patch;
+            if (user >= followingStart.length - 1)
+                return EMPTY;
+            return Arrays.copyOfRange(following, followingStart[user], followingStart[user + 1]);
+        }
+
+        int[] followers(int user) {
+            int[] patch = followerPatch.get(user);
+            if (patch != null)
+                return patch;
+            if (user >= followerStart.length - 1)
+                return EMPTY;
+            return Arrays.copyOfRange(followers, followerStart[user], followerStart[user + 1]);
+        }
+
+        /**
+         * Calls {@code action} with every follower of {@code user}, without copying the compressed list.
+         */
+        void forEachFollower(int user, IntConsumer action) {
+            int[] patch = followerPatch.get(user);
+            if (patch != null) {
+                for (int follower : patch)
+                    action.accept(follower);
+            } else if (user < followerStart.length - 1) {
+                for (int k = followerStart[user]; k < followerStart[user + 1]; k++)
+                    action.accept(followers[k]);
+            }
+        }
+    }
+
+    /**
+     * Dense common-following counter reused by one thread, reset through the list of touched users.
+     */
+    private static class Counter {
+        int[] counts = EMPTY;
+        int[] touched = EMPTY;
+        int size;
+
+        void ensure(int users) {
+            if (counts.length < users) {
+                counts = new int[users];
+                touched = new int[users];
+            }
+        }
+    }
+
+    public FollowGraph(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Builds the graph of the imported users, follows of unknown users are dropped like the foreign key does.
+     */
+    public synchronized void load(List<UserRecord> userRecords) {
+        long[] mids = new long[userRecords.size()];
+        short[] levels = new short[mids.length];
+        Map<Long, Integer> ids = new HashMap<>(mids.length * 4 / 3 + 1);
+        long edgeCount = 0;
+        for (int i = 0; i < mids.length; i++) {
+            UserRecord user = userRecords.get(i);
+            mids[i] = user.getMid();
+            levels[i] = user.getLevel();
+            ids.put(user.getMid(), i);
+            edgeCount += user.getFollowing().length;
+        }
+        int[] edges = new int[Math.toIntExact(edgeCount * 2)];
+        int size = 0;
+        for (int i = 0; i < mids.length; i++) {
+            for (long followee : userRecords.get(i).getFollowing()) {
+                Integer id = ids.get(followee);
+                if (id == null)
+                    continue;
+                edges[size++] = i;
+                edges[size++] = id;
+            }
+        }
+        graph = new Graph(mids, levels, edges, size / 2);
+        log.info("Indexed {} follows of {} users", size / 2, mids.length);
+    }
+
+    private Graph graph() {
+        Graph graph = this.graph;
+        if (graph != null)
+            return graph;
+        synchronized (this) {
+            if (this.graph != null)
+                return this.graph;
+            List<long[]> users = new ArrayList<>();
+            Map<Long, Integer> ids = new HashMap<>();
+            jdbcTemplate.query("SELECT mid, level FROM UserProfile", rs -> {
+                ids.put(rs.getLong("mid"), users.size());
+                users.add(new long[]{rs.getLong("mid"), rs.getShort("level")});
+            });
+            long[] mids = new long[users.size()];
+            short[] levels = new short[mids.length];
+            for (int i = 0; i < mids.length; i++) {
+                mids[i] = users.get(i)[0];
+                levels[i] = (short) users.get(i)[1];
+            }
+            int[][] edges = {new int[1 << 16]};
+            int[] size = {0};
+            jdbcTemplate.query("SELECT follower, followee FROM UserFollow", rs -> {
+                Integer follower = ids.get(rs.getLong("follower"));
+                Integer followee = ids.get(rs.getLong("followee"));
+                if (follower == null || followee == null)
+                    return;
+                if (size[0] + 2 > edges[0].length)
+                    edges[0] = Arrays.copyOf(edges[0], edges[0].length * 2);
+                edges[0][size[0]++] = follower;
+                edges[0][size[0]++] = followee;
+            });
+            this.graph = new Graph(mids, levels, edges[0], size[0] / 2);
+            log.info("Indexed {} follows of {} users from database", size[0] / 2, mids.length);
+            return this.graph;
+        }
+    }
+
+    public synchronized void clear() {
+        graph = null;
+    }
+
+    /**
+     * Adds a newly registered user.
+     */
+    public void addUser(long mid, short level) {
+        Graph graph = graph();
+        synchronized (this) {
+            if (graph.ids.containsKey(mid))
+                return;
+            int id = graph.size;
+            if (id == graph.mids.length) {
+                int capacity = Math.max(16, id + (id >> 1));
+                graph.levels = Arrays.copyOf(graph.levels, capacity);
+                graph.mids = Arrays.copyOf(graph.mids, capacity);
+            }
+            graph.mids[id] = mid;
+            graph.levels[id] = level;
+            graph.size++;
+            graph.ids.put(mid, id);
+        }
+    }
+
+    /**
+     * Applies a follow or an unfollow, either user being unknown is ignored.
+     */
+    public void setFollowing(long followerMid, long followeeMid, boolean following) {
+        Graph graph = graph();
+        synchronized (this) {
+            Integer follower = graph.ids.get(followerMid);
+            Integer followee = graph.ids.get(followeeMid);
+            if (follower == null || followee == null)
+                return;
+            int[] followings = graph.following(follower);
+            int at = Arrays.binarySearch(followings, followee);
+            if ((at >= 0) == following)
+                return;
+            graph.followingPatch.put(follower, following ? insert(followings, followee) : remove(followings, followee));
+            int[] followers = graph.followers(followee);
+            graph.followerPatch.put(followee, following ? insert(followers, follower) : remove(followers, follower));
+        }
+    }
+
+    /**
+     * Drops a deleted user together with every follow from or to the user, which the database removes by cascade.
+     */
+    public void removeUser(long mid) {
+        Graph graph = graph();
+        synchronized (this) {
+            Integer user = graph.ids.remove(mid);
+            if (user == null)
+                return;
+            for (int followee : graph.following(user))
+                graph.followerPatch.put(followee, remove(graph.followers(followee), user));
+            for (int follower : graph.followers(user))
+                graph.followingPatch.put(follower, remove(graph.following(follower), user));
+            graph.followingPatch.put(user, EMPTY);
+            graph.followerPatch.put(user, EMPTY);
+        }
+    }
+
+    /**
+     * Returns the users {@code mid} follows and is followed by.
+     */
+    public long[] friends(long mid) {
+        Graph graph = graph();
+        Integer user = graph.ids.get(mid);
+        if (user == null)
+            return new long[0];
+        int[] following = graph.following(user);
+        int[] followers = graph.followers(user);
+        // read after the lists, so it covers every user a follow in them was applied to
+        long[] mids = graph.mids;
+        long[] friends = new long[Math.min(following.length, followers.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < following.length && j < followers.length; ) {
+            if (following[i] < followers[j])
+                i++;
+            else if (following[i] > followers[j])
+                j++;
+            else {
+                friends[size++] = mids[following[i]];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(friends, size);
+    }
+
+    /**
+     * Returns the user's level, or 0 when the user does not exist.
+     */
+    public short level(long mid) {
+        Graph graph = graph();
+        Integer user = graph.ids.get(mid);
+        return user == null ? 0 : graph.levels[user];
+    }
+
+    /**
+     * Returns one page of the users following the most of the users {@code mid} follows, excluding the user
+     * and the users already followed, then ordered by level descending and mid ascending.
+     */
+    public List<Long> recommend(long mid, int pageSize, int pageNum) {
+        Graph graph = graph();
+        Integer user = graph.ids.get(mid);
+        if (user == null)
+            return new ArrayList<>();
+        long[] mids = graph.mids;
+        short[] levels = graph.levels;
+        Counter counter = counters.get();
+        if (counter == null)
+            counters.set(counter = new Counter());
+        counter.ensure(mids.length);
+        int[] counts = counter.counts;
+        int[] followings = graph.following(user);
+        Counter touched = counter;
+        for (int followee : followings) {
+            graph.forEachFollower(followee, other -> {
+                if (other != user && other < mids.length && counts[other]++ == 0)
+                    touched.touched[touched.size++] = other;
+            });
+        }
+        long offset = (long) pageSize * (pageNum - 1);
+        int wanted = (int) Math.min(offset + pageSize, counter.size);
+        // keep the first pages in order with an insertion sort over a bounded array
+        int[] best = new int[wanted];
+        int size = 0;
+        for (int t = 0; t < counter.size; t++) {
+            int other = counter.touched[t];
+            if (Arrays.binarySearch(followings, other) >= 0)
+                continue;
+            if (size == wanted && (wanted == 0 || !before(counts, mids, levels, other, best[size - 1])))
+                continue;
+            int low = 0, high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (before(counts, mids, levels, best[middle], other))
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            System.arraycopy(best, low, best, low + 1, Math.min(size, wanted - 1) - low);
+            best[low] = other;
+            size = Math.min(size + 1, wanted);
+        }
+        List<Long> page = new ArrayList<>(pageSize);
+        for (long i = offset; i < size; i++)
+            page.add(mids[best[(int) i]]);
+        for (int t = 0; t < counter.size; t++)
+            counts[counter.touched[t]] = 0;
+        counter.size = 0;
+        return page;
+    }
+
+    private static boolean before(int[] counts, long[] mids, short[] levels, int a, int b) {
+        if (counts[a] != counts[b])
+            return counts[a] > counts[b];
+        if (levels[a] != levels[b])
+            return levels[a] > levels[b];
+        return mids[a] < mids[b];
+    }
+
+    private static int[] insert(int[] sorted, int value) {
+        int at = -Arrays.binarySearch(sorted, value) - 1;
+        int[] result = new int[sorted.length + 1];
+        System.arraycopy(sorted, 0, result, 0, at);
+        result[at] = value;
+        System.arraycopy(sorted, at, result, at + 1, sorted.length - at);
+        return result;
+    }
+
+    private static int[] remove(int[] sorted, int value) {
+        int at = Arrays.binarySearch(sorted, value);
+        if (at < 0)
+            return sorted;
+        int[] result = new int[sorted.length - 1];
+        System.arraycopy(sorted, 0, result, 0, at);
+        System.arraycopy(sorted, at + 1, result, at, sorted.length - at - 1);
+        return result;
+    }
+}
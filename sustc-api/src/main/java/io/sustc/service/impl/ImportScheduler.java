@@ -0,0 +1,224 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the import as a graph of table tasks.
+ * <p>
+ * Each task declares the tasks it depends on, whether it is mostly bound by the CPU or by the
+ * database, and an estimated cost. Ready tasks are started longest critical path first, database
+ * tasks never exceed the configured concurrency so the connection pool is not exhausted, and
+ * {@link #run()} returns only when every task has finished.
+ */
+@Slf4j
+public class ImportScheduler {
+    public enum Cost {CPU, DB}
+
+    private static class Task {
+        final String name;
+        final Cost cost;
+        final long weight;
+        final Runnable action;
+        final String[] dependencies;
+        final List<Task> dependents = new ArrayList<>();
+        int waiting;
+        int index;
+        long rank;
+        Task next;
+        long readyTime;
+        long startTime;
+        long endTime;
+
+        Task(String name, Cost cost, long weight, Runnable action, String[] dependencies) {
+            this.name = name;
+            this.cost = cost;
+            this.weight = weight;
+            this.action = action;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private final Map<String, Task> tasks = new LinkedHashMap<>();
+    private final int dbConcurrency;
+    private final int cpuConcurrency;
+    private final Object lock = new Object();
+    private int runningDb;
+    private int runningCpu;
+    private int finished;
+    private Throwable failure;
+
+    public ImportScheduler(int dbConcurrency) {
+        this.dbConcurrency = Math.max(1, dbConcurrency);
+        this.cpuConcurrency = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Declares a task, its dependencies must be declared before {@link #run()}.
+     *
+     * @param weight estimated cost of the task, only compared between tasks
+     */
+    public ImportScheduler task(String name, Cost cost, long weight, Runnable action, String... dependencies) {
+        if (tasks.putIfAbsent(name, new Task(name, cost, Math.max(1, weight), action, dependencies)) != null)
+            throw new IllegalArgumentException("Duplicate import task: " + name);
+        return this;
+    }
+
+    public void run() {
+        List<Task> order = link();
+        PriorityQueue<Task> ready = new PriorityQueue<>(
+                Comparator.comparingLong((Task task) -> -task.rank).thenComparingInt(task -> task.index)
+        );
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Import-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long startTime = System.currentTimeMillis();
+        for (Task task : order) {
+            if (task.waiting == 0) {
+                task.readyTime = startTime;
+                ready.add(task);
+            }
+        }
+        try {
+            synchronized (lock) {
+                while (finished < order.size()) {
+                    if (failure != null && runningDb + runningCpu == 0)
+                        break;
+                    if (failure == null)
+                        dispatch(ready, executor);
+                    lock.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            executor.shutdown();
+        }
+        report(order, startTime);
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure != null)
+            throw new IllegalStateException("Import task failed", failure);
+    }
+
+    /**
+     * Resolves dependencies and computes each task's critical path length to the end of the import.
+     */
+    private List<Task> link() {
+        List<Task> order = new ArrayList<>();
+        for (Task task : tasks.values()) {
+            for (String name : task.dependencies) {
+                Task dependency = tasks.get(name);
+                if (dependency == null)
+                    throw new IllegalStateException("Import task " + task.name + " depends on unknown task " + name);
+                dependency.dependents.add(task);
+                task.waiting++;
+            }
+        }
+        Map<Task, Integer> waiting = new HashMap<>();
+        Deque<Task> queue = new ArrayDeque<>();
+        for (Task task : tasks.values()) {
+            waiting.put(task, task.waiting);
+            if (task.waiting == 0)
+                queue.add(task);
+        }
+        while (!queue.isEmpty()) {
+            Task task = queue.poll();
+            order.add(task);
+            for (Task dependent : task.dependents) {
+                if (waiting.merge(dependent, -1, Integer::sum) == 0)
+                    queue.add(dependent);
+            }
+        }
+        if (order.size() != tasks.size())
+            throw new IllegalStateException("Import tasks have a dependency cycle");
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Task task = order.get(i);
+            task.index = i;
+            long longest = 0;
+            for (Task dependent : task.dependents) {
+                if (dependent.rank > longest) {
+                    longest = dependent.rank;
+                    task.next = dependent;
+                }
+            }
+            task.rank = longest + task.weight;
+        }
+        return order;
+    }
+
+    private void dispatch(PriorityQueue<Task> ready, ExecutorService executor) {
+        List<Task> blocked = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            Task task = ready.poll();
+            if (task.cost == Cost.DB ? runningDb >= dbConcurrency : runningCpu >= cpuConcurrency) {
+                blocked.add(task);
+                continue;
+            }
+            if (task.cost == Cost.DB)
+                runningDb++;
+            else
+                runningCpu++;
+            executor.execute(() -> execute(task, ready));
+        }
+        ready.addAll(blocked);
+    }
+
+    private void execute(Task task, PriorityQueue<Task> ready) {
+        task.startTime = System.currentTimeMillis();
+        Throwable error = null;
+        try {
+            task.action.run();
+        } catch (Throwable e) {
+            error = e;
+        }
+        task.endTime = System.currentTimeMillis();
+        synchronized (lock) {
+            if (task.cost == Cost.DB)
+                runningDb--;
+            else
+                runningCpu--;
+            finished++;
+            if (error != null) {
+                log.error("Import task {} failed", task.name, error);
+                if (failure == null)
+                    failure = error;
+            }
+            for (Task dependent : task.dependents) {
+                if (--dependent.waiting == 0) {
+                    dependent.readyTime = task.endTime;
+                    ready.add(dependent);
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void report(List<Task> order, long startTime) {
+        log.info("Import finished in {} ms, db concurrency {}", System.currentTimeMillis() - startTime, dbConcurrency);
+        for (Task task : order) {
+            if (task.startTime == 0) {
+                log.info("  {} [{}] not started", task.name, task.cost);
+                continue;
+            }
+            log.info("  {} [{}] waited {} ms, started at {} ms, took {} ms",
+                    task.name, task.cost,
+                    task.startTime - task.readyTime,
+                    task.startTime - startTime,
+                    task.endTime - task.startTime);
+        }
+        StringJoiner path = new StringJoiner(" -> ");
+        Task head = order.stream().max(Comparator.comparingLong(task -> task.rank)).orElse(null);
+        for (Task task = head; task != null; task = task.next)
+            path.add(task.name);
+        log.info("Critical path: {}", path);
+    }
+}
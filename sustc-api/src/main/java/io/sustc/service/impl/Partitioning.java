@@ -0,0 +1,130 @@
+package io.sustc.service.impl;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.sustc.service.DatabaseService.*;
+
+/**
+ * Hash partition layout of one relation table.
+ * <p>
+ * The partition count comes from {@link io.sustc.service.DatabaseService#PARTITION_COUNTS} when the table
+ * is listed there, otherwise it is sized from the number of rows about to be imported. Partitions are named
+ * {@code Table_1 .. Table_n}, sub-partitions {@code Table_i_1 .. Table_i_m}.
+ */
+@Getter
+public class Partitioning {
+    private static final long HASH_PARTITION_SEED = 0x7A5B22367996DCFDL;
+
+    private final String table;
+    private final int partitions;
+    private final int subPartitions;
+
+    private Partitioning(String table, int partitions, int subPartitions) {
+        this.table = table;
+        this.partitions = partitions;
+        this.subPartitions = subPartitions;
+    }
+
+    public static Partitioning of(String table, long rows) {
+        Integer configured = PARTITION_COUNTS.get(table);
+        int partitions = configured != null ? configured : autoSize(rows);
+        return new Partitioning(table, Math.max(1, partitions), Math.max(1, SUB_PARTITION_COUNTS.getOrDefault(table, 1)));
+    }
+
+    private static int autoSize(long rows) {
+        long wanted = (rows + PARTITION_ROWS - 1) / PARTITION_ROWS;
+        int partitions = 1;
+        while (partitions < wanted && partitions < MAX_PARTITIONS)
+            partitions <<= 1;
+        return partitions;
+    }
+
+    /**
+     * Generates the DDL of the partitioned table.
+     *
+     * @param columns column definitions of the parent table
+     * @param key     column the table is hash partitioned on
+     * @param subKey  column each partition is hash partitioned on when sub-partitions are configured
+     */
+    public String createTable(String columns, String key, String subKey) {
+        StringBuilder ddl = new StringBuilder();
+        ddl.append(String.format("CREATE TABLE IF NOT EXISTS %s(%s) PARTITION BY HASH (%s);\n", table, columns, key));
+        for (int i = 0; i < partitions; i++) {
+            String partition = table + "_" + (i + 1);
+            ddl.append(String.format("CREATE TABLE %s PARTITION OF %s FOR VALUES WITH (MODULUS %d, REMAINDER %d)",
+                    partition, table, partitions, i));
+            if (subPartitions == 1) {
+                ddl.append(";\n");
+                continue;
+            }
+            ddl.append(String.format(" PARTITION BY HASH (%s);\n", subKey));
+            for (int j = 0; j < subPartitions; j++) {
+                ddl.append(String.format("CREATE TABLE %s_%d PARTITION OF %s FOR VALUES WITH (MODULUS %d, REMAINDER %d);\n",
+                        partition, j + 1, partition, subPartitions, j));
+            }
+        }
+        return ddl.toString();
+    }
+
+    public List<String> partitionNames() {
+        List<String> names = new ArrayList<>(partitions);
+        for (int i = 1; i <= partitions; i++)
+            names.add(table + "_" + i);
+        return names;
+    }
+
+    /**
+     * Returns the leaf tables under {@code partition}, which is the partition itself when there are no sub-partitions.
+     */
+    public List<String> subPartitionNames(String partition) {
+        if (subPartitions == 1)
+            return List.of(partition);
+        List<String> names = new ArrayList<>(subPartitions);
+        for (int i = 1; i <= subPartitions; i++)
+            names.add(partition + "_" + i);
+        return names;
+    }
+
+    /**
+     * Returns the zero based partition a BIGINT key is routed to, the same way Postgres routes it.
+     * <p>
+     * Rows are still copied through the parent table, so this only decides which rows share a COPY stream.
+     */
+    public int partition(long key) {
+        long rowHash = hashInt8Extended(key, HASH_PARTITION_SEED) + 0x49a0f4dd15e5a8e3L;
+        return (int) Long.remainderUnsigned(rowHash, partitions);
+    }
+
+    /**
+     * Port of {@code hashint8extended}, lookup3 over the folded 32-bit value.
+     */
+    private static long hashInt8Extended(long value, long seed) {
+        int lo = (int) value;
+        int hi = (int) (value >>> 32);
+        int k = lo ^ (value >= 0 ? hi : ~hi);
+        int a, b, c;
+        a = b = c = 0x9e3779b9 + 4 + 3923095;
+        if (seed != 0) {
+            a += (int) (seed >>> 32);
+            b += (int) seed;
+            a -= c; a ^= Integer.rotateLeft(c, 4); c += b;
+            b -= a; b ^= Integer.rotateLeft(a, 6); a += c;
+            c -= b; c ^= Integer.rotateLeft(b, 8); b += a;
+            a -= c; a ^= Integer.rotateLeft(c, 16); c += b;
+            b -= a; b ^= Integer.rotateLeft(a, 19); a += c;
+            c -= b; c ^= Integer.rotateLeft(b, 4); b += a;
+        }
+        a += k;
+        c ^= b; c -= Integer.rotateLeft(b, 14);
+        a ^= c; a -= Integer.rotateLeft(c, 11);
+        b ^= a; b -= Integer.rotateLeft(a, 25);
+        c ^= b; c -= Integer.rotateLeft(b, 16);
+        a ^= c; a -= Integer.rotateLeft(c, 4);
+        b ^= a; b -= Integer.rotateLeft(a, 14);
+        c ^= b; c -= Integer.rotateLeft(b, 24);
+        return ((long) b << 32) | (c & 0xFFFFFFFFL);
+    }
+}
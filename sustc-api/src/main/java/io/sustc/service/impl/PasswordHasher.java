@@ -0,0 +1,111 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.UserRecord;
+import io.sustc.service.UserService;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Argon2 encoding stage of the import.
+ * <p>
+ * Users are hashed in batches on a dedicated pool, so the deliberately expensive encoding
+ * does not compete with the COPY tasks on the common pool. Finished batches are handed to the
+ * caller as soon as they complete, in any order, which lets the UserAuth COPY stream overlap
+ * with hashing instead of waiting for the whole table. Progress, throughput and queue depth are
+ * logged every {@link #PROGRESS_INTERVAL} ms.
+ */
+@Slf4j
+public class PasswordHasher {
+    public static final int THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int BATCH_SIZE = 256;
+    public static final int PENDING_BATCHES = THREADS * 4;
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    private final AtomicInteger queuedBatches = new AtomicInteger();
+    private final AtomicLong hashedRows = new AtomicLong();
+    private volatile long startTime;
+
+    private static class Batch {
+        final int start;
+        final String[] encoded;
+        final Throwable error;
+
+        Batch(int start, String[] encoded, Throwable error) {
+            this.start = start;
+            this.encoded = encoded;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Encodes every user's password and calls {@code sink} on the calling thread for each encoded user.
+     */
+    public void hash(List<UserRecord> userRecords, BiConsumer<UserRecord, String> sink) {
+        int batches = (userRecords.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+        BlockingQueue<Batch> done = new ArrayBlockingQueue<>(PENDING_BATCHES);
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "Argon2-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        hashedRows.set(0);
+        queuedBatches.set(batches);
+        startTime = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < batches; i++) {
+                int start = i * BATCH_SIZE;
+                int end = Math.min(start + BATCH_SIZE, userRecords.size());
+                executor.execute(() -> {
+                    queuedBatches.decrementAndGet();
+                    Batch batch;
+                    try {
+                        String[] encoded = new String[end - start];
+                        for (int j = start; j < end; j++)
+                            encoded[j - start] = UserService.encodePassword(userRecords.get(j).getPassword());
+                        hashedRows.addAndGet(end - start);
+                        batch = new Batch(start, encoded, null);
+                    } catch (Throwable e) {
+                        batch = new Batch(start, null, e);
+                    }
+                    try {
+                        done.put(batch);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            long lastLog = startTime;
+            for (int i = 0; i < batches; i++) {
+                Batch batch = done.take();
+                if (batch.error != null)
+                    throw new IllegalStateException("Failed to encode passwords", batch.error);
+                for (int j = 0; j < batch.encoded.length; j++)
+                    sink.accept(userRecords.get(batch.start + j), batch.encoded[j]);
+                long now = System.currentTimeMillis();
+                if (now - lastLog >= PROGRESS_INTERVAL) {
+                    lastLog = now;
+                    log.info("Encoded {}/{} passwords, {} rows/s, {} batches queued, {} batches awaiting copy",
+                            hashedRows.get(), userRecords.size(), rowsPerSecond(), queuedBatches.get(), done.size());
+                }
+            }
+            log.info("Encoded {} passwords in {} ms with {} threads",
+                    userRecords.size(), System.currentTimeMillis() - startTime, THREADS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long rowsPerSecond() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed <= 0 ? 0 : hashedRows.get() * 1000 / elapsed;
+    }
+}
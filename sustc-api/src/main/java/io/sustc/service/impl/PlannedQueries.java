@@ -0,0 +1,97 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.PostVideoReq;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+
+import static io.sustc.service.DatabaseService.MAX_BV_LENGTH;
+
+/**
+ * Video lookups that must always use an index, kept as PL/pgSQL functions declared with
+ * {@code SET enable_seqscan = off}.
+ * <p>
+ * Postgres applies a function's {@code SET} clause only while the function runs and restores the setting
+ * on return, so each lookup is a single round trip and a pooled connection is never left with sequential
+ * scans disabled. The functions also keep their plans cached per connection like prepared statements.
+ * <p>
+ * The functions are created at import time, and once more on first use in case the data was imported by
+ * an older build.
+ */
+@Slf4j
+public class PlannedQueries {
+    private final JdbcTemplate jdbcTemplate;
+    private volatile boolean created;
+
+    public PlannedQueries(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Creates or replaces the functions, the Video table must exist.
+     */
+    public synchronized void create() {
+        String sql = """
+                CREATE OR REPLACE FUNCTION posted_videos(owner_value BIGINT)
+                RETURNS SETOF CHAR(${MAX_BV_LENGTH}) AS $$
+                BEGIN
+                    RETURN QUERY SELECT Video.bv FROM Video WHERE Video.owner = owner_value;
+                END;
+                $$ LANGUAGE plpgsql STABLE SET enable_seqscan = off;
+
+                CREATE OR REPLACE FUNCTION same_video_exists(owner_value BIGINT, title_value TEXT)
+                RETURNS BOOLEAN AS $$
+                BEGIN
+                    RETURN EXISTS(SELECT 1 FROM Video WHERE Video.owner = owner_value AND Video.title = title_value);
+                END;
+                $$ LANGUAGE plpgsql STABLE SET enable_seqscan = off;
+
+                CREATE OR REPLACE FUNCTION video_info(bv_value CHAR(${MAX_BV_LENGTH}))
+                RETURNS SETOF Video AS $$
+                BEGIN
+                    RETURN QUERY SELECT * FROM Video WHERE Video.bv = bv_value;
+                END;
+                $$ LANGUAGE plpgsql STABLE SET enable_seqscan = off;
+                """
+                .replace("${MAX_BV_LENGTH}", String.valueOf(MAX_BV_LENGTH));
+        jdbcTemplate.execute(sql);
+        created = true;
+        log.info("Created planned video lookups");
+    }
+
+    private void ensureCreated() {
+        if (created)
+            return;
+        synchronized (this) {
+            if (!created)
+                create();
+        }
+    }
+
+    public String[] posted(long mid) {
+        ensureCreated();
+        List<String> bvs = jdbcTemplate.queryForList("SELECT * FROM posted_videos(?)", String.class, mid);
+        return bvs.toArray(new String[0]);
+    }
+
+    public boolean sameVideoExists(long mid, String title) {
+        ensureCreated();
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT same_video_exists(?, ?)", Boolean.class, mid, title));
+    }
+
+    /**
+     * Returns the editable fields of a video, or {@code null} when it does not exist.
+     */
+    public PostVideoReq videoInfo(String bv) {
+        ensureCreated();
+        String sql = "SELECT title, duration, description, public_time FROM video_info(?::bpchar)";
+        List<PostVideoReq> videos = jdbcTemplate.query(sql, (rs, rowNum) -> PostVideoReq.builder()
+                .title(rs.getString("title"))
+                .duration(rs.getFloat("duration"))
+                .description(rs.getString("description"))
+                .publicTime(rs.getTimestamp("public_time"))
+                .build(), bv);
+        return videos.isEmpty() ? null : videos.get(0);
+    }
+}
@@ -0,0 +1,284 @@
+package io.sustc.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Trigram inverted index over each video's searchable text, the lowercased title, description and owner
+ * name, used to count keyword occurrences without touching the database.
+ * <p>
+ * A keyword of at least {@link #GRAM} characters can only occur in a video containing all of its trigrams,
+ * so the candidates are the intersection of those posting lists, and each candidate's text is then
+ * scanned to count the occurrences. Shorter keywords scan every text.
+ * <p>
+ * The posting lists are an immutable snapshot that readers use without locking. Videos added or changed
+ * after the snapshot are kept in a small side set that every search scans as well, and the snapshot is
+ * rebuilt once that set grows past {@link #REBUILD_THRESHOLD}. A snapshot entry whose video was changed
+ * or deleted since is recognized because it is no longer the current document of its bv.
+ */
+@Slf4j
+public class SearchIndex {
+    public static final int GRAM = 3;
+    public static final int REBUILD_THRESHOLD = 4096;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Map<String, Document> documents = new ConcurrentHashMap<>();
+    private final Set<Document> recent = ConcurrentHashMap.newKeySet();
+    private volatile Postings postings = Postings.EMPTY;
+    private volatile boolean loaded;
+
+    private static class Document {
+        final String bv;
+        final String text;
+
+        Document(String bv, String text) {
+            this.bv = bv;
+            this.text = text;
+        }
+    }
+
+    private static class Postings {
+        static final Postings EMPTY = new Postings(new Document[0], Map.of());
+
+        final Document[] documents;
+        /**
+         * Sorted positions in {@link #documents} of the documents containing each trigram.
+         */
+        final Map<Long, int[]> grams;
+
+        Postings(Document[] documents, Map<Long, int[]> grams) {
+            this.documents = documents;
+            this.grams = grams;
+        }
+
+        static Postings build(Collection<Document> snapshot) {
+            Document[] documents = snapshot.toArray(new Document[0]);
+            // first pass counts the documents of each gram, {count, last position}
+            Map<Long, int[]> counts = new HashMap<>();
+            for (int i = 0; i < documents.length; i++) {
+                String text = documents[i].text;
+                for (int j = 0; j + GRAM <= text.length(); j++) {
+                    int[] count = counts.computeIfAbsent(gram(text, j), key -> new int[]{0, -1});
+                    if (count[1] != i) {
+                        count[0]++;
+                        count[1] = i;
+                    }
+                }
+            }
+            Map<Long, int[]> grams = new HashMap<>(counts.size() * 4 / 3 + 1);
+            counts.forEach((gram, count) -> {
+                grams.put(gram, new int[count[0]]);
+                count[0] = 0;
+                count[1] = -1;
+            });
+            for (int i = 0; i < documents.length; i++) {
+                String text = documents[i].text;
+                for (int j = 0; j + GRAM <= text.length(); j++) {
+                    long gram = gram(text, j);
+                    int[] count = counts.get(gram);
+                    if (count[1] != i) {
+                        grams.get(gram)[count[0]++] = i;
+                        count[1] = i;
+                    }
+                }
+            }
+            return new Postings(documents, grams);
+        }
+    }
+
+    public SearchIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Indexes the imported videos.
+     *
+     * @param texts every video's searchable text by bv, already lowercased
+     */
+    public synchronized void load(Map<String, String> texts) {
+        clear();
+        texts.forEach((bv, text) -> documents.put(bv, new Document(bv, text)));
+        postings = Postings.build(documents.values());
+        loaded = true;
+        log.info("Indexed {} videos for search, {} trigrams", documents.size(), postings.grams.size());
+    }
+
+    private void ensureLoaded() {
+        if (loaded)
+            return;
+        synchronized (this) {
+            if (loaded)
+                return;
+            String sql = """
+                    SELECT Video.bv, lower(CONCAT(Video.title, Video.description, UserProfile.name)) AS text
+                    FROM Video
+                    JOIN UserProfile ON Video.owner = UserProfile.mid
+                    """;
+            jdbcTemplate.query(sql, rs -> {
+                String bv = rs.getString("bv");
+                documents.put(bv, new Document(bv, rs.getString("text")));
+            });
+            postings = Postings.build(documents.values());
+            loaded = true;
+            log.info("Indexed {} videos for search from database, {} trigrams", documents.size(), postings.grams.size());
+        }
+    }
+
+    public synchronized void clear() {
+        documents.clear();
+        recent.clear();
+        postings = Postings.EMPTY;
+        loaded = false;
+    }
+
+    /**
+     * Re-reads the searchable text of a video that was just inserted.
+     */
+    public void refresh(String bv) {
+        ensureLoaded();
+        String sql = """
+                SELECT lower(CONCAT(Video.title, Video.description, UserProfile.name))
+                FROM Video
+                JOIN UserProfile ON Video.owner = UserProfile.mid
+                WHERE Video.bv = ?
+                """;
+        String text;
+        try {
+            text = jdbcTemplate.queryForObject(sql, String.class, bv);
+        } catch (EmptyResultDataAccessException e) {
+            remove(bv);
+            return;
+        }
+        refresh(bv, text);
+    }
+
+    /**
+     * Replaces the searchable text of a video with the given one, already lowercased.
+     */
+    public void refresh(String bv, String text) {
+        ensureLoaded();
+        Document document = new Document(bv, text);
+        recent.add(document);
+        Document old = documents.put(bv, document);
+        if (old != null)
+            recent.remove(old);
+        if (recent.size() > REBUILD_THRESHOLD)
+            rebuild();
+    }
+
+    public void remove(String bv) {
+        ensureLoaded();
+        Document old = documents.remove(bv);
+        if (old != null)
+            recent.remove(old);
+    }
+
+    private synchronized void rebuild() {
+        if (recent.size() <= REBUILD_THRESHOLD)
+            return;
+        List<Document> snapshot = new ArrayList<>(documents.values());
+        postings = Postings.build(snapshot);
+        snapshot.forEach(recent::remove);
+        log.debug("Rebuilt search index over {} videos", snapshot.size());
+    }
+
+    /**
+     * Sums, for every video, the non-overlapping occurrences of each keyword in its text.
+     *
+     * @param keywords lowercased keywords, a keyword listed twice counts twice
+     * @param visible  whether the searching user may see the video with the given bv
+     * @return the relevance of every visible video that contains at least one keyword
+     */
+    public Map<String, Integer> relevance(List<String> keywords, Predicate<String> visible) {
+        ensureLoaded();
+        Postings postings = this.postings;
+        Map<Document, Integer> relevance = new HashMap<>();
+        for (String keyword : keywords) {
+            if (keyword.isEmpty())
+                continue;
+            Iterable<Document> candidates = keyword.length() < GRAM ? documents.values() : candidates(postings, keyword);
+            for (Document document : candidates) {
+                int count = occurrences(document.text, keyword);
+                if (count > 0)
+                    relevance.merge(document, count, Integer::sum);
+            }
+        }
+        Map<String, Integer> result = new HashMap<>();
+        relevance.forEach((document, count) -> {
+            if (visible.test(document.bv))
+                result.put(document.bv, count);
+        });
+        return result;
+    }
+
+    private Set<Document> candidates(Postings postings, String keyword) {
+        List<int[]> lists = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        for (int j = 0; j + GRAM <= keyword.length(); j++) {
+            long gram = gram(keyword, j);
+            if (!seen.add(gram))
+                continue;
+            int[] list = postings.grams.get(gram);
+            if (list == null) {
+                lists = null;
+                break;
+            }
+            lists.add(list);
+        }
+        // a set, since a rebuild may publish a document before dropping it from the recent ones
+        Set<Document> candidates = new HashSet<>(recent);
+        if (lists == null)
+            return candidates;
+        lists.sort(Comparator.comparingInt(list -> list.length));
+        int[] matched = lists.get(0).clone();
+        int size = matched.length;
+        for (int k = 1; k < lists.size() && size > 0; k++)
+            size = intersect(matched, size, lists.get(k));
+        for (int i = 0; i < size; i++) {
+            Document document = postings.documents[matched[i]];
+            if (documents.get(document.bv) == document)
+                candidates.add(document);
+        }
+        return candidates;
+    }
+
+    /**
+     * Intersects the first {@code size} positions of {@code a} with {@code b} in place.
+     *
+     * @return the size of the intersection
+     */
+    private static int intersect(int[] a, int size, int[] b) {
+        int i = 0, j = 0, k = 0;
+        while (i < size && j < b.length) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                a[k++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Same count as {@code (length(text) - length(replace(text, keyword, ''))) / length(keyword)}.
+     */
+    static int occurrences(String text, String keyword) {
+        int count = 0;
+        for (int from = text.indexOf(keyword); from >= 0; from = text.indexOf(keyword, from + keyword.length()))
+            count++;
+        return count;
+    }
+
+    private static long gram(String text, int at) {
+        return ((long) text.charAt(at) << 32) | ((long) text.charAt(at + 1) << 16) | text.charAt(at + 2);
+    }
+}
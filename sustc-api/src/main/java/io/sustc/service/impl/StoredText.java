@@ -0,0 +1,20 @@
+package io.sustc.service.impl;
+
+/**
+ * How text columns are stored. They are imported with CSV COPY, which would read a raw tab or newline as a
+ * delimiter, so every name, sign, title, description and danmu content is stored, and compared, with them escaped.
+ */
+final class StoredText {
+    private StoredText() {
+    }
+
+    /**
+     * Returns the text the way it is stored, with tabs and newlines escaped and {@code null} as an empty string.
+     */
+    static String escape(String input) {
+        if (input == null)
+            return "";
+        return input.replace("\t", "\\t")
+                .replace("\n", "\\n");
+    }
+}
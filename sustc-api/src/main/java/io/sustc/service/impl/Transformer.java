@@ -1,14 +1,10 @@
 package io.sustc.service.impl;
 
-import lombok.Getter;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
 @Service
 @Slf4j
-@Setter
-@Getter
 public class Transformer {
     private static final int[] bvState = {11, 10, 3, 8, 4, 6};
     private static final long bvXOR = 177451812L;
@@ -28,12 +24,6 @@ public class Transformer {
         }
     }
 
-    private long avCount;
-
-    public Transformer() {
-        this.avCount = 10001;
-    }
-
     public long getAv(String bv) {
         long r = 0;
         for (int i = 0; i < 6; i++) {
@@ -50,9 +40,4 @@ public class Transformer {
         }
         return new String(r);
     }
-
-    public String generateBV() {
-        avCount++;
-        return getBv(avCount);
-    }
 }
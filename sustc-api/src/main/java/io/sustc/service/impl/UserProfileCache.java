@@ -0,0 +1,179 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.UserRecord;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.sustc.service.DatabaseService.USER_PROFILE_CACHE_SIZE;
+import static io.sustc.service.impl.StoredText.escape;
+
+/**
+ * Identity, level, name and coin balance of users, for the privilege checks and coin reads made on
+ * almost every request.
+ * <p>
+ * Identity, level and name never change once a user exists. The coin balance is only changed here, by
+ * {@link #setCoin} and {@link #spendCoin}, under the lock of the user's profile: a cached balance changes in
+ * memory and is queued on the {@link WriteBehind} queue, any other balance is written to UserProfile
+ * straight away. Every imported user is
+ * cached at import time. Otherwise a user is read from UserProfile on first use, until
+ * {@link io.sustc.service.DatabaseService#USER_PROFILE_CACHE_SIZE} users are cached, after which the
+ * rest are read on every lookup.
+ */
+@Slf4j
+public class UserProfileCache {
+    private static final long REPORT_INTERVAL = 10000;
+
+    @Getter
+    public static class Profile {
+        private final UserRecord.Identity identity;
+        private final short level;
+        private final String name;
+        private volatile int coin;
+
+        private Profile(UserRecord.Identity identity, short level, String name, int coin) {
+            this.identity = identity;
+            this.level = level;
+            this.name = name;
+            this.coin = coin;
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final WriteBehind writeBehind;
+    private final Map<Long, Profile> profiles = new ConcurrentHashMap<>();
+    /**
+     * Bumped on every invalidation, a profile read across one is not cached.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long lastReport = System.currentTimeMillis();
+
+    public UserProfileCache(JdbcTemplate jdbcTemplate, WriteBehind writeBehind) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.writeBehind = writeBehind;
+    }
+
+    public void load(List<UserRecord> userRecords) {
+        clear();
+        for (UserRecord user : userRecords)
+            profiles.put(user.getMid(), new Profile(user.getIdentity(), user.getLevel(), escape(user.getName()), user.getCoin()));
+        log.info("Cached {} user profiles", profiles.size());
+    }
+
+    /**
+     * Returns the user's profile, or {@code null} when the user does not exist.
+     */
+    public Profile get(long mid) {
+        Profile profile = profiles.get(mid);
+        if (profile != null) {
+            hits.incrementAndGet();
+            report();
+            return profile;
+        }
+        misses.incrementAndGet();
+        report();
+        long generation = invalidations.get();
+        String sql = "SELECT identity, level, name, coin FROM UserProfile WHERE mid = ?";
+        List<Profile> users = jdbcTemplate.query(sql, (rs, rowNum) -> new Profile(
+                UserRecord.Identity.valueOf(rs.getString("identity")), rs.getShort("level"),
+                rs.getString("name"), rs.getInt("coin")
+        ), mid);
+        if (users.isEmpty())
+            return null;
+        profile = users.get(0);
+        if (profiles.size() < USER_PROFILE_CACHE_SIZE) {
+            Profile cached = profiles.putIfAbsent(mid, profile);
+            if (cached != null)
+                return cached;
+            // the user may have been deleted while the profile was being read
+            if (invalidations.get() != generation)
+                profiles.remove(mid, profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Caches a newly registered user.
+     */
+    public void add(long mid, UserRecord.Identity identity, short level, String name) {
+        profiles.put(mid, new Profile(identity, level, name, 0));
+    }
+
+    /**
+     * Sets the user's coin balance.
+     */
+    public void setCoin(long mid, int coin) {
+        Profile profile = profiles.get(mid);
+        if (profile == null) {
+            jdbcTemplate.update("UPDATE UserProfile SET coin = ? WHERE mid = ?", coin, mid);
+            uncachedWrite();
+            return;
+        }
+        synchronized (profile) {
+            profile.coin = coin;
+            queueCoin(mid, coin);
+        }
+    }
+
+    /**
+     * Takes one coin from the user, unless the balance is empty.
+     *
+     * @return whether a coin is taken
+     */
+    public boolean spendCoin(long mid) {
+        Profile profile = profiles.get(mid);
+        if (profile == null) {
+            boolean spent = jdbcTemplate.update("UPDATE UserProfile SET coin = coin - 1 WHERE mid = ? AND coin > 0", mid) > 0;
+            uncachedWrite();
+            return spent;
+        }
+        synchronized (profile) {
+            if (profile.coin < 1)
+                return false;
+            queueCoin(mid, --profile.coin);
+            return true;
+        }
+    }
+
+    private void queueCoin(long mid, int coin) {
+        writeBehind.update("coin:" + mid, () -> jdbcTemplate.update("UPDATE UserProfile SET coin = ? WHERE mid = ?", coin, mid));
+    }
+
+    /**
+     * A profile read before a balance written to UserProfile holds the old balance and must not be cached.
+     */
+    private void uncachedWrite() {
+        invalidations.incrementAndGet();
+    }
+
+    public void invalidate(long mid) {
+        invalidations.incrementAndGet();
+        profiles.remove(mid);
+    }
+
+    public void clear() {
+        invalidations.incrementAndGet();
+        profiles.clear();
+    }
+
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReport < REPORT_INTERVAL)
+            return;
+        lastReport = now;
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        log.info("User profile cache: {} entries, {} hits / {} lookups ({}%)",
+                profiles.size(), hitCount, total, total == 0 ? 0 : hitCount * 100 / total);
+    }
+}
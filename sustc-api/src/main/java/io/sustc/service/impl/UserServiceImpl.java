@@ -8,19 +8,40 @@ import io.sustc.service.DatabaseService;
 import io.sustc.service.UserService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 @Service
 @Slf4j
 public class UserServiceImpl implements UserService {
     private final DatabaseService databaseService;
+    private final Executor userInfoExecutor;
+    private volatile Concurrency currentConcurrency;
 
     @Autowired
-    public UserServiceImpl(DatabaseService databaseService) {
+    public UserServiceImpl(DatabaseService databaseService,
+                           @Qualifier("userInfoExecutor") Executor userInfoExecutor,
+                           @Value("${sustc.user-info-concurrency:#{null}}") Concurrency concurrency) {
         this.databaseService = databaseService;
+        this.userInfoExecutor = userInfoExecutor;
+        this.currentConcurrency = concurrency != null ? concurrency : UserService.concurrency;
+        log.info("getUserInfo runs in {} mode", currentConcurrency);
+    }
+
+    @Override
+    public Concurrency getConcurrency() {
+        return currentConcurrency;
+    }
+
+    @Override
+    public void setConcurrency(Concurrency concurrency) {
+        this.currentConcurrency = concurrency;
     }
 
     @Override
@@ -54,13 +75,17 @@ public class UserServiceImpl implements UserService {
     @Override
     public boolean invalidAuthInfo(AuthInfo auth) {
         if (auth == null) return true;
+        if (databaseService.isAuthVerified(auth)) return false;
         if (auth.getPassword() != null && !auth.getPassword().isEmpty()) {
             AuthInfo data = databaseService.getAuthInfo(auth.getMid());
             if (data == null) return true;
             if (!passwordEncoder.matches(auth.getPassword(), data.getPassword()))
                 return true;
             data.setPassword(auth.getPassword());
-            return !data.equals(auth);
+            if (!data.equals(auth))
+                return true;
+            databaseService.cacheVerifiedAuth(auth, auth.getMid(), null);
+            return false;
         }
         AuthInfo QqData = null, WechatData = null;
         if (auth.getQq() != null && !auth.getQq().isEmpty()) {
@@ -73,8 +98,17 @@ public class UserServiceImpl implements UserService {
             if (WechatData == null || (auth.getMid() != 0 && WechatData.getMid() != auth.getMid()))
                 return true;
         }
-        if (QqData != null && WechatData != null)
-            return !QqData.equals(WechatData);
+        if (QqData != null && WechatData != null) {
+            if (!QqData.equals(WechatData))
+                return true;
+            databaseService.cacheVerifiedAuth(auth, QqData.getMid(), null);
+            return false;
+        }
+        // cache before replace() fills in the mid, so the key is what the caller will send again
+        if (QqData != null || WechatData != null) {
+            AuthInfo data = QqData != null ? QqData : WechatData;
+            databaseService.cacheVerifiedAuth(auth, data.getMid(), data);
+        }
         if (QqData != null)
             auth.replace(QqData);
         if (WechatData != null)
@@ -100,7 +134,8 @@ public class UserServiceImpl implements UserService {
             log.warn("Insufficient privilege: {}", auth);
             return false;
         }
-        new Thread(() -> databaseService.deleteUser(mid)).start();
+        databaseService.invalidateAuth(mid);
+        databaseService.submitWrite(() -> databaseService.deleteUser(mid));
         return true;
     }
 
@@ -116,62 +151,57 @@ public class UserServiceImpl implements UserService {
             return false;
         }
         boolean isFollowed = databaseService.isFollowing(auth.getMid(), followeeMid);
-        if (isFollowed)
-            new Thread(() -> databaseService.unfollow(auth.getMid(), followeeMid)).start();
-        else
-            new Thread(() -> databaseService.follow(auth.getMid(), followeeMid)).start();
+        databaseService.setFollowing(auth.getMid(), followeeMid, !isFollowed);
         return !isFollowed;
     }
 
     @Override
     public UserInfoResp getUserInfo(long mid) {
-        return switch (concurrency) {
+        // the user's own follows, likes and favorites may still be queued
+        databaseService.flushWrites();
+        return switch (currentConcurrency) {
             case Sync -> getUserInfoSync(mid);
             case Async -> getUserInfoAsync(mid);
         };
     }
 
     private UserInfoResp getUserInfoSync(long mid) {
-        if (databaseService.isMidNotExist(mid)) {
+        UserInfoResp user = databaseService.getUserInfo(mid);
+        if (user == null)
             log.warn("Can not find: {}", mid);
-            return null;
-        }
-        long[] following = databaseService.getFollowing(mid);
-        long[] follower = databaseService.getFollower(mid);
-        String[] watched = databaseService.getWatched(mid);
-        String[] liked = databaseService.getLiked(mid);
-        String[] collected = databaseService.getCollected(mid);
-        String[] posted = databaseService.getPosted(mid);
-        return UserInfoResp.builder()
-                .mid(mid)
-                .coin(databaseService.getCoin(mid))
-                .following(following)
-                .follower(follower)
-                .watched(watched)
-                .liked(liked)
-                .collected(collected)
-                .posted(posted)
-                .build();
+        return user;
     }
 
+    /**
+     * The coin doubles as the existence check, so all seven queries start at once.
+     */
     private UserInfoResp getUserInfoAsync(long mid) {
-        if (databaseService.isMidNotExist(mid)) {
+        CompletableFuture<Integer> coinFuture = supply(() -> databaseService.getCoin(mid));
+        CompletableFuture<long[]> followingFuture = supply(() -> databaseService.getFollowing(mid));
+        CompletableFuture<long[]> followerFuture = supply(() -> databaseService.getFollower(mid));
+        CompletableFuture<String[]> watchedFuture = supply(() -> databaseService.getWatched(mid));
+        CompletableFuture<String[]> likedFuture = supply(() -> databaseService.getLiked(mid));
+        CompletableFuture<String[]> collectedFuture = supply(() -> databaseService.getCollected(mid));
+        CompletableFuture<String[]> postedFuture = supply(() -> databaseService.getPosted(mid));
+        CompletableFuture.allOf(coinFuture, followingFuture, followerFuture, watchedFuture,
+                likedFuture, collectedFuture, postedFuture).join();
+        if (coinFuture.join() < 0) {
             log.warn("Can not find: {}", mid);
             return null;
         }
-        CompletableFuture<long[]> followingFuture = databaseService.getFollowingAsync(mid);
-        CompletableFuture<long[]> followerFuture = databaseService.getFollowerAsync(mid);
-        CompletableFuture<String[]> watchedFuture = databaseService.getWatchedAsync(mid);
-        CompletableFuture.allOf(followingFuture, followerFuture, watchedFuture).join();
         return UserInfoResp.builder()
                 .mid(mid)
-                .coin(databaseService.getCoin(mid))
+                .coin(coinFuture.join())
                 .following(followingFuture.join())
                 .follower(followerFuture.join())
                 .watched(watchedFuture.join())
-                .liked(databaseService.getLiked(mid))
-                .collected(databaseService.getCollected(mid))
-                .posted(databaseService.getPosted(mid))
+                .liked(likedFuture.join())
+                .collected(collectedFuture.join())
+                .posted(postedFuture.join())
                 .build();
     }
+
+    private <T> CompletableFuture<T> supply(Supplier<T> query) {
+        return CompletableFuture.supplyAsync(query, userInfoExecutor);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.VideoRecord;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps every video's {@code bv} to a dense int id and keeps the few columns needed to decide
+ * whether a user may engage with it.
+ * <p>
+ * Ids are never reused, a deleted video simply disappears from the index. The index is filled at
+ * import time, or read from the Video table on first use when the data was imported by another process.
+ */
+@Slf4j
+public class VideoIndex {
+    private final JdbcTemplate jdbcTemplate;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile String[] bvs = new String[0];
+    private int size;
+    private volatile boolean loaded;
+
+    @Getter
+    public static class Entry {
+        private final int id;
+        private final long owner;
+        private final float duration;
+        private volatile long publicTime;
+        private volatile boolean reviewed;
+
+        private Entry(int id, long owner, float duration, long publicTime, boolean reviewed) {
+            this.id = id;
+            this.owner = owner;
+            this.duration = duration;
+            this.publicTime = publicTime;
+            this.reviewed = reviewed;
+        }
+
+        /**
+         * Whether a normal user can search the video at {@code now}.
+         */
+        public boolean isPublic(long now) {
+            return reviewed && publicTime < now;
+        }
+
+        /**
+         * Whether the video is published at {@code now}, reviewed or not.
+         */
+        public boolean isPublished(long now) {
+            return publicTime < now;
+        }
+    }
+
+    public VideoIndex(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public synchronized void load(List<VideoRecord> videoRecords) {
+        clear();
+        for (VideoRecord video : videoRecords) {
+            boolean reviewed = video.getReviewer() != null && video.getReviewer() > 0;
+            put(video.getBv(), video.getOwnerMid(), video.getDuration(), video.getPublicTime(), reviewed);
+        }
+        loaded = true;
+        log.info("Indexed {} videos", size);
+    }
+
+    private void ensureLoaded() {
+        if (loaded)
+            return;
+        synchronized (this) {
+            if (loaded)
+                return;
+            String sql = "SELECT bv, owner, duration, public_time, reviewer FROM Video";
+            jdbcTemplate.query(sql, rs -> {
+                put(rs.getString("bv"), rs.getLong("owner"), rs.getFloat("duration"), rs.getTimestamp("public_time"),
+                        rs.getLong("reviewer") > 0);
+            });
+            loaded = true;
+            log.info("Indexed {} videos from database", size);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bvs = new String[0];
+        size = 0;
+        loaded = false;
+    }
+
+    private Entry put(String bv, long owner, float duration, Timestamp publicTime, boolean reviewed) {
+        if (size == bvs.length)
+            bvs = Arrays.copyOf(bvs, Math.max(1024, size * 2));
+        bvs[size] = bv;
+        Entry entry = new Entry(size++, owner, duration, publicTime == null ? Long.MAX_VALUE : publicTime.getTime(), reviewed);
+        entries.put(bv, entry);
+        return entry;
+    }
+
+    /**
+     * Returns the video's entry, or {@code null} when it does not exist.
+     */
+    public Entry get(String bv) {
+        if (bv == null)
+            return null;
+        ensureLoaded();
+        return entries.get(bv);
+    }
+
+    /**
+     * Returns the video's id, or -1 when it does not exist.
+     */
+    public int id(String bv) {
+        Entry entry = get(bv);
+        return entry == null ? -1 : entry.id;
+    }
+
+    public String bv(int id) {
+        return bvs[id];
+    }
+
+    /**
+     * Upper bound of all ids handed out so far.
+     */
+    public synchronized int capacity() {
+        return size;
+    }
+
+    public void add(String bv, long owner, float duration, Timestamp publicTime) {
+        ensureLoaded();
+        synchronized (this) {
+            put(bv, owner, duration, publicTime, false);
+        }
+    }
+
+    /**
+     * @return whether the video was still indexed
+     */
+    public boolean remove(String bv) {
+        ensureLoaded();
+        return entries.remove(bv) != null;
+    }
+
+    /**
+     * Drops the videos of a deleted user, which the database removes by cascade.
+     *
+     * @return the bv of every dropped video
+     */
+    public List<String> removeOwnedBy(long mid) {
+        ensureLoaded();
+        List<String> removed = new ArrayList<>();
+        entries.entrySet().removeIf(entry -> {
+            if (entry.getValue().owner != mid)
+                return false;
+            removed.add(entry.getKey());
+            return true;
+        });
+        return removed;
+    }
+
+    public void setReviewed(String bv) {
+        Entry entry = get(bv);
+        if (entry != null)
+            entry.reviewed = true;
+    }
+
+    /**
+     * Updating a video's info makes it unreviewed again.
+     */
+    public void setUpdated(String bv, Timestamp publicTime) {
+        Entry entry = get(bv);
+        if (entry == null)
+            return;
+        entry.publicTime = publicTime == null ? Long.MAX_VALUE : publicTime.getTime();
+        entry.reviewed = false;
+    }
+}
@@ -0,0 +1,161 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.PostVideoReq;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.sustc.service.DatabaseService.VIDEO_INFO_CACHE_SIZE;
+
+/**
+ * Bounded cache of the editable fields of videos (title, description, duration, public time), which
+ * {@code isNewInfoValid} compares an update against.
+ * <p>
+ * Owner, duration, public time and review state of every video are already kept by {@link VideoIndex},
+ * this cache only holds the text columns it leaves out. Entries are immutable, a changed or deleted video
+ * is dropped and read again through {@link PlannedQueries#videoInfo(String)} on next use. Once
+ * {@link io.sustc.service.DatabaseService#VIDEO_INFO_CACHE_SIZE} videos are cached, an eighth of them is
+ * evicted in hash order, which keeps lookups lock-free.
+ * <p>
+ * An update still queued for the database is held apart from the cache until it is written, so it is
+ * neither evicted nor shadowed by the stale row.
+ */
+@Slf4j
+public class VideoInfoCache {
+    private static final long REPORT_INTERVAL = 10000;
+
+    private static class Entry {
+        final String title;
+        final String description;
+        final float duration;
+        /**
+         * Never handed out, callers get a copy since {@link Timestamp} is mutable.
+         */
+        final Timestamp publicTime;
+
+        Entry(PostVideoReq info) {
+            this.title = info.getTitle();
+            this.description = info.getDescription();
+            this.duration = info.getDuration();
+            this.publicTime = copy(info.getPublicTime());
+        }
+
+        PostVideoReq toReq() {
+            return PostVideoReq.builder()
+                    .title(title)
+                    .description(description)
+                    .duration(duration)
+                    .publicTime(copy(publicTime))
+                    .build();
+        }
+
+        static Timestamp copy(Timestamp timestamp) {
+            return timestamp == null ? null : (Timestamp) timestamp.clone();
+        }
+    }
+
+    private final PlannedQueries plannedQueries;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+    /**
+     * Bumped on every invalidation, a row read across one is not cached.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+    @Getter
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile long lastReport = System.currentTimeMillis();
+
+    public VideoInfoCache(PlannedQueries plannedQueries) {
+        this.plannedQueries = plannedQueries;
+    }
+
+    /**
+     * Returns the editable fields of a video, or {@code null} when it does not exist.
+     */
+    public PostVideoReq get(String bv) {
+        Entry entry = pending.get(bv);
+        if (entry == null)
+            entry = entries.get(bv);
+        if (entry != null) {
+            hits.incrementAndGet();
+            report();
+            return entry.toReq();
+        }
+        misses.incrementAndGet();
+        report();
+        long generation = invalidations.get();
+        PostVideoReq info = plannedQueries.videoInfo(bv);
+        if (info == null)
+            return null;
+        if (entries.size() >= VIDEO_INFO_CACHE_SIZE)
+            evict();
+        entries.put(bv, new Entry(info));
+        // the video may have changed while it was being read
+        if (invalidations.get() != generation)
+            entries.remove(bv);
+        return info;
+    }
+
+    private void evict() {
+        int count = Math.max(1, VIDEO_INFO_CACHE_SIZE / 8);
+        Iterator<String> iterator = entries.keySet().iterator();
+        for (int i = 0; i < count && iterator.hasNext(); i++) {
+            iterator.next();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Takes the editable fields of an update that is not in the database yet, already escaped the way they are stored.
+     *
+     * @return the handle to pass to {@link #written(String, Object)} once the update is written
+     */
+    public Object update(String bv, PostVideoReq info) {
+        Entry entry = new Entry(info);
+        invalidations.incrementAndGet();
+        pending.put(bv, entry);
+        entries.remove(bv);
+        return entry;
+    }
+
+    /**
+     * The update is in the database, the video is read from there again unless a later update is pending.
+     */
+    public void written(String bv, Object update) {
+        pending.remove(bv, update);
+    }
+
+    public void invalidate(String bv) {
+        invalidations.incrementAndGet();
+        pending.remove(bv);
+        entries.remove(bv);
+    }
+
+    public void clear() {
+        invalidations.incrementAndGet();
+        pending.clear();
+        entries.clear();
+    }
+
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReport < REPORT_INTERVAL)
+            return;
+        lastReport = now;
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        log.info("Video info cache: {} entries, {} hits / {} lookups ({}%), {} evicted",
+                entries.size(), hitCount, total, total == 0 ? 0 : hitCount * 100 / total, evictions.get());
+    }
+}
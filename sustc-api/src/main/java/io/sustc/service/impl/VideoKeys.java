@@ -0,0 +1,69 @@
+package io.sustc.service.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static io.sustc.service.DatabaseService.*;
+
+/**
+ * Converts between the bv strings of the service API and the video key the engagement tables are stored
+ * with, as selected by {@link io.sustc.service.DatabaseService#VIDEO_KEY}.
+ * <p>
+ * In {@code Bv} mode ViewVideo, LikeVideo, CoinVideo and FavVideo keep {@code bv CHAR(12)} and the key is
+ * the bv itself. In {@code Av} mode they store {@code av BIGINT} instead, referencing a unique {@code av}
+ * column of Video, and every bv is converted with {@link Transformer#getAv(String)} on the way in and
+ * {@link Transformer#getBv(long)} on the way out.
+ */
+public class VideoKeys {
+    public static final boolean AV = VIDEO_KEY == VideoKey.Av;
+    /**
+     * Column the engagement tables reference videos by.
+     */
+    public static final String COLUMN = AV ? "av" : "bv";
+    public static final String TYPE = AV ? "BIGINT" : String.format("CHAR(%d)", MAX_BV_LENGTH);
+    /**
+     * Key of a bv no video can have, it matches no row.
+     */
+    private static final long NO_VIDEO = Long.MIN_VALUE;
+
+    private final Transformer transformer;
+
+    public VideoKeys(Transformer transformer) {
+        this.transformer = transformer;
+    }
+
+    /**
+     * Returns the key of a bv, a malformed bv gets a key that matches no row.
+     */
+    public Object key(String bv) {
+        if (!AV)
+            return bv;
+        return av(bv);
+    }
+
+    public long av(String bv) {
+        if (bv == null || bv.length() != MAX_BV_LENGTH)
+            return NO_VIDEO;
+        for (int i = 0; i < MAX_BV_LENGTH; i++) {
+            if (bv.charAt(i) >= 0x80)
+                return NO_VIDEO;
+        }
+        long av = transformer.getAv(bv);
+        // only the canonical spelling of an av is a bv, any other maps onto someone else's video
+        return transformer.getBv(av).equals(bv) ? av : NO_VIDEO;
+    }
+
+    /**
+     * Reads a key column back as a bv.
+     */
+    public String bv(ResultSet rs, String column) throws SQLException {
+        return AV ? transformer.getBv(rs.getLong(column)) : rs.getString(column);
+    }
+
+    /**
+     * Converts a key read from a SQL array back to a bv.
+     */
+    public String bv(Object key) {
+        return AV ? transformer.getBv(((Number) key).longValue()) : (String) key;
+    }
+}
@@ -22,13 +22,11 @@ import java.util.stream.Collectors;
 public class VideoServiceImpl implements VideoService {
     private final DatabaseService databaseService;
     private final UserService userService;
-    private List<String> lastKeywords;
 
     @Autowired
     public VideoServiceImpl(DatabaseService databaseService, UserService userService) {
         this.databaseService = databaseService;
         this.userService = userService;
-        lastKeywords = null;
     }
 
     @Override
@@ -58,10 +56,8 @@ public class VideoServiceImpl implements VideoService {
             return false;
         }
         UserRecord.Identity identity = databaseService.getUserIdentity(auth.getMid());
-        if (identity == UserRecord.Identity.SUPERUSER || owner == auth.getMid()) {
-            new Thread(() -> databaseService.deleteVideo(bv)).start();
-            return true;
-        }
+        if (identity == UserRecord.Identity.SUPERUSER || owner == auth.getMid())
+            return databaseService.deleteVideo(bv);
         log.warn("User {} is not allowed to delete video {}", auth.getMid(), bv);
         return false;
     }
@@ -80,14 +76,11 @@ public class VideoServiceImpl implements VideoService {
             log.warn("Invalid new video info: {}", req);
             return false;
         }
-        boolean isReviewed = databaseService.isVideoReviewed(bv);
-        new Thread(() -> databaseService.updateVideoInfo(bv, req)).start();
-        return isReviewed;
+        return databaseService.updateVideoInfo(bv, req);
     }
 
     @Override
-    @Transactional
-    public synchronized List<String> searchVideo(AuthInfo auth, String keywords, int pageSize, int pageNum) {
+    public List<String> searchVideo(AuthInfo auth, String keywords, int pageSize, int pageNum) {
         if (userService.invalidAuthInfo(auth))
             return null;
         if (pageSize <= 0 || pageNum <= 0) {
@@ -95,19 +88,8 @@ public class VideoServiceImpl implements VideoService {
             return null;
         }
         List<String> keyword = Arrays.stream(keywords.replace("\t", "").split(" "))
-                .filter(s -> !s.isEmpty()).sorted().collect(Collectors.toList());
-        if (keyword.equals(lastKeywords)) {
-            databaseService.createTempTable(auth.getMid());
-            for (String s : keyword)
-                databaseService.updateRelevanceTemp(s.toLowerCase());
-            databaseService.mergeTemp(auth.getMid());
-        } else {
-            lastKeywords = keyword;
-            databaseService.resetUnloggedTable(auth.getMid());
-            for (String s : keyword)
-                databaseService.updateRelevance(s.toLowerCase());
-        }
-        return databaseService.searchVideo(pageSize, pageNum);
+                .filter(s -> !s.isEmpty()).map(String::toLowerCase).collect(Collectors.toList());
+        return databaseService.searchVideo(auth.getMid(), keyword, pageSize, pageNum);
     }
 
     @Override
@@ -146,8 +128,7 @@ public class VideoServiceImpl implements VideoService {
             log.warn("Video {} has been reviewed", bv);
             return false;
         }
-        new Thread(() -> databaseService.reviewVideo(auth.getMid(), bv)).start();
-        return true;
+        return databaseService.reviewVideo(auth.getMid(), bv);
     }
 
     @Override
@@ -159,15 +140,7 @@ public class VideoServiceImpl implements VideoService {
             log.warn("Invalid video for engaging: {}", bv);
             return false;
         }
-        int coin = databaseService.getCoin(auth.getMid());
-        if (coin < 1) {
-            log.warn("User {} has no coin", auth.getMid());
-            return false;
-        }
-        boolean isCoin = databaseService.coinVideo(auth.getMid(), bv);
-        if (isCoin)
-            new Thread(() -> databaseService.updateCoin(auth.getMid(), coin - 1)).start();
-        return isCoin;
+        return databaseService.donateCoin(auth.getMid(), bv);
     }
 
     @Override
@@ -179,12 +152,7 @@ public class VideoServiceImpl implements VideoService {
             log.warn("Invalid video for engaging: {}", bv);
             return false;
         }
-        boolean isLike = databaseService.isVideoLiked(auth.getMid(), bv);
-        if (isLike)
-            new Thread(() -> databaseService.unlikeVideo(auth.getMid(), bv)).start();
-        else
-            new Thread(() -> databaseService.likeVideo(auth.getMid(), bv)).start();
-        return !isLike;
+        return databaseService.toggleLikeVideo(auth.getMid(), bv);
     }
 
     @Override
@@ -196,11 +164,6 @@ public class VideoServiceImpl implements VideoService {
             log.warn("Invalid video for engaging: {}", bv);
             return false;
         }
-        boolean isCollect = databaseService.isVideoCollected(auth.getMid(), bv);
-        if (isCollect)
-            new Thread(() -> databaseService.uncollectVideo(auth.getMid(), bv)).start();
-        else
-            new Thread(() -> databaseService.collectVideo(auth.getMid(), bv)).start();
-        return !isCollect;
+        return databaseService.toggleCollectVideo(auth.getMid(), bv);
     }
 }
@@ -0,0 +1,303 @@
+package io.sustc.service.impl;
+
+import io.sustc.dto.DanmuRecord;
+import io.sustc.dto.VideoRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static io.sustc.service.DatabaseService.RANKING_CACHE_SIZE;
+import static io.sustc.service.DatabaseService.SCORE_FLUSH_INTERVAL;
+
+/**
+ * Keeps the CountVideo counters and score of every video in memory, along with the ranking used by
+ * {@code generalRecommendations}.
+ * <p>
+ * Engagement changes are applied to the in-memory counters right away and the video is marked dirty.
+ * Every {@link io.sustc.service.DatabaseService#SCORE_FLUSH_INTERVAL} ms the dirty videos are written
+ * back with one multi-row UPDATE per {@link WriteBehind#MAX_ROWS_PER_STATEMENT} videos, so the scores in
+ * CountVideo stay current without a trigger per row.
+ * <p>
+ * The ranking is a sorted set updated on each change, and the first
+ * {@link io.sustc.service.DatabaseService#RANKING_CACHE_SIZE} entries are copied into an array that
+ * serves pages without locking until the ranking changes again.
+ */
+@Slf4j
+public class VideoStats {
+    private final JdbcTemplate jdbcTemplate;
+    private final Map<String, Stats> videos = new ConcurrentHashMap<>();
+    private final Set<Stats> dirty = ConcurrentHashMap.newKeySet();
+    private final TreeSet<Stats> ranking = new TreeSet<>(
+            Comparator.comparingDouble((Stats stats) -> -stats.rankScore)
+                    .thenComparingInt(stats -> -stats.rankViewCount)
+                    .thenComparing(stats -> stats.bv)
+    );
+    private volatile String[] top;
+    private volatile boolean loaded;
+    private final ScheduledExecutorService flusher;
+
+    private static class Stats {
+        final String bv;
+        final float duration;
+        int likeCount;
+        int coinCount;
+        int favCount;
+        int viewCount;
+        double viewRate;
+        int danmuCount;
+        /**
+         * Score and view count the entry is sorted by in the ranking, only changed while it is out of the ranking.
+         */
+        double rankScore;
+        int rankViewCount;
+
+        Stats(String bv, float duration) {
+            this.bv = bv;
+            this.duration = duration;
+        }
+
+        double score() {
+            return VideoStats.score(likeCount, coinCount, favCount, viewCount, viewRate, danmuCount);
+        }
+    }
+
+    public VideoStats(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VideoStats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                log.error("Failed to flush video scores", e);
+            }
+        }, SCORE_FLUSH_INTERVAL, SCORE_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The score CountVideo is ranked by.
+     */
+    public static double score(int likeCount, int coinCount, int favCount, int viewCount, double viewRate, int danmuCount) {
+        if (viewCount == 0)
+            return 0;
+        double score = 0;
+        score += Math.min(1, likeCount / (double) viewCount);
+        score += Math.min(1, coinCount / (double) viewCount);
+        score += Math.min(1, favCount / (double) viewCount);
+        score += danmuCount / (double) viewCount;
+        score += viewRate / (double) viewCount;
+        return score;
+    }
+
+    /**
+     * Counts the imported videos the same way CountVideo is filled.
+     */
+    public synchronized void load(List<VideoRecord> videoRecords, List<DanmuRecord> danmuRecords) {
+        clear();
+        Map<String, Integer> danmuCounts = new HashMap<>();
+        for (DanmuRecord danmu : danmuRecords)
+            danmuCounts.merge(danmu.getBv(), 1, Integer::sum);
+        for (VideoRecord video : videoRecords) {
+            Stats stats = new Stats(video.getBv(), video.getDuration());
+            stats.likeCount = video.getLike().length;
+            stats.coinCount = video.getCoin().length;
+            stats.favCount = video.getFavorite().length;
+            stats.viewCount = video.getViewerMids().length;
+            double totalViewTime = 0;
+            for (float viewTime : video.getViewTime())
+                totalViewTime += viewTime;
+            stats.viewRate = totalViewTime / video.getDuration();
+            stats.danmuCount = danmuCounts.getOrDefault(video.getBv(), 0);
+            put(stats);
+        }
+        loaded = true;
+        log.info("Ranked {} videos by score", videos.size());
+    }
+
+    private void ensureLoaded() {
+        if (loaded)
+            return;
+        synchronized (this) {
+            if (loaded)
+                return;
+            String sql = """
+                    SELECT CountVideo.*, Video.duration
+                    FROM CountVideo
+                    JOIN Video ON CountVideo.bv = Video.bv
+                    """;
+            jdbcTemplate.query(sql, rs -> {
+                Stats stats = new Stats(rs.getString("bv"), rs.getFloat("duration"));
+                stats.likeCount = rs.getInt("like_count");
+                stats.coinCount = rs.getInt("coin_count");
+                stats.favCount = rs.getInt("fav_count");
+                stats.viewCount = rs.getInt("view_count");
+                stats.viewRate = rs.getDouble("view_rate");
+                stats.danmuCount = rs.getInt("danmu_count");
+                put(stats);
+            });
+            loaded = true;
+            log.info("Ranked {} videos by score from database", videos.size());
+        }
+    }
+
+    private void put(Stats stats) {
+        stats.rankScore = stats.score();
+        stats.rankViewCount = stats.viewCount;
+        videos.put(stats.bv, stats);
+        ranking.add(stats);
+        top = null;
+    }
+
+    public synchronized void clear() {
+        videos.clear();
+        dirty.clear();
+        ranking.clear();
+        top = null;
+        loaded = false;
+    }
+
+    /**
+     * Applies an engagement change to a video, videos without a CountVideo row are ignored.
+     *
+     * @param viewTime total view time removed or added along with the views
+     */
+    public void change(String bv, int likes, int coins, int favorites, int views, double viewTime, int danmus) {
+        ensureLoaded();
+        Stats stats = videos.get(bv);
+        if (stats == null)
+            return;
+        synchronized (this) {
+            ranking.remove(stats);
+            stats.likeCount += likes;
+            stats.coinCount += coins;
+            stats.favCount += favorites;
+            stats.viewCount += views;
+            stats.viewRate += viewTime / stats.duration;
+            stats.danmuCount += danmus;
+            stats.rankScore = stats.score();
+            stats.rankViewCount = stats.viewCount;
+            // a video removed meanwhile must not come back
+            if (videos.get(bv) == stats)
+                ranking.add(stats);
+            top = null;
+        }
+        dirty.add(stats);
+    }
+
+    public void remove(String bv) {
+        ensureLoaded();
+        Stats stats = videos.remove(bv);
+        if (stats == null)
+            return;
+        synchronized (this) {
+            ranking.remove(stats);
+            top = null;
+        }
+        dirty.remove(stats);
+    }
+
+    /**
+     * Returns one page of videos ordered by score, then by view count.
+     */
+    public List<String> page(int pageSize, int pageNum) {
+        ensureLoaded();
+        long from = (long) pageSize * (pageNum - 1);
+        long to = from + pageSize;
+        String[] cached = top;
+        if (cached == null)
+            cached = cacheTop();
+        if (to <= cached.length || cached.length < RANKING_CACHE_SIZE) {
+            List<String> page = new ArrayList<>(pageSize);
+            for (long i = from; i < Math.min(to, cached.length); i++)
+                page.add(cached[(int) i]);
+            return page;
+        }
+        synchronized (this) {
+            List<String> page = new ArrayList<>(pageSize);
+            long i = 0;
+            for (Stats stats : ranking) {
+                if (i >= to)
+                    break;
+                if (i++ >= from)
+                    page.add(stats.bv);
+            }
+            return page;
+        }
+    }
+
+    private synchronized String[] cacheTop() {
+        if (top != null)
+            return top;
+        String[] cached = new String[Math.min(RANKING_CACHE_SIZE, ranking.size())];
+        Iterator<Stats> iterator = ranking.iterator();
+        for (int i = 0; i < cached.length; i++)
+            cached[i] = iterator.next().bv;
+        top = cached;
+        return cached;
+    }
+
+    /**
+     * Writes the counters and score of every changed video to CountVideo, videos whose update fails
+     * stay dirty for the next flush.
+     */
+    public void flush() {
+        if (dirty.isEmpty())
+            return;
+        List<Stats> flushed = new ArrayList<>();
+        List<Object[]> rows = new ArrayList<>();
+        for (Iterator<Stats> iterator = dirty.iterator(); iterator.hasNext(); ) {
+            Stats stats = iterator.next();
+            iterator.remove();
+            flushed.add(stats);
+            synchronized (this) {
+                rows.add(new Object[]{stats.bv, stats.likeCount, stats.coinCount, stats.favCount, stats.viewCount,
+                        stats.viewRate, stats.danmuCount, stats.rankScore});
+            }
+        }
+        long startTime = System.currentTimeMillis();
+        for (int from = 0; from < rows.size(); from += WriteBehind.MAX_ROWS_PER_STATEMENT) {
+            int to = Math.min(rows.size(), from + WriteBehind.MAX_ROWS_PER_STATEMENT);
+            List<Object[]> chunk = rows.subList(from, to);
+            StringJoiner values = new StringJoiner(", ");
+            List<Object> args = new ArrayList<>(chunk.size() * 8);
+            for (Object[] row : chunk) {
+                values.add("(?::bpchar, ?::int, ?::int, ?::int, ?::int, ?::float8, ?::int, ?::float8)");
+                args.addAll(Arrays.asList(row));
+            }
+            String sql = String.format("""
+                    UPDATE CountVideo
+                    SET like_count = d.like_count, coin_count = d.coin_count, fav_count = d.fav_count,
+                        view_count = d.view_count, view_rate = d.view_rate, danmu_count = d.danmu_count, score = d.score
+                    FROM (VALUES %s) AS d(bv, like_count, coin_count, fav_count, view_count, view_rate, danmu_count, score)
+                    WHERE CountVideo.bv = d.bv
+                    """, values);
+            try {
+                jdbcTemplate.update(sql, args.toArray());
+            } catch (DataAccessException e) {
+                log.warn("Deferred {} video score updates: {}", chunk.size(), e.getMessage());
+                // retried on the next flush, unless the video was removed meanwhile
+                for (Stats stats : flushed.subList(from, to))
+                    if (videos.get(stats.bv) == stats)
+                        dirty.add(stats);
+            }
+        }
+        log.debug("Flushed scores of {} videos in {} ms", rows.size(), System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Writes the remaining changes and stops the flusher.
+     */
+    public void close() {
+        flusher.shutdownNow();
+        flush();
+    }
+}
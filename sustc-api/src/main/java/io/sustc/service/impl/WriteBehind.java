@@ -0,0 +1,320 @@
+package io.sustc.service.impl;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded write-behind queue for the writes a request does not need to wait for.
+ * <p>
+ * Relation rows (follows, likes, favorites, coins, danmu likes) are kept as the latest wanted state per
+ * row, so toggling the same row twice before a flush coalesces into one write and can never be applied
+ * out of order. Other writes run in submission order among themselves, an update submitted with a key
+ * replaces the pending update with the same key.
+ * <p>
+ * A flusher thread writes everything every {@link #FLUSH_INTERVAL} ms: relation inserts and deletes as
+ * multi-row statements per table, then the other writes. So within one flush every relation row is written
+ * before any other write, whichever was queued first, and a write must not rely on running before a
+ * relation row queued after it. Producers block once {@link #CAPACITY} writes are pending.
+ */
+@Slf4j
+public class WriteBehind {
+    public static final int CAPACITY = 20000;
+    public static final long FLUSH_INTERVAL = 50;
+    public static final int MAX_ROWS_PER_STATEMENT = 1000;
+    private static final long REPORT_INTERVAL = 10000;
+
+    public enum Relation {
+        LIKE_VIDEO("LikeVideo", "mid", VideoKeys.COLUMN),
+        FAV_VIDEO("FavVideo", "mid", VideoKeys.COLUMN),
+        COIN_VIDEO("CoinVideo", "mid", VideoKeys.COLUMN),
+        FOLLOW("UserFollow", "follower", "followee"),
+        LIKE_DANMU("LikeDanmu", "mid", "id");
+
+        private final String table;
+        private final String first;
+        private final String second;
+
+        Relation(String table, String first, String second) {
+            this.table = table;
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    private static class Row {
+        final Relation relation;
+        final long first;
+        final Object second;
+
+        Row(Relation relation, long first, Object second) {
+            this.relation = relation;
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Row))
+                return false;
+            Row row = (Row) o;
+            return relation == row.relation && first == row.first && second.equals(row.second);
+        }
+
+        @Override
+        public int hashCode() {
+            return (relation.hashCode() * 31 + Long.hashCode(first)) * 31 + second.hashCode();
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final VideoKeys videoKeys;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushWanted = lock.newCondition();
+    private final Object flushLock = new Object();
+    private final Thread flusher;
+    private Map<Row, Boolean> rows = new HashMap<>();
+    private Map<Row, Boolean> flushingRows = new HashMap<>();
+    private LinkedHashMap<Object, Runnable> writes = new LinkedHashMap<>();
+    private volatile boolean running = true;
+
+    @Getter
+    private final AtomicLong flushes = new AtomicLong();
+    @Getter
+    private final AtomicLong flushedWrites = new AtomicLong();
+    @Getter
+    private final AtomicLong coalescedWrites = new AtomicLong();
+    @Getter
+    private volatile long lastFlushMillis;
+    @Getter
+    private volatile long maxFlushMillis;
+    private final AtomicLong totalFlushMillis = new AtomicLong();
+    private long lastReport = System.currentTimeMillis();
+
+    public WriteBehind(JdbcTemplate jdbcTemplate, VideoKeys videoKeys) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.videoKeys = videoKeys;
+        this.flusher = new Thread(this::flushLoop, "WriteBehind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queues the row to exist ({@code present}) or not in the relation table.
+     */
+    public void set(Relation relation, long first, Object second, boolean present) {
+        lock.lock();
+        try {
+            awaitCapacity();
+            if (rows.put(new Row(relation, first, second), present) != null)
+                coalescedWrites.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the queued state of a relation row, or {@code null} when nothing is queued and the database is up-to-date.
+     */
+    public Boolean pending(Relation relation, long first, Object second) {
+        Row row = new Row(relation, first, second);
+        lock.lock();
+        try {
+            Boolean present = rows.get(row);
+            return present != null ? present : flushingRows.get(row);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a write that runs after every earlier write, and after the relation rows of its flush.
+     */
+    public void submit(Runnable write) {
+        update(new Object(), write);
+    }
+
+    /**
+     * Queues a write that overwrites whatever the pending write with the same key would have done,
+     * the pending one is dropped and this one runs after every earlier write.
+     */
+    public void update(Object key, Runnable write) {
+        lock.lock();
+        try {
+            awaitCapacity();
+            if (writes.remove(key) != null)
+                coalescedWrites.incrementAndGet();
+            writes.put(key, write);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return rows.size() + writes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitCapacity() {
+        while (rows.size() + writes.size() >= CAPACITY) {
+            flushWanted.signal();
+            notFull.awaitUninterruptibly();
+        }
+    }
+
+    private void flushLoop() {
+        while (running) {
+            lock.lock();
+            try {
+                if (rows.size() + writes.size() < CAPACITY)
+                    flushWanted.await(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                log.error("Failed to flush queued writes", e);
+            }
+        }
+    }
+
+    /**
+     * Writes everything queued so far and returns when it is in the database. A queued write that fails
+     * is logged and dropped, its exception never reaches the caller.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<Row, Boolean> batch;
+            LinkedHashMap<Object, Runnable> batchWrites;
+            lock.lock();
+            try {
+                if (rows.isEmpty() && writes.isEmpty())
+                    return;
+                batch = rows;
+                batchWrites = writes;
+                flushingRows = batch;
+                rows = new HashMap<>();
+                writes = new LinkedHashMap<>();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            long startTime = System.currentTimeMillis();
+            try {
+                writeRows(batch);
+                for (Runnable write : batchWrites.values()) {
+                    try {
+                        write.run();
+                    } catch (DataAccessException e) {
+                        log.warn("Dropped queued write: {}", e.getMessage());
+                    } catch (RuntimeException e) {
+                        // the caller of flush() may be serving an unrelated request
+                        log.error("Dropped queued write", e);
+                    }
+                }
+            } finally {
+                lock.lock();
+                try {
+                    flushingRows = new HashMap<>();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            record(batch.size() + batchWrites.size(), System.currentTimeMillis() - startTime);
+        }
+    }
+
+    private void writeRows(Map<Row, Boolean> batch) {
+        Map<Relation, List<Row>> inserts = new EnumMap<>(Relation.class);
+        Map<Relation, List<Row>> deletes = new EnumMap<>(Relation.class);
+        for (Map.Entry<Row, Boolean> entry : batch.entrySet()) {
+            Row row = entry.getKey();
+            (entry.getValue() ? inserts : deletes).computeIfAbsent(row.relation, relation -> new ArrayList<>()).add(row);
+        }
+        inserts.forEach((relation, list) -> writeRows(relation, list, true));
+        deletes.forEach((relation, list) -> writeRows(relation, list, false));
+    }
+
+    private void writeRows(Relation relation, List<Row> list, boolean insert) {
+        for (int from = 0; from < list.size(); from += MAX_ROWS_PER_STATEMENT) {
+            List<Row> chunk = list.subList(from, Math.min(list.size(), from + MAX_ROWS_PER_STATEMENT));
+            Object[] args = new Object[chunk.size() * 2];
+            for (int i = 0; i < chunk.size(); i++) {
+                args[i * 2] = chunk.get(i).first;
+                args[i * 2 + 1] = second(chunk.get(i));
+            }
+            try {
+                jdbcTemplate.update(rowSql(relation, chunk.size(), insert), args);
+            } catch (DataAccessException e) {
+                // rows of a user or video deleted in the meantime fail the whole statement, retry them one by one
+                for (Row row : chunk) {
+                    try {
+                        jdbcTemplate.update(rowSql(relation, 1, insert), row.first, second(row));
+                    } catch (DataAccessException rowError) {
+                        log.warn("Dropped queued {} on {}: {}", insert ? "insert" : "delete", relation.table, rowError.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The value written for the second column, video relations are queued by bv and written by video key.
+     */
+    private Object second(Row row) {
+        return row.second instanceof String ? videoKeys.key((String) row.second) : row.second;
+    }
+
+    private static String rowSql(Relation relation, int count, boolean insert) {
+        StringJoiner values = new StringJoiner(", ");
+        for (int i = 0; i < count; i++)
+            values.add("(?, ?)");
+        return insert
+                ? String.format("INSERT INTO %s(%s, %s) VALUES %s ON CONFLICT DO NOTHING",
+                relation.table, relation.first, relation.second, values)
+                : String.format("DELETE FROM %s WHERE (%s, %s) IN (%s)",
+                relation.table, relation.first, relation.second, values);
+    }
+
+    private void record(int count, long millis) {
+        long flushCount = flushes.incrementAndGet();
+        flushedWrites.addAndGet(count);
+        lastFlushMillis = millis;
+        maxFlushMillis = Math.max(maxFlushMillis, millis);
+        long total = totalFlushMillis.addAndGet(millis);
+        log.debug("Flushed {} queued writes in {} ms", count, millis);
+        long now = System.currentTimeMillis();
+        if (now - lastReport >= REPORT_INTERVAL) {
+            lastReport = now;
+            log.info("Write-behind: {} flushes, {} writes, {} coalesced, queue depth {}, flush latency avg {} ms max {} ms",
+                    flushCount, flushedWrites.get(), coalescedWrites.get(), getQueueDepth(), total / flushCount, maxFlushMillis);
+        }
+    }
+
+    /**
+     * Flushes the remaining writes and stops the flusher.
+     */
+    public void close() {
+        running = false;
+        flusher.interrupt();
+        flush();
+        log.info("Write-behind closed after {} flushes, {} writes, {} coalesced",
+                flushes.get(), flushedWrites.get(), coalescedWrites.get());
+    }
+}
@@ -14,6 +14,7 @@ import org.springframework.shell.ShellApplicationRunner;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -60,7 +61,8 @@ public class BenchmarkRunner implements ShellApplicationRunner {
         Arrays.stream(BenchmarkService.class.getMethods())
                 .sequential()
                 .filter(method -> method.isAnnotationPresent(BenchmarkStep.class))
-                .sorted(Comparator.comparingInt(m -> m.getAnnotation(BenchmarkStep.class).order()))
+                .sorted(Comparator.comparingInt((Method m) -> m.getAnnotation(BenchmarkStep.class).order())
+                        .thenComparingInt(m -> m.getAnnotation(BenchmarkStep.class).suborder()))
                 .peek(method -> log.info("Step {}: {}",
                         method.getAnnotation(BenchmarkStep.class).order(),
                         StringUtils.defaultIfEmpty(
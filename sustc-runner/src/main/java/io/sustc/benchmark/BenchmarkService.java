@@ -14,6 +14,9 @@ import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 @Service
@@ -39,6 +42,15 @@ public class BenchmarkService {
     @Autowired
     private ThreadSafeFury fury;
 
+    /**
+     * Timeout in minutes of {@link #videoSearchThroughput()}, its pools never outlive it.
+     */
+    private static final int SEARCH_THROUGHPUT_TIMEOUT = 10;
+    /**
+     * Timeout in minutes of {@link #userInfoConcurrency()}, its pools never outlive it.
+     */
+    private static final int USER_INFO_CONCURRENCY_TIMEOUT = 20;
+
     private static boolean collectionEquals(Collection<?> expect, Collection<?> actual) {
         return Objects.equals(expect, actual)
                 || expect.isEmpty() && Objects.isNull(actual);
@@ -101,10 +113,33 @@ public class BenchmarkService {
             log.error("Exception encountered during importing data, you may early stop this run", e);
         }
         val endTime = System.currentTimeMillis();
+        log.info("Import data with {} COPY for relation tables. Time: {}",
+                databaseService.isBinaryCopy() ? "binary" : "text", endTime - startTime);
 
         return new BenchmarkResult(endTime - startTime);
     }
 
+    /**
+     * Times copying the like rows in binary and in text format into a scratch table, only in student mode.
+     */
+    @BenchmarkStep(order = 1, suborder = 1, timeout = 10, description = "Compare relation table COPY time by format")
+    public void copyFormatComparison() {
+        if (!config.isStudentMode()) {
+            return;
+        }
+        List<VideoRecord> videoRecords = deserialize(BenchmarkConstants.IMPORT_DATA, BenchmarkConstants.VIDEO_RECORDS);
+        val original = databaseService.isBinaryCopy();
+        try {
+            for (val binary : new boolean[]{true, false}) {
+                databaseService.setBinaryCopy(binary);
+                log.info("Copy like rows in {} format. Time: {}", binary ? "binary" : "text",
+                        databaseService.timeRelationCopy(videoRecords));
+            }
+        } finally {
+            databaseService.setBinaryCopy(original);
+        }
+    }
+
     @BenchmarkStep(order = 2, description = "Test VideoService#searchVideo(AuthInfo, String, int, int)")
     public BenchmarkResult videoSearch1() {
         List<Map.Entry<Object[], List<String>>> cases = deserialize(BenchmarkConstants.TEST_DATA, BenchmarkConstants.VIDEO_SEARCH_1);
@@ -130,6 +165,56 @@ public class BenchmarkService {
         return new BenchmarkResult(pass, endTime - startTime);
     }
 
+    /**
+     * Replays the search cases in every search mode on 1, 8 and 32 threads, only in student mode.
+     */
+    @SneakyThrows
+    @BenchmarkStep(order = 2, suborder = 1, timeout = SEARCH_THROUGHPUT_TIMEOUT, description = "Compare VideoService#searchVideo throughput by search mode and thread count")
+    public void videoSearchThroughput() {
+        if (!config.isStudentMode()) {
+            return;
+        }
+        List<Map.Entry<Object[], List<String>>> cases = deserialize(BenchmarkConstants.TEST_DATA, BenchmarkConstants.VIDEO_SEARCH_1);
+        try {
+            for (val mode : DatabaseService.SearchMode.values()) {
+                databaseService.setSearchMode(mode);
+                for (val threads : new int[]{1, 8, 32}) {
+                    val executor = Executors.newFixedThreadPool(threads);
+                    val pass = new AtomicLong();
+                    val startTime = System.currentTimeMillis();
+                    try {
+                        for (val it : cases) {
+                            executor.execute(() -> {
+                                try {
+                                    val args = it.getKey();
+                                    val res = videoService.searchVideo((AuthInfo) args[0], (String) args[1], (int) args[2], (int) args[3]);
+                                    if (collectionEquals(it.getValue(), res)) {
+                                        pass.incrementAndGet();
+                                    }
+                                } catch (Exception e) {
+                                    log.error("Exception thrown for {}", it, e);
+                                }
+                            });
+                        }
+                        executor.shutdown();
+                        if (!executor.awaitTermination(SEARCH_THROUGHPUT_TIMEOUT, TimeUnit.MINUTES)) {
+                            log.warn("searchVideo in {} mode on {} threads timed out", mode, threads);
+                            return;
+                        }
+                    } finally {
+                        // a cancelled step must not leave searches running into the next steps
+                        executor.shutdownNow();
+                    }
+                    val elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+                    log.info("searchVideo in {} mode on {} threads: {}/{} correct, {} ms, {} searches/s",
+                            mode, threads, pass.get(), cases.size(), elapsed, cases.size() * 1000L / elapsed);
+                }
+            }
+        } finally {
+            databaseService.setSearchMode(DatabaseService.SEARCH_MODE);
+        }
+    }
+
     @BenchmarkStep(order = 3, description = "Test VideoService#getAverageViewRate(String)")
     public BenchmarkResult videoViewRate() {
         Map<String, Double> cases = deserialize(BenchmarkConstants.TEST_DATA, BenchmarkConstants.VIDEO_VIEW_RATE);
@@ -363,6 +448,99 @@ public class BenchmarkService {
         return new BenchmarkResult(pass, endTime - startTime);
     }
 
+    /**
+     * Replays the user info cases one at a time and reports the latency of each call, only in student mode.
+     */
+    @BenchmarkStep(order = 11, suborder = 1, timeout = 10, description = "Measure UserService#getUserInfo(long) latency per call")
+    public void userInfoLatency() {
+        if (!config.isStudentMode()) {
+            return;
+        }
+        Map<Long, UserInfoResp> cases = deserialize(BenchmarkConstants.TEST_DATA, BenchmarkConstants.USER_INFO);
+        val latencies = new long[cases.size()];
+        var count = 0;
+        var pass = 0;
+        for (val it : cases.entrySet()) {
+            val startTime = System.nanoTime();
+            val res = userService.getUserInfo(it.getKey());
+            latencies[count++] = System.nanoTime() - startTime;
+            if (userInfoEquals(it.getValue(), res)) {
+                pass++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        Arrays.sort(latencies);
+        log.info("getUserInfo in {} mode with {} video keys: {}/{} correct, mean {} us, p50 {} us, p99 {} us, max {} us",
+                userService.getConcurrency(), DatabaseService.VIDEO_KEY, pass, count, Arrays.stream(latencies).sum() / count / 1000,
+                latencies[count / 2] / 1000, latencies[(int) (count * 0.99)] / 1000, latencies[count - 1] / 1000);
+    }
+
+    /**
+     * Replays the user info cases in every concurrency mode on 1, 8 and 32 threads, only in student mode.
+     */
+    @SneakyThrows
+    @BenchmarkStep(order = 11, suborder = 2, timeout = USER_INFO_CONCURRENCY_TIMEOUT, description = "Compare UserService#getUserInfo(long) latency by concurrency mode and thread count")
+    public void userInfoConcurrency() {
+        if (!config.isStudentMode()) {
+            return;
+        }
+        Map<Long, UserInfoResp> cases = deserialize(BenchmarkConstants.TEST_DATA, BenchmarkConstants.USER_INFO);
+        if (cases.isEmpty()) {
+            return;
+        }
+        val original = userService.getConcurrency();
+        try {
+            for (val mode : UserService.Concurrency.values()) {
+                userService.setConcurrency(mode);
+                for (val threads : new int[]{1, 8, 32}) {
+                    val executor = Executors.newFixedThreadPool(threads);
+                    val latencies = new long[cases.size()];
+                    val count = new AtomicInteger();
+                    val pass = new AtomicLong();
+                    val startTime = System.currentTimeMillis();
+                    try {
+                        for (val it : cases.entrySet()) {
+                            executor.execute(() -> {
+                                try {
+                                    val callStart = System.nanoTime();
+                                    val res = userService.getUserInfo(it.getKey());
+                                    latencies[count.getAndIncrement()] = System.nanoTime() - callStart;
+                                    if (userInfoEquals(it.getValue(), res)) {
+                                        pass.incrementAndGet();
+                                    }
+                                } catch (Exception e) {
+                                    log.error("Exception thrown for {}", it.getKey(), e);
+                                }
+                            });
+                        }
+                        executor.shutdown();
+                        if (!executor.awaitTermination(USER_INFO_CONCURRENCY_TIMEOUT, TimeUnit.MINUTES)) {
+                            log.warn("getUserInfo in {} mode on {} threads timed out", mode, threads);
+                            return;
+                        }
+                    } finally {
+                        // a cancelled step must not leave calls running into the next steps
+                        executor.shutdownNow();
+                    }
+                    val elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+                    val measured = Arrays.copyOf(latencies, count.get());
+                    if (measured.length == 0) {
+                        continue;
+                    }
+                    Arrays.sort(measured);
+                    log.info("getUserInfo in {} mode on {} threads: {}/{} correct, {} calls/s, mean {} us, p50 {} us, p99 {} us",
+                            mode, threads, pass.get(), cases.size(), cases.size() * 1000L / elapsed,
+                            Arrays.stream(measured).sum() / measured.length / 1000, measured[measured.length / 2] / 1000,
+                            measured[(int) (measured.length * 0.99)] / 1000);
+                }
+            }
+        } finally {
+            userService.setConcurrency(original);
+        }
+    }
+
     @BenchmarkStep(order = 12, description = "Test DanmuService#likeDanmu(AuthInfo, long)")
     public BenchmarkResult danmuLike() {
         Map<Long, AuthInfo> cases = deserialize(BenchmarkConstants.TEST_DATA, BenchmarkConstants.DANMU_LIKE);
@@ -14,6 +14,12 @@ public @interface BenchmarkStep {
      */
     int order();
 
+    /**
+     * Position among the steps of the same {@link #order()}. A measurement that has to run right after a task,
+     * against the same data, takes the task's order and a suborder above 0 instead of an ID of its own.
+     */
+    int suborder() default 0;
+
     /**
      * Timeout in minutes.
      */